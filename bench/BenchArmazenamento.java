@@ -0,0 +1,41 @@
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Compara as implementacoes de Armazenamento sob misturas de leitura/escrita.
+ * Chaves pre-carregadas; cada operacao le (obter) ou grava (gravarSeMaisNovo)
+ * uma chave uniforme.
+ *
+ *   java -cp out:lib/gson-2.8.2.jar BenchArmazenamento [threads] [chaves]
+ */
+public class BenchArmazenamento {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int numChaves = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int[] percentuaisLeitura = { 100, 95, 50 };
+
+        String[] chaves = new String[numChaves];
+        for (int i = 0; i < numChaves; i++) {
+            chaves[i] = "key-" + i;
+        }
+
+        System.out.println("threads=" + threads + " chaves=" + numChaves);
+        for (String tipo : new String[] { "sincronizado", "concorrente" }) {
+            Armazenamento banco = Armazenamento.criar(tipo);
+            for (String key : chaves) {
+                banco.gravarSeMaisNovo(key, new DadoKV("valor", 1));
+            }
+            for (int leitura : percentuaisLeitura) {
+                double[] resultado = Micro.medir(threads, t -> () -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    String key = chaves[random.nextInt(numChaves)];
+                    if (random.nextInt(100) < leitura) {
+                        return banco.obter(key);
+                    }
+                    return banco.gravarSeMaisNovo(key, new DadoKV("valor", System.nanoTime()));
+                });
+                System.out.printf("%-13s leitura=%3d%% %s%n", tipo, leitura, Micro.formatar(resultado));
+            }
+        }
+    }
+}
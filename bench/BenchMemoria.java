@@ -0,0 +1,96 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Memoria por entrada de cada armazenamento: HashMap<String, DadoKV> puro
+ * (referencia), concorrente (padrao do servidor) e compacto, fora e dentro do heap.
+ * Mede o heap usado depois de GC antes e depois de carregar as entradas, mais
+ * a arena fora do heap do compacto, e o tempo de carga.
+ * Keys "key-<n>" e valores ASCII aleatorios de tamanho fixo.
+ *
+ *   java -Xmx4g -cp out:lib/gson-2.8.2.jar BenchMemoria [entradas] [tamanhoValor]
+ */
+public class BenchMemoria {
+    private static final MemoryMXBean memoria = ManagementFactory.getMemoryMXBean();
+
+    // Slabs pequenos: com poucas entradas, o ultimo slab meio vazio nao domina a conta
+    private static final int SLAB = 4 << 20;
+
+    // Mantem a estrutura viva ate a medicao
+    private static Object retido;
+
+    public static void main(String[] args) throws Exception {
+        int entradas = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int tamanhoValor = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        String[] valores = new String[1024];
+        for (int i = 0; i < valores.length; i++) {
+            valores[i] = valorAleatorio(tamanhoValor);
+        }
+
+        System.out.println("entradas=" + entradas + " valor=" + tamanhoValor + " bytes");
+        System.out.printf("%-22s %12s %14s %12s %10s%n", "armazenamento", "heap B/ent", "fora heap B/ent",
+                "total B/ent", "carga ms");
+        medir("HashMap<String,DadoKV>", entradas, () -> {
+            Map<String, DadoKV> mapa = new HashMap<>();
+            for (int i = 0; i < entradas; i++) {
+                // new String: a key nao pode ser a constante do pool compartilhada entre rodadas
+                mapa.put(new String("key-" + i), new DadoKV(copia(valores[i & 1023]), i));
+            }
+            return mapa;
+        });
+        medir("concorrente", entradas, () -> carregar(new ArmazenamentoConcorrente(), entradas, valores));
+        medir("compacto (heap)", entradas, () -> carregar(new ArmazenamentoCompacto(SLAB, false), entradas, valores));
+        medir("compacto (fora heap)", entradas, () -> carregar(new ArmazenamentoCompacto(SLAB, true), entradas, valores));
+    }
+
+    private static Armazenamento carregar(Armazenamento banco, int entradas, String[] valores) {
+        for (int i = 0; i < entradas; i++) {
+            banco.gravarSeMaisNovo("key-" + i, new DadoKV(copia(valores[i & 1023]), i));
+        }
+        return banco;
+    }
+
+    private interface Carga {
+        Object executar();
+    }
+
+    private static void medir(String nome, int entradas, Carga carga) {
+        retido = null;
+        long antes = heapUsado();
+        long inicio = System.nanoTime();
+        retido = carga.executar();
+        long ms = (System.nanoTime() - inicio) / 1_000_000;
+        long heap = heapUsado() - antes;
+        long foraHeap = 0;
+        if (retido instanceof ArmazenamentoCompacto && ((ArmazenamentoCompacto) retido).isForaDoHeap()) {
+            foraHeap = ((ArmazenamentoCompacto) retido).bytesArena();
+        }
+        System.out.printf("%-22s %12.1f %14.1f %12.1f %10d%n", nome, heap / (double) entradas,
+                foraHeap / (double) entradas, (heap + foraHeap) / (double) entradas, ms);
+        retido = null;
+    }
+
+    // Copia com array proprio (new String(String) compartilharia o array), como um valor vindo da rede
+    private static String copia(String valor) {
+        return new String(valor.toCharArray());
+    }
+
+    private static long heapUsado() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memoria.getHeapMemoryUsage().getUsed();
+    }
+
+    private static String valorAleatorio(int tamanho) {
+        StringBuilder valor = new StringBuilder(tamanho);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < tamanho; i++) {
+            valor.append((char) ('a' + random.nextInt(26)));
+        }
+        return valor.toString();
+    }
+}
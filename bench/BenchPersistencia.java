@@ -0,0 +1,102 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Custo das politicas de fsync do WAL e tempo de recuperacao.
+ *   1. Escrita: threads concorrentes registram lotes de 1 escrita por segundos fixos
+ *   2. Recuperacao: N chaves, metade coberta por snapshot e metade no WAL,
+ *      comparado com recuperar tudo so pelo WAL
+ * Use um diretorio em disco real (em tmpfs o fsync nao custa nada).
+ *
+ *   java -cp out:lib/gson-2.8.2.jar BenchPersistencia [dir] [threads] [segundos] [chaves]
+ */
+public class BenchPersistencia {
+    public static void main(String[] args) throws Exception {
+        File base = new File(args.length > 0 ? args[0] : "bench-dados");
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int segundos = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int chaves = args.length > 3 ? Integer.parseInt(args[3]) : 500_000;
+
+        System.out.println("== escrita (" + threads + " threads, lotes de 1 escrita) ==");
+        for (String politica : new String[] { "escrita", "grupo", "intervalo" }) {
+            File dir = new File(base, "escrita-" + politica);
+            apagar(dir);
+            try (Persistencia persistencia = new Persistencia(dir, LogEscrita.politica(politica), 100)) {
+                persistencia.recuperar(new ArmazenamentoConcorrente());
+                double porSegundo = medirEscrita(persistencia, threads, segundos);
+                System.out.printf("%-10s %,12.0f escritas/s%n", politica, porSegundo);
+            }
+            apagar(dir);
+        }
+
+        System.out.println("== recuperacao (" + chaves + " chaves) ==");
+        for (boolean comSnapshot : new boolean[] { false, true }) {
+            File dir = new File(base, "recuperacao");
+            apagar(dir);
+            Armazenamento banco = new ArmazenamentoConcorrente();
+            try (Persistencia persistencia = new Persistencia(dir, LogEscrita.PoliticaFsync.INTERVALO, 1000)) {
+                persistencia.recuperar(new ArmazenamentoConcorrente());
+                Map<String, DadoKV> lote = new HashMap<>();
+                for (int i = 0; i < chaves; i++) {
+                    DadoKV dado = new DadoKV("valor-" + i, i + 1);
+                    lote.put("key-" + i, dado);
+                    banco.gravarSeMaisNovo("key-" + i, dado);
+                    if (lote.size() == 100) {
+                        persistencia.registrar(lote);
+                        lote = new HashMap<>();
+                    }
+                    if (comSnapshot && i == chaves / 2) {
+                        persistencia.snapshot(banco);
+                    }
+                }
+                if (!lote.isEmpty()) {
+                    persistencia.registrar(lote);
+                }
+            }
+            long inicio = System.nanoTime();
+            Armazenamento recuperado = new ArmazenamentoConcorrente();
+            try (Persistencia persistencia = new Persistencia(dir, LogEscrita.PoliticaFsync.INTERVALO, 1000)) {
+                persistencia.recuperar(recuperado);
+            }
+            double ms = (System.nanoTime() - inicio) / 1e6;
+            System.out.printf("%-18s %,10.0f ms (%,d chaves)%n",
+                    comSnapshot ? "snapshot + WAL" : "somente WAL", ms, recuperado.tamanho());
+            apagar(dir);
+        }
+    }
+
+    private static double medirEscrita(Persistencia persistencia, int threads, int segundos) throws Exception {
+        LongAdder feitas = new LongAdder();
+        long fim = System.nanoTime() + TimeUnit.SECONDS.toNanos(segundos);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                long i = 0;
+                while (System.nanoTime() < fim) {
+                    try {
+                        persistencia.registrar(Collections.singletonMap("key-" + thread + "-" + (i % 1000),
+                                new DadoKV("valor", ++i)));
+                        feitas.increment();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(segundos + 60, TimeUnit.SECONDS);
+        return feitas.sum() / (double) segundos;
+    }
+
+    private static void apagar(File dir) throws IOException {
+        if (dir.exists()) {
+            try (java.util.stream.Stream<Path> arquivos = Files.walk(dir.toPath())) {
+                arquivos.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/*
+ * Codificacao/decodificacao de Mensagem: JSON (Gson) x binario.
+ * Mede operacoes/s (harness Micro) e bytes alocados por operacao
+ * (contador de alocacao da thread, com.sun.management.ThreadMXBean).
+ *
+ *   java -cp out:lib/gson-2.8.2.jar BenchProtocolo
+ */
+public class BenchProtocolo {
+    public static void main(String[] args) throws Exception {
+        Map<String, Mensagem> mensagens = new LinkedHashMap<>();
+        mensagens.put("GET", new Mensagem("GET", "user:1234", null, 1792337539990L, "10.0.0.1", 20000));
+        mensagens.put("GET_OK", new Mensagem("GET_OK", "user:1234", "valor-pequeno", 1792337539990L, null, 0));
+        Mensagem lote = new Mensagem("REPLICATION", null, null, 0, null, 0);
+        List<Mensagem> itens = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            itens.add(new Mensagem("REPLICATION", "user:" + i, "valor-" + i, 1792337539990L + i, null, 0));
+        }
+        lote.setItens(itens);
+        mensagens.put("REPLICATION(64)", lote);
+
+        Map<String, Protocolo> protocolos = new LinkedHashMap<>();
+        protocolos.put("json", Protocolo.JSON);
+        protocolos.put("binario", Protocolo.BINARIO);
+
+        System.out.printf("%-16s %-8s %10s %36s %12s %36s %12s%n", "mensagem", "formato", "bytes",
+                "codificar", "aloc/op", "decodificar", "aloc/op");
+        for (Map.Entry<String, Mensagem> entrada : mensagens.entrySet()) {
+            Mensagem msg = entrada.getValue();
+            for (Map.Entry<String, Protocolo> p : protocolos.entrySet()) {
+                Protocolo protocolo = p.getValue();
+                byte[] quadro = protocolo.codificar(msg, 42);
+
+                double[] codificar = Micro.medir(1, t -> () -> protocolo.codificar(msg, 42));
+                double[] decodificar = Micro.medir(1, t -> () -> protocolo.decodificar(quadro, 0, quadro.length));
+                long alocCodificar = alocadoPorOperacao(() -> protocolo.codificar(msg, 42));
+                long alocDecodificar = alocadoPorOperacao(() -> protocolo.decodificar(quadro, 0, quadro.length));
+
+                System.out.printf("%-16s %-8s %10d %36s %12d %36s %12d%n", entrada.getKey(), p.getKey(), quadro.length,
+                        Micro.formatar(codificar), alocCodificar, Micro.formatar(decodificar), alocDecodificar);
+            }
+        }
+    }
+
+    private static long alocadoPorOperacao(Micro.Operacao operacao) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int n = 100_000;
+        for (int i = 0; i < n; i++) {
+            Micro.sumidouro = operacao.executar();
+        }
+        long antes = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < n; i++) {
+            Micro.sumidouro = operacao.executar();
+        }
+        return (threads.getCurrentThreadAllocatedBytes() - antes) / n;
+    }
+}
@@ -0,0 +1,121 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Teste de carga dos modelos de execucao do servidor (kv.modo).
+ * Para cada modo sobe um cluster local (lider + 2 seguidores) e mede, num seguidor:
+ *   1. conexoes/s: cada operacao abre conexao, faz um GET e fecha
+ *   2. latencia p50/p99 com muitas conexoes persistentes simultaneas, todas com GET em voo
+ *
+ * Compilar e rodar a partir da raiz do projeto:
+ *   javac -cp lib/gson-2.8.2.jar -d out src/*.java bench/*.java
+ *   java -cp out:lib/gson-2.8.2.jar CargaServidor [modos] [segundos] [conexoes]
+ * Ex.: java -cp out:lib/gson-2.8.2.jar CargaServidor threads,nio,virtual 10 2000
+ */
+public class CargaServidor {
+    private static final int THREADS_CONEXAO = 16;
+    private static final int THREADS_LATENCIA = 32;
+
+    public static void main(String[] args) throws Exception {
+        String[] modos = (args.length > 0 ? args[0] : "threads,nio,virtual").split(",");
+        int segundos = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int conexoes = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        System.out.printf("%-8s %12s %12s %10s %10s %10s%n",
+                "modo", "conexoes/s", "GETs/s", "p50(us)", "p99(us)", "p999(us)");
+        int portaBase = 30000;
+        for (String modo : modos) {
+            try (ClusterLocal cluster = new ClusterLocal(portaBase, "-Dkv.modo=" + modo)) {
+                cluster.iniciar();
+                InetSocketAddress alvo = cluster.getSeguidores().get(0);
+                double conexoesPorSegundo = medirConexoes(alvo, segundos);
+                double[] latencia = medirLatencia(alvo, segundos, conexoes);
+                System.out.printf("%-8s %12.0f %12.0f %10.0f %10.0f %10.0f%n",
+                        modo, conexoesPorSegundo, latencia[0], latencia[1], latencia[2], latencia[3]);
+            }
+            portaBase += 10;
+        }
+    }
+
+    private static Mensagem novoGet() {
+        return new Mensagem("GET", "carga", null, 0, null, 0);
+    }
+
+    /*
+     * Conexao nova por operacao (custo de accept + handshake + thread/registro no servidor)
+     */
+    private static double medirConexoes(InetSocketAddress alvo, int segundos) throws Exception {
+        LongAdder feitas = new LongAdder();
+        long fim = System.nanoTime() + TimeUnit.SECONDS.toNanos(segundos);
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS_CONEXAO);
+        for (int t = 0; t < THREADS_CONEXAO; t++) {
+            threads.execute(() -> {
+                while (System.nanoTime() < fim) {
+                    try (Conexao conexao = new Conexao(alvo)) {
+                        conexao.enviar(novoGet()).get(5, TimeUnit.SECONDS);
+                        feitas.increment();
+                    } catch (Exception e) {
+                        // conta apenas operacoes completas
+                    }
+                }
+            });
+        }
+        threads.shutdown();
+        threads.awaitTermination(segundos + 30, TimeUnit.SECONDS);
+        return feitas.sum() / (double) segundos;
+    }
+
+    /*
+     * Muitas conexoes persistentes, cada uma sempre com um GET em voo
+     * Devolve {GETs/s, p50, p99, p999}
+     */
+    private static double[] medirLatencia(InetSocketAddress alvo, int segundos, int numConexoes) throws Exception {
+        List<Conexao> abertas = new ArrayList<>();
+        for (int i = 0; i < numConexoes; i++) {
+            abertas.add(new Conexao(alvo));
+        }
+
+        List<Latencias> porThread = new ArrayList<>();
+        LongAdder feitas = new LongAdder();
+        long fim = System.nanoTime() + TimeUnit.SECONDS.toNanos(segundos);
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS_LATENCIA);
+        for (int t = 0; t < THREADS_LATENCIA; t++) {
+            List<Conexao> minhas = new ArrayList<>();
+            for (int i = t; i < abertas.size(); i += THREADS_LATENCIA) {
+                minhas.add(abertas.get(i));
+            }
+            Latencias latencias = new Latencias();
+            porThread.add(latencias);
+            threads.execute(() -> {
+                long[] inicio = new long[minhas.size()];
+                List<CompletableFuture<Long>> respostas = new ArrayList<>();
+                while (System.nanoTime() < fim) {
+                    respostas.clear();
+                    for (int i = 0; i < minhas.size(); i++) {
+                        inicio[i] = System.nanoTime();
+                        respostas.add(minhas.get(i).enviar(novoGet()).thenApply(r -> System.nanoTime()));
+                    }
+                    for (int i = 0; i < respostas.size(); i++) {
+                        try {
+                            latencias.registrar(respostas.get(i).get(5, TimeUnit.SECONDS) - inicio[i]);
+                            feitas.increment();
+                        } catch (Exception e) {
+                            // conta apenas operacoes completas
+                        }
+                    }
+                }
+            });
+        }
+        threads.shutdown();
+        threads.awaitTermination(segundos + 30, TimeUnit.SECONDS);
+        for (Conexao conexao : abertas) {
+            conexao.close();
+        }
+
+        Latencias todas = Latencias.juntar(porThread);
+        return new double[] { feitas.sum() / (double) segundos,
+                todas.percentil(50), todas.percentil(99), todas.percentil(99.9) };
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/*
+ * Operacoes medidas pela suite JMH (bench/jmh), montadas aqui porque so o pacote
+ * padrao enxerga as classes do servidor (ver jmh.Cenarios):
+ *   protocolo.<json|binario>.<GET|GET_OK>.<codificar|decodificar>
+ *   banco.<tipo>.<obter|obterAusente|gravarSeMaisNovo|varrer100>, tipo = sincronizado,
+ *       concorrente, compacto ou ordenado (concorrente + indice do SCAN; so ele varre)
+ *   get.<atualizado|atrasado|vencido>  decisao do GET (Servidor.atualizado + respostaGet)
+ */
+public class CenariosJmh implements jmh.Cenarios {
+    private static final int CHAVES = 100_000;
+    private static final long TIMESTAMP = 1792337539990L;
+
+    public Supplier<Object> operacao(String nome) {
+        String[] partes = nome.split("\\.");
+        switch (partes[0]) {
+            case "protocolo":
+                return protocolo(partes[1], partes[2], partes[3]);
+            case "banco":
+                return banco(partes[1], partes[2]);
+            case "get":
+                return get(partes[1]);
+            default:
+                throw new IllegalArgumentException("Cenario desconhecido: " + nome);
+        }
+    }
+
+    private static Supplier<Object> protocolo(String nome, String tipo, String operacao) {
+        Protocolo protocolo = nome.equals("json") ? Protocolo.JSON : Protocolo.BINARIO;
+        Mensagem msg = tipo.equals("GET_OK")
+                ? new Mensagem("GET_OK", "user:1234", "valor-pequeno", TIMESTAMP, null, 0)
+                : new Mensagem("GET", "user:1234", null, TIMESTAMP, null, 0);
+        byte[] quadro = protocolo.codificar(msg, 42);
+        return operacao.equals("codificar") ? () -> protocolo.codificar(msg, 42)
+                : () -> protocolo.decodificar(quadro, 0, quadro.length);
+    }
+
+    private static Supplier<Object> banco(String tipo, String operacao) {
+        Armazenamento banco = tipo.equals("ordenado")
+                ? new ArmazenamentoOrdenado(Armazenamento.criar("concorrente")) : Armazenamento.criar(tipo);
+        String[] chaves = new String[CHAVES];
+        for (int i = 0; i < CHAVES; i++) {
+            chaves[i] = "key-" + i;
+            banco.gravarSeMaisNovo(chaves[i], new DadoKV("valor-pequeno", 1));
+        }
+        switch (operacao) {
+            case "obter":
+                return () -> banco.obter(chaves[ThreadLocalRandom.current().nextInt(CHAVES)]);
+            case "obterAusente":
+                return () -> banco.obter("ausente");
+            case "gravarSeMaisNovo":
+                long[] ts = { 2 };
+                return () -> banco.gravarSeMaisNovo(
+                        chaves[ThreadLocalRandom.current().nextInt(CHAVES)], new DadoKV("valor-pequeno", ts[0]++));
+            case "varrer100":
+                if (!(banco instanceof ArmazenamentoOrdenado)) {
+                    throw new IllegalArgumentException("varrer100 exige o banco ordenado");
+                }
+                ArmazenamentoOrdenado ordenado = (ArmazenamentoOrdenado) banco;
+                int[] lidas = { 0 };
+                return () -> {
+                    lidas[0] = 0;
+                    ordenado.varrer(chaves[ThreadLocalRandom.current().nextInt(CHAVES)], null, (key, dado) -> ++lidas[0] < 100);
+                    return lidas[0];
+                };
+            default:
+                throw new IllegalArgumentException("Operacao de banco desconhecida: " + operacao);
+        }
+    }
+
+    /*
+     * Decisao do GET sobre um DadoKV ja lido (sem rede e sem banco): cliente com
+     * timestamp antigo (GET_OK), com timestamp a frente (espera) e chave vencida
+     */
+    private static Supplier<Object> get(String caso) {
+        DadoKV dado = new DadoKV("valor-pequeno", TIMESTAMP);
+        switch (caso) {
+            case "atualizado":
+                return () -> Servidor.atualizado(dado, TIMESTAMP - 990)
+                        ? Servidor.respostaGet("GET_OK", "user:1234", dado) : null;
+            case "atrasado":
+                return () -> Servidor.atualizado(dado, TIMESTAMP + 10)
+                        ? Servidor.respostaGet("GET_OK", "user:1234", dado) : null;
+            case "vencido":
+                DadoKV vencido = new DadoKV("valor-pequeno", TIMESTAMP, 1);
+                return () -> Servidor.atualizado(vencido, 0)
+                        ? Servidor.respostaGet("GET_OK", "user:1234", vencido) : null;
+            default:
+                throw new IllegalArgumentException("Caso de GET desconhecido: " + caso);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * Sobe um lider e dois seguidores locais (127.0.0.1) como processos separados,
+ * respondendo as perguntas do Servidor pela entrada padrao.
+ * Usa o mesmo classpath da JVM atual; opcoes extras (-Dkv.*) vao para os servidores.
+ * Cada servidor grava seus dados num diretorio temporario, apagado no close().
+ * derrubar(porta) mata um servidor (kill -9), para testes de failover.
+ */
+public class ClusterLocal implements AutoCloseable {
+    private final int portaBase;
+    private final List<String> opcoesJvm;
+    private final Map<Integer, Process> processos = new LinkedHashMap<>();
+    private Path dados;
+
+    public ClusterLocal(int portaBase, String... opcoesJvm) {
+        this.portaBase = portaBase;
+        this.opcoesJvm = Arrays.asList(opcoesJvm);
+    }
+
+    public void iniciar() throws IOException, InterruptedException {
+        dados = Files.createTempDirectory("kv-cluster");
+        int lider = portaBase, seguidor1 = portaBase + 1, seguidor2 = portaBase + 2;
+        processos.put(seguidor1, iniciarServidor(seguidor1, "s\n" + seguidor1 + "\nn\n" + lider + "\n"));
+        processos.put(seguidor2, iniciarServidor(seguidor2, "s\n" + seguidor2 + "\nn\n" + lider + "\n"));
+        aguardarPorta(seguidor1);
+        aguardarPorta(seguidor2);
+        processos.put(lider, iniciarServidor(lider, "s\n" + lider + "\ns\n" + seguidor1 + "\n" + seguidor2 + "\n"));
+        aguardarPorta(lider);
+    }
+
+    public InetSocketAddress getLider() {
+        return new InetSocketAddress("127.0.0.1", portaBase);
+    }
+
+    public List<InetSocketAddress> getSeguidores() {
+        return Arrays.asList(new InetSocketAddress("127.0.0.1", portaBase + 1),
+                new InetSocketAddress("127.0.0.1", portaBase + 2));
+    }
+
+    // Lider primeiro, depois os seguidores
+    public List<InetSocketAddress> getServidores() {
+        List<InetSocketAddress> todos = new ArrayList<>();
+        todos.add(getLider());
+        todos.addAll(getSeguidores());
+        return todos;
+    }
+
+    /*
+     * Mata o servidor da porta sem dar chance de fechar conexoes (como uma queda)
+     */
+    public void derrubar(int porta) throws InterruptedException {
+        Process processo = processos.remove(porta);
+        if (processo != null) {
+            processo.destroyForcibly();
+            processo.waitFor();
+        }
+    }
+
+    private Process iniciarServidor(int porta, String respostas) throws IOException {
+        List<String> comando = new ArrayList<>();
+        comando.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        comando.add("-Dkv.dados.dir=" + dados.resolve(String.valueOf(porta)));
+        comando.addAll(opcoesJvm);
+        comando.add("-cp");
+        comando.add(System.getProperty("java.class.path"));
+        comando.add("Servidor");
+
+        ProcessBuilder pb = new ProcessBuilder(comando);
+        pb.redirectErrorStream(true);
+        String log = System.getProperty("kv.bench.log");
+        pb.redirectOutput(log != null ? ProcessBuilder.Redirect.appendTo(new File(log)) : ProcessBuilder.Redirect.DISCARD);
+        Process processo = pb.start();
+        try (Writer in = new OutputStreamWriter(processo.getOutputStream())) {
+            in.write(respostas);
+        }
+        return processo;
+    }
+
+    private static void aguardarPorta(int porta) throws IOException, InterruptedException {
+        long limite = System.currentTimeMillis() + 15000;
+        while (System.currentTimeMillis() < limite) {
+            try {
+                new Socket("127.0.0.1", porta).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("Servidor nao subiu na porta " + porta);
+    }
+
+    @Override
+    public void close() {
+        for (Process processo : processos.values()) {
+            processo.destroyForcibly();
+        }
+        for (Process processo : processos.values()) {
+            try {
+                processo.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        processos.clear();
+        if (dados != null) {
+            try (java.util.stream.Stream<Path> arquivos = Files.walk(dados)) {
+                arquivos.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            } catch (IOException e) {
+                // diretorio temporario: melhor esforco
+            }
+        }
+    }
+}
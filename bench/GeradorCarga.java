@@ -0,0 +1,279 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Gerador de carga reproduzivel: sobe um cluster local (ClusterLocal: lider e
+ * dois seguidores) ou usa servidores ja no ar (carga.servidores), grava todas as
+ * chaves e dispara uma mistura de PUT/GET pelo ClienteKV, medindo a vazao e as
+ * latencias p50/p99/p999 de cada operacao (Histograma).
+ * - Malha fechada (carga.modo=fechado): carga.clientes clientes, cada um com uma
+ *   operacao em voo; a proxima sai quando a anterior responde
+ * - Malha aberta (carga.modo=aberto): carga.taxa operacoes/s em horarios fixos,
+ *   sem esperar as respostas; a latencia conta desde o horario previsto, entao um
+ *   servidor lento nao esconde a fila que formou (coordinated omission)
+ * Chaves uniformes ou zipfianas (carga.distribuicao=zipf, expoente carga.zipf);
+ * sorteios com semente fixa (carga.semente): a mesma sequencia a cada rodada.
+ * Parametros (-D): carga.modo (fechado), carga.segundos (10), carga.aquecimento (3),
+ *   carga.leitura (% de GET, 90), carga.chaves (100000), carga.distribuicao (uniforme),
+ *   carga.zipf (0.99), carga.valor (bytes, 100), carga.clientes (32), carga.taxa (10000),
+ *   carga.servidores (ip:porta,...), carga.semente (42)
+ * Argumentos: opcoes extras para as JVMs do cluster local (-Dkv.*).
+ *
+ *   java -cp out:lib/gson-2.8.2.jar GeradorCarga [opcoes dos servidores]
+ * Ex.: java -Dcarga.modo=aberto -Dcarga.taxa=20000 -Dcarga.distribuicao=zipf \
+ *        -cp out:lib/gson-2.8.2.jar GeradorCarga -Dkv.log.requisicoes=false
+ */
+public class GeradorCarga {
+    private static final String MODO = System.getProperty("carga.modo", "fechado");
+    private static final int SEGUNDOS = Integer.getInteger("carga.segundos", 10);
+    private static final int AQUECIMENTO = Integer.getInteger("carga.aquecimento", 3);
+    private static final int LEITURA = Integer.getInteger("carga.leitura", 90);
+    private static final int CHAVES = Integer.getInteger("carga.chaves", 100_000);
+    private static final String DISTRIBUICAO = System.getProperty("carga.distribuicao", "uniforme");
+    private static final double EXPOENTE_ZIPF = Double.parseDouble(System.getProperty("carga.zipf", "0.99"));
+    private static final int TAMANHO_VALOR = Integer.getInteger("carga.valor", 100);
+    private static final int CLIENTES = Integer.getInteger("carga.clientes", 32);
+    private static final int TAXA = Integer.getInteger("carga.taxa", 10_000);
+    private static final long SEMENTE = Long.getLong("carga.semente", 42);
+
+    // Malha aberta: operacoes em voo acima disso contam como erro em vez de enfileirar sem fim
+    private static final int MAX_EM_VOO = 100_000;
+
+    private static String[] valores;
+    private static Zipf zipf;
+
+    public static void main(String[] args) throws Exception {
+        valores = new String[64];
+        SplittableRandom random = new SplittableRandom(SEMENTE);
+        for (int i = 0; i < valores.length; i++) {
+            StringBuilder valor = new StringBuilder(TAMANHO_VALOR);
+            for (int j = 0; j < TAMANHO_VALOR; j++) {
+                valor.append((char) ('a' + random.nextInt(26)));
+            }
+            valores[i] = valor.toString();
+        }
+        if (DISTRIBUICAO.equals("zipf")) {
+            zipf = new Zipf(CHAVES, EXPOENTE_ZIPF);
+        } else if (!DISTRIBUICAO.equals("uniforme")) {
+            throw new IllegalArgumentException("carga.distribuicao deve ser uniforme ou zipf: " + DISTRIBUICAO);
+        }
+
+        String servidores = System.getProperty("carga.servidores");
+        if (servidores != null) {
+            List<InetSocketAddress> enderecos = new ArrayList<>();
+            for (String servidor : servidores.split(",")) {
+                enderecos.add(AnelHash.endereco(servidor.trim()));
+            }
+            executar(enderecos);
+        } else {
+            try (ClusterLocal cluster = new ClusterLocal(31000, args)) {
+                cluster.iniciar();
+                executar(cluster.getServidores());
+            }
+        }
+    }
+
+    private static void executar(List<InetSocketAddress> servidores) throws Exception {
+        System.out.println("modo=" + MODO + (MODO.equals("aberto") ? " taxa=" + TAXA + "/s" : " clientes=" + CLIENTES) +
+                " leitura=" + LEITURA + "% chaves=" + CHAVES + " distribuicao=" + DISTRIBUICAO +
+                (zipf != null ? "(" + EXPOENTE_ZIPF + ")" : "") + " valor=" + TAMANHO_VALOR + "B segundos=" + SEGUNDOS);
+        try (ClienteKV cliente = new ClienteKV(servidores)) {
+            long inicio = System.nanoTime();
+            carregar(cliente);
+            System.out.printf("carga inicial: %d chaves em %d ms%n", CHAVES, (System.nanoTime() - inicio) / 1_000_000);
+
+            rodada(cliente, AQUECIMENTO, SEMENTE + 1);
+            Medicao medicao = rodada(cliente, SEGUNDOS, SEMENTE);
+
+            System.out.printf("%-5s %10s %10s %10s %10s %10s %10s%n",
+                    "op", "ops/s", "media(us)", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+            imprimir("GET", medicao.gets, medicao.segundos);
+            imprimir("PUT", medicao.puts, medicao.segundos);
+            long total = medicao.gets.contagem() + medicao.puts.contagem();
+            System.out.printf("total %10.0f ops/s, %d erros%n", total / medicao.segundos, medicao.erros.sum());
+        }
+    }
+
+    /*
+     * Grava todas as chaves antes de medir (GETs sempre encontram valor), com MPUTs
+     * de ate 500 chaves do mesmo grupo, ate 8 em voo
+     */
+    private static void carregar(ClienteKV cliente) throws Exception {
+        String grupos = System.getProperty("kv.grupos");
+        AnelHash anel = grupos != null ? new AnelHash(grupos) : null;
+        Map<Object, Map<String, String>> lotes = new HashMap<>();
+        Semaphore emVoo = new Semaphore(8);
+        List<CompletableFuture<Long>> enviados = new ArrayList<>();
+        for (int i = 0; i < CHAVES; i++) {
+            String key = chave(i);
+            Object grupo = anel != null ? anel.grupoDe(key) : "";
+            Map<String, String> lote = lotes.computeIfAbsent(grupo, g -> new HashMap<>());
+            lote.put(key, valores[i % valores.length]);
+            if (lote.size() == 500 || i == CHAVES - 1) {
+                lotes.remove(grupo);
+                emVoo.acquire();
+                enviados.add(cliente.mput(lote).whenComplete((ts, erro) -> emVoo.release()));
+            }
+        }
+        for (Map<String, String> lote : lotes.values()) {
+            enviados.add(cliente.mput(lote));
+        }
+        CompletableFuture.allOf(enviados.toArray(new CompletableFuture<?>[0])).get();
+    }
+
+    private static Medicao rodada(ClienteKV cliente, int segundos, long semente) throws Exception {
+        Medicao medicao = new Medicao();
+        long inicio = System.nanoTime();
+        long fim = inicio + TimeUnit.SECONDS.toNanos(segundos);
+        if (MODO.equals("aberto")) {
+            malhaAberta(cliente, medicao, inicio, fim, semente);
+        } else if (MODO.equals("fechado")) {
+            malhaFechada(cliente, medicao, fim, semente);
+        } else {
+            throw new IllegalArgumentException("carga.modo deve ser fechado ou aberto: " + MODO);
+        }
+        medicao.segundos = (System.nanoTime() - inicio) / 1e9;
+        return medicao;
+    }
+
+    private static void malhaFechada(ClienteKV cliente, Medicao medicao, long fim, long semente)
+            throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < CLIENTES; t++) {
+            SplittableRandom random = new SplittableRandom(semente + t);
+            Thread thread = new Thread(() -> {
+                while (System.nanoTime() < fim) {
+                    boolean leitura = random.nextInt(100) < LEITURA;
+                    long inicio = System.nanoTime();
+                    try {
+                        operacao(cliente, leitura, random).get();
+                        (leitura ? medicao.gets : medicao.puts).registrarDesde(inicio);
+                    } catch (ExecutionException e) {
+                        medicao.erros.increment();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "carga-" + t);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /*
+     * Uma thread dispara a operacao n no instante inicio + n / taxa; quem responde
+     * registra a latencia a partir desse instante. No fim espera as que estao em voo.
+     */
+    private static void malhaAberta(ClienteKV cliente, Medicao medicao, long inicio, long fim, long semente)
+            throws InterruptedException {
+        SplittableRandom random = new SplittableRandom(semente);
+        AtomicLong emVoo = new AtomicLong();
+        double intervalo = 1e9 / TAXA;
+        for (long n = 0; ; n++) {
+            long previsto = inicio + (long) (n * intervalo);
+            if (previsto >= fim) {
+                break;
+            }
+            long espera = previsto - System.nanoTime();
+            if (espera > 0) {
+                LockSupport.parkNanos(espera);
+            }
+            boolean leitura = random.nextInt(100) < LEITURA;
+            if (emVoo.get() >= MAX_EM_VOO) {
+                medicao.erros.increment();
+                random.nextInt(CHAVES);
+                continue;
+            }
+            emVoo.incrementAndGet();
+            operacao(cliente, leitura, random).whenComplete((resultado, erro) -> {
+                if (erro != null) {
+                    medicao.erros.increment();
+                } else {
+                    (leitura ? medicao.gets : medicao.puts).registrarDesde(previsto);
+                }
+                emVoo.decrementAndGet();
+            });
+        }
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (emVoo.get() > 0 && System.nanoTime() < limite) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static CompletableFuture<?> operacao(ClienteKV cliente, boolean leitura, SplittableRandom random) {
+        int indice = zipf != null ? (int) zipf.proximo(random) : random.nextInt(CHAVES);
+        if (leitura) {
+            return cliente.get(chave(indice));
+        }
+        return cliente.put(chave(indice), valores[random.nextInt(valores.length)]);
+    }
+
+    private static String chave(int indice) {
+        return "key-" + indice;
+    }
+
+    private static void imprimir(String op, Histograma latencias, double segundos) {
+        System.out.printf("%-5s %10.0f %10d %10d %10d %10d %10d%n", op, latencias.contagem() / segundos,
+                latencias.media(), latencias.percentil(0.5), latencias.percentil(0.99),
+                latencias.percentil(0.999), latencias.maximo());
+    }
+
+    // Resultado de uma rodada (o aquecimento tem a sua, descartada)
+    private static class Medicao {
+        final Histograma gets = new Histograma();
+        final Histograma puts = new Histograma();
+        final LongAdder erros = new LongAdder();
+        double segundos;
+    }
+
+    /*
+     * Sorteio zipfiano em [0, n): o indice 0 e o mais popular (algoritmo de Gray
+     * et al., "Quickly generating billion-record synthetic databases", o mesmo do YCSB).
+     * Calcula zeta(n) uma vez, em O(n).
+     */
+    static class Zipf {
+        private final long n;
+        private final double expoente;
+        private final double alfa;
+        private final double zetaN;
+        private final double eta;
+
+        Zipf(long n, double expoente) {
+            if (expoente <= 0 || expoente >= 1) {
+                throw new IllegalArgumentException("Expoente zipfiano deve estar em (0, 1): " + expoente);
+            }
+            this.n = n;
+            this.expoente = expoente;
+            this.alfa = 1 / (1 - expoente);
+            this.zetaN = zeta(n, expoente);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - expoente)) / (1 - zeta(2, expoente) / zetaN);
+        }
+
+        private static double zeta(long n, double expoente) {
+            double soma = 0;
+            for (long i = 1; i <= n; i++) {
+                soma += 1 / Math.pow(i, expoente);
+            }
+            return soma;
+        }
+
+        long proximo(SplittableRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, expoente)) {
+                return 1;
+            }
+            return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alfa)));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+import java.util.Arrays;
+
+/*
+ * Amostras de latencia (ns) de uma thread; juntar() combina varias e
+ * percentil() ordena e le o valor exato.
+ */
+public class Latencias {
+    private long[] amostras = new long[1024];
+    private int tamanho;
+
+    public void registrar(long nanos) {
+        if (tamanho == amostras.length) {
+            amostras = Arrays.copyOf(amostras, tamanho * 2);
+        }
+        amostras[tamanho++] = nanos;
+    }
+
+    public int getTamanho() {
+        return tamanho;
+    }
+
+    public static Latencias juntar(Iterable<Latencias> partes) {
+        Latencias todas = new Latencias();
+        for (Latencias parte : partes) {
+            for (int i = 0; i < parte.tamanho; i++) {
+                todas.registrar(parte.amostras[i]);
+            }
+        }
+        Arrays.sort(todas.amostras, 0, todas.tamanho);
+        return todas;
+    }
+
+    // Percentil em microssegundos; requer amostras ordenadas (juntar)
+    public double percentil(double p) {
+        if (tamanho == 0) {
+            return 0;
+        }
+        int i = (int) Math.min(tamanho - 1, Math.ceil(p / 100.0 * tamanho) - 1);
+        return amostras[Math.max(0, i)] / 1000.0;
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/*
+ * Mini harness de microbenchmark no estilo JMH (aquecimento + iteracoes medidas
+ * em tempo fixo, media e desvio padrao), sem dependencias externas.
+ * Cada thread recebe sua propria operacao (fabrica.apply(indiceThread)), que
+ * deve fazer uma unidade de trabalho por chamada e devolver algo para evitar
+ * eliminacao de codigo morto.
+ */
+public class Micro {
+    public static int iteracoesAquecimento = Integer.getInteger("micro.aquecimento", 3);
+    public static int iteracoesMedidas = Integer.getInteger("micro.iteracoes", 5);
+    public static long msPorIteracao = Long.getLong("micro.msPorIteracao", 1000);
+
+    public interface Operacao {
+        Object executar();
+    }
+
+    // Sumidouro compartilhado para os resultados das operacoes
+    public static volatile Object sumidouro;
+
+    /*
+     * Devolve {media ops/s, desvio padrao}
+     */
+    public static double[] medir(int threads, IntFunction<Operacao> fabrica) throws InterruptedException {
+        for (int i = 0; i < iteracoesAquecimento; i++) {
+            iteracao(threads, fabrica);
+        }
+        double[] resultados = new double[iteracoesMedidas];
+        for (int i = 0; i < iteracoesMedidas; i++) {
+            resultados[i] = iteracao(threads, fabrica);
+        }
+        double media = Arrays.stream(resultados).average().orElse(0);
+        double variancia = Arrays.stream(resultados).map(r -> (r - media) * (r - media)).sum() / Math.max(1, resultados.length - 1);
+        return new double[] { media, Math.sqrt(variancia) };
+    }
+
+    private static double iteracao(int threads, IntFunction<Operacao> fabrica) throws InterruptedException {
+        LongAdder total = new LongAdder();
+        CountDownLatch largada = new CountDownLatch(1);
+        List<Thread> lista = new ArrayList<>();
+        long[] fim = new long[1];
+        for (int t = 0; t < threads; t++) {
+            Operacao operacao = fabrica.apply(t);
+            Thread thread = new Thread(() -> {
+                try {
+                    largada.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long ops = 0;
+                Object ultimo = null;
+                while (System.nanoTime() < fim[0]) {
+                    for (int i = 0; i < 64; i++) {
+                        ultimo = operacao.executar();
+                    }
+                    ops += 64;
+                }
+                sumidouro = ultimo;
+                total.add(ops);
+            });
+            thread.start();
+            lista.add(thread);
+        }
+        long inicio = System.nanoTime();
+        fim[0] = inicio + TimeUnit.MILLISECONDS.toNanos(msPorIteracao);
+        largada.countDown();
+        for (Thread thread : lista) {
+            thread.join();
+        }
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        return total.sum() / segundos;
+    }
+
+    public static String formatar(double[] resultado) {
+        return String.format("%,14.0f ops/s +- %,12.0f", resultado[0], resultado[1]);
+    }
+}
@@ -0,0 +1,122 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Teste de failover: sobe um cluster local (lider + 2 seguidores), mantem
+ * escritores fazendo PUTs e mata o lider (kill -9) no meio da carga.
+ * Mede a janela sem escritas: do kill ate o primeiro PUT_OK seguinte
+ * (deteccao da queda + eleicao + clientes achando o novo lider), e confere
+ * no fim que toda escrita confirmada continua legivel no novo lider.
+ *
+ * Os escritores mandam PUTs aos seguidores e, quando um falha, tentam o
+ * servidor seguinte, como o Cliente.
+ *
+ *   java -cp out:lib/gson-2.8.2.jar TesteFailover [escritores] [segundosAntes] [segundosDepois]
+ */
+public class TesteFailover {
+    private static final long TIMEOUT_PUT_MS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int escritores = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int segundosAntes = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int segundosDepois = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        String heartbeat = System.getProperty("kv.heartbeat.intervaloMs", "100");
+        String eleicao = System.getProperty("kv.eleicao.timeoutMs", "500");
+
+        try (ClusterLocal cluster = new ClusterLocal(31000, "-Dkv.heartbeat.intervaloMs=" + heartbeat,
+                "-Dkv.eleicao.timeoutMs=" + eleicao, "-Dkv.timeoutMs=" + TIMEOUT_PUT_MS);
+             PoolConexoes pool = new PoolConexoes(1)) {
+            cluster.iniciar();
+            List<InetSocketAddress> servidores = cluster.getServidores();
+            System.out.println("escritores=" + escritores + " heartbeat=" + heartbeat + "ms eleicao=" + eleicao + "ms");
+
+            AtomicLong instanteQueda = new AtomicLong(Long.MAX_VALUE);
+            AtomicLong primeiroDepois = new AtomicLong(Long.MAX_VALUE);
+            LongAdder confirmados = new LongAdder();
+            LongAdder falhas = new LongAdder();
+            Map<String, Integer> ultimoConfirmado = new ConcurrentHashMap<>();
+            Map<String, String> novoLider = new ConcurrentHashMap<>();
+            long fim = System.nanoTime() + TimeUnit.SECONDS.toNanos(segundosAntes + segundosDepois);
+
+            ExecutorService threads = Executors.newFixedThreadPool(escritores);
+            for (int t = 0; t < escritores; t++) {
+                String key = "failover-" + t;
+                int primeiro = 1 + t % 2; // comeca num seguidor
+                threads.execute(() -> {
+                    int alvo = primeiro;
+                    int contador = 0;
+                    while (System.nanoTime() < fim) {
+                        Mensagem put = new Mensagem("PUT", key, String.valueOf(contador + 1), 0, null, 0);
+                        try {
+                            Mensagem resposta = pool.enviar(servidores.get(alvo), put)
+                                    .get(TIMEOUT_PUT_MS, TimeUnit.MILLISECONDS);
+                            if ("PUT_OK".equals(resposta.getTipo())) {
+                                long agora = System.nanoTime();
+                                contador++;
+                                ultimoConfirmado.put(key, contador);
+                                confirmados.increment();
+                                if (agora > instanteQueda.get()) {
+                                    primeiroDepois.accumulateAndGet(agora, Math::min);
+                                    if (resposta.getLider() != null) {
+                                        novoLider.put(resposta.getLider(), "");
+                                    }
+                                }
+                                continue;
+                            }
+                        } catch (Exception e) {
+                            // sem resposta: conta como falha e tenta outro servidor
+                        }
+                        falhas.increment();
+                        alvo = (alvo + 1) % servidores.size();
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                });
+            }
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(segundosAntes));
+            long antes = confirmados.sum();
+            instanteQueda.set(System.nanoTime());
+            cluster.derrubar(cluster.getLider().getPort());
+            System.out.println("Lider " + cluster.getLider() + " derrubado apos " + antes + " PUTs confirmados");
+
+            threads.shutdown();
+            threads.awaitTermination(segundosDepois + 30, TimeUnit.SECONDS);
+
+            if (primeiroDepois.get() == Long.MAX_VALUE) {
+                System.out.println("FALHA: nenhum PUT confirmado depois da queda do lider");
+                System.exit(1);
+            }
+            double janelaMs = (primeiroDepois.get() - instanteQueda.get()) / 1e6;
+            System.out.printf("janela sem escritas: %.0f ms%n", janelaMs);
+            System.out.println("novo lider: " + novoLider.keySet());
+            System.out.println("PUTs confirmados: " + confirmados.sum() + " (" + (confirmados.sum() - antes) +
+                    " depois da queda), tentativas falhas: " + falhas.sum());
+
+            // Nenhuma escrita confirmada pode ter se perdido na troca de lider
+            InetSocketAddress lider = novoLider.isEmpty() ? servidores.get(1)
+                    : AnelHash.endereco(novoLider.keySet().iterator().next());
+            int perdidas = 0;
+            for (Map.Entry<String, Integer> esperado : ultimoConfirmado.entrySet()) {
+                Mensagem get = new Mensagem("GET", esperado.getKey(), null, 0, null, 0);
+                Mensagem resposta = pool.enviarEsperar(lider, get, TIMEOUT_PUT_MS);
+                if (resposta.getValue() == null || Integer.parseInt(resposta.getValue()) < esperado.getValue()) {
+                    System.out.println("PERDIDA: " + esperado.getKey() + " confirmado " + esperado.getValue() +
+                            ", lido " + resposta.getValue());
+                    perdidas++;
+                }
+            }
+            System.out.println(perdidas == 0 ? "OK: todas as escritas confirmadas estao no novo lider"
+                    : "FALHA: " + perdidas + " chaves perderam escritas confirmadas");
+            if (perdidas > 0) {
+                System.exit(1);
+            }
+        }
+    }
+}
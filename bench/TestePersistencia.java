@@ -0,0 +1,102 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Teste de snapshot concorrente: escritores gravam como o Servidor (WAL e depois
+ * banco, entre iniciarEscrita e terminarEscrita) enquanto outra thread tira
+ * snapshots sem parar. No fim recupera o diretorio num banco novo e confere que
+ * toda escrita feita esta la.
+ * Com "semTrava" os escritores nao usam a trava: mostra a perda que ela evita
+ * (escrita no segmento apagado pelo snapshot e ainda fora do banco percorrido).
+ *
+ *   java -cp out:lib/gson-2.8.2.jar TestePersistencia [dir] [escritores] [segundos] [semTrava]
+ */
+public class TestePersistencia {
+    private static final int PAUSA_A_CADA = 256;
+    private static final long PAUSA_MS = 200;
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : "teste-persistencia");
+        int escritores = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int segundos = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        boolean semTrava = args.length > 3 && args[3].equals("semTrava");
+
+        apagar(dir);
+        Armazenamento banco = new ArmazenamentoConcorrente();
+        Map<String, Long> escritas = new ConcurrentHashMap<>();
+        AtomicLong relogio = new AtomicLong();
+        AtomicBoolean parar = new AtomicBoolean();
+        int snapshots = 0;
+        try (Persistencia persistencia = new Persistencia(dir, LogEscrita.PoliticaFsync.INTERVALO, 1000)) {
+            persistencia.recuperar(banco);
+            ExecutorService threads = Executors.newFixedThreadPool(escritores);
+            List<Future<?>> tarefas = new ArrayList<>();
+            for (int t = 0; t < escritores; t++) {
+                tarefas.add(threads.submit(() -> {
+                    while (!parar.get()) {
+                        long ts = relogio.incrementAndGet();
+                        // Chave nova a cada escrita: uma perdida nao e coberta por outra mais nova
+                        String key = "key-" + ts;
+                        DadoKV dado = new DadoKV("valor-" + ts, ts);
+                        if (!semTrava) {
+                            persistencia.iniciarEscrita();
+                        }
+                        try {
+                            persistencia.registrar(Collections.singletonMap(key, dado));
+                            // Abre a janela entre o WAL e o banco, onde o snapshot pode girar o WAL
+                            if (ts % PAUSA_A_CADA == 0) {
+                                Thread.sleep(PAUSA_MS);
+                            }
+                            banco.gravarSeMaisNovo(key, dado);
+                        } finally {
+                            if (!semTrava) {
+                                persistencia.terminarEscrita();
+                            }
+                        }
+                        escritas.put(key, ts);
+                    }
+                    return null;
+                }));
+            }
+            long fim = System.nanoTime() + TimeUnit.SECONDS.toNanos(segundos);
+            while (System.nanoTime() < fim) {
+                persistencia.snapshot(banco);
+                snapshots++;
+            }
+            parar.set(true);
+            for (Future<?> tarefa : tarefas) {
+                tarefa.get();
+            }
+            threads.shutdown();
+        }
+
+        Armazenamento recuperado = new ArmazenamentoConcorrente();
+        try (Persistencia persistencia = new Persistencia(dir, LogEscrita.PoliticaFsync.INTERVALO, 1000)) {
+            persistencia.recuperar(recuperado);
+        }
+        int perdidas = 0;
+        for (Map.Entry<String, Long> escrita : escritas.entrySet()) {
+            DadoKV dado = recuperado.obter(escrita.getKey());
+            if (dado == null || dado.timestamp != escrita.getValue()) {
+                perdidas++;
+            }
+        }
+        System.out.println(escritas.size() + " escritas, " + snapshots + " snapshots; perdidas depois da recuperacao: " + perdidas);
+        apagar(dir);
+        if (perdidas > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void apagar(File dir) throws IOException {
+        if (dir.exists()) {
+            try (java.util.stream.Stream<Path> arquivos = Files.walk(dir.toPath())) {
+                arquivos.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+}
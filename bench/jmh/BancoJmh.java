@@ -0,0 +1,68 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Acesso ao banco em cada Armazenamento, com 100 mil chaves: obter (existente e
+ * ausente) e gravarSeMaisNovo de chave uniforme; Varredura mede o SCAN do indice ordenado
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BancoJmh {
+    @Param({ "sincronizado", "concorrente", "compacto", "ordenado" })
+    public String tipo;
+
+    private Supplier<Object> obter;
+    private Supplier<Object> obterAusente;
+    private Supplier<Object> gravarSeMaisNovo;
+
+    @Setup
+    public void preparar() {
+        Cenarios cenarios = Cenarios.carregar();
+        obter = cenarios.operacao("banco." + tipo + ".obter");
+        obterAusente = cenarios.operacao("banco." + tipo + ".obterAusente");
+        gravarSeMaisNovo = cenarios.operacao("banco." + tipo + ".gravarSeMaisNovo");
+    }
+
+    @Benchmark
+    public Object obter() {
+        return obter.get();
+    }
+
+    @Benchmark
+    public Object obterAusente() {
+        return obterAusente.get();
+    }
+
+    @Benchmark
+    public Object gravarSeMaisNovo() {
+        return gravarSeMaisNovo.get();
+    }
+
+    // 100 chaves em ordem a partir de uma chave uniforme (so o armazenamento ordenado varre)
+    @State(Scope.Thread)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public static class Varredura {
+        private Supplier<Object> varrer;
+
+        @Setup
+        public void preparar() {
+            varrer = Cenarios.carregar().operacao("banco.ordenado.varrer100");
+        }
+
+        @Benchmark
+        public Object varrer100() {
+            return varrer.get();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package jmh;
+
+import java.util.function.Supplier;
+
+/*
+ * Ponte entre os benchmarks JMH e as classes do KVStore. O JMH recusa classe de
+ * benchmark no pacote padrao, e uma classe com pacote nao enxerga as do pacote
+ * padrao (todo o src/), entao cada benchmark pede aqui, no @Setup, a operacao que
+ * vai medir; CenariosJmh (bench/, pacote padrao) a monta.
+ * Cada fork do JMH roda um so benchmark: a chamada a Supplier.get ve uma unica
+ * classe e o JIT a embute, como se a operacao estivesse no metodo do benchmark.
+ */
+public interface Cenarios {
+    /*
+     * Operacao pelo nome, ex.: "protocolo.json.GET.codificar", "banco.compacto.obter", "get.atrasado"
+     */
+    Supplier<Object> operacao(String nome);
+
+    static Cenarios carregar() {
+        try {
+            return (Cenarios) Class.forName("CenariosJmh").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("CenariosJmh fora do classpath", e);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Decisao do tratarGET sobre um valor ja lido (Servidor.atualizado + respostaGet):
+ * valor atualizado (GET_OK), atrasado (WAIT_FOR_RESPONSE) e vencido por TTL
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetJmh {
+    @Param({ "atualizado", "atrasado", "vencido" })
+    public String caso;
+
+    private Supplier<Object> decidir;
+
+    @Setup
+    public void preparar() {
+        decidir = Cenarios.carregar().operacao("get." + caso);
+    }
+
+    @Benchmark
+    public Object decidir() {
+        return decidir.get();
+    }
+}
@@ -0,0 +1,43 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Serializacao de Mensagem: codificar/decodificar GET e GET_OK, JSON e binario
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MensagemJmh {
+    @Param({ "json", "binario" })
+    public String protocolo;
+
+    @Param({ "GET", "GET_OK" })
+    public String mensagem;
+
+    private Supplier<Object> codificar;
+    private Supplier<Object> decodificar;
+
+    @Setup
+    public void preparar() {
+        Cenarios cenarios = Cenarios.carregar();
+        String nome = "protocolo." + protocolo + "." + mensagem;
+        codificar = cenarios.operacao(nome + ".codificar");
+        decodificar = cenarios.operacao(nome + ".decodificar");
+    }
+
+    @Benchmark
+    public Object codificar() {
+        return codificar.get();
+    }
+
+    @Benchmark
+    public Object decodificar() {
+        return decodificar.get();
+    }
+}
@@ -0,0 +1,30 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/*
+ * Ferramenta de operacao: pede as metricas (STATS) a cada servidor informado e
+ * imprime o relatorio, uma linha "nome valor" por metrica (ver Metricas).
+ *
+ * Uso: java AdminStats ip:porta [ip:porta ...]
+ */
+public class AdminStats {
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Uso: java AdminStats ip:porta [ip:porta ...]");
+            return;
+        }
+        Mensagem stats = new Mensagem("STATS", null, null, 0, null, 0);
+        try (PoolConexoes pool = new PoolConexoes(1)) {
+            for (String arg : args) {
+                InetSocketAddress servidor = AnelHash.endereco(arg);
+                try {
+                    Mensagem resposta = pool.enviarEsperar(servidor, stats, 10000);
+                    System.out.println("== " + servidor + " ==");
+                    System.out.print(resposta.getValue() != null ? resposta.getValue() : resposta.getTipo() + "\n");
+                } catch (IOException e) {
+                    System.out.println(servidor + ": falha (" + e.getMessage() + ")");
+                }
+            }
+        }
+    }
+}
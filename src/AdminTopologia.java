@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Ferramenta de operacao: envia uma nova topologia de grupos (mesmo formato de
+ * kv.grupos) a todos os servidores dela. Usada para adicionar um grupo com o
+ * cluster no ar: os servidores novos sobem ja com a topologia nova em kv.grupos,
+ * depois esta ferramenta avisa os antigos, cujos lideres migram as chaves que
+ * mudaram de dono. Os antigos respondem com a topologia que tinham; numa segunda
+ * passada ela vai aos novos, que ate o fim da migracao buscam no dono anterior
+ * as chaves que ainda nao chegaram.
+ *
+ * Uso: java AdminTopologia "ip:porta,ip:porta,ip:porta;ip:porta,..."
+ */
+public class AdminTopologia {
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Uso: java AdminTopologia \"lider1,seguidor,...;lider2,seguidor,...\"");
+            return;
+        }
+        AnelHash anel = new AnelHash(args[0]);
+        Mensagem topologia = new Mensagem("TOPOLOGIA", null, anel.getDescricao(), 0, null, 0);
+        List<InetSocketAddress> semAnterior = new ArrayList<>();
+        String anterior = null;
+        try (PoolConexoes pool = new PoolConexoes(1)) {
+            for (AnelHash.Grupo grupo : anel.getGrupos()) {
+                for (InetSocketAddress servidor : grupo.getMembros()) {
+                    Mensagem resposta = enviar(pool, servidor, topologia);
+                    if (resposta != null && resposta.getValue() != null) {
+                        anterior = resposta.getValue();
+                    } else if (resposta != null && "TOPOLOGIA_OK".equals(resposta.getTipo())) {
+                        semAnterior.add(servidor);
+                    }
+                }
+            }
+            if (anterior == null) {
+                return;
+            }
+            Mensagem comAnterior = new Mensagem("TOPOLOGIA", anterior, anel.getDescricao(), 0, null, 0);
+            for (InetSocketAddress servidor : semAnterior) {
+                enviar(pool, servidor, comAnterior);
+            }
+        }
+    }
+
+    private static Mensagem enviar(PoolConexoes pool, InetSocketAddress servidor, Mensagem topologia) {
+        try {
+            Mensagem resposta = pool.enviarEsperar(servidor, topologia, 10000);
+            System.out.println(servidor + ": " + resposta.getTipo() +
+                    (resposta.getValue() != null ? " (" + resposta.getValue() + ")" : ""));
+            return resposta;
+        } catch (IOException e) {
+            System.out.println(servidor + ": falha (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/*
+ * Particionamento do espaco de chaves entre grupos (lider + seguidores) por
+ * hash consistente. Cada grupo ocupa kv.anel.vnos pontos no anel; a chave
+ * pertence ao grupo do primeiro ponto a partir do seu hash. Ao entrar um
+ * grupo novo, so as chaves que caem nos pontos dele mudam de dono.
+ *
+ * Topologia em texto (kv.grupos): grupos separados por ';', membros por ',',
+ * o primeiro membro e o lider inicial (depois de um failover o lider e outro
+ * membro; quem encaminha tenta o lider inicial e depois os demais).
+ * Ex.: "127.0.0.1:10097,127.0.0.1:10098;127.0.0.1:11097"
+ */
+public class AnelHash {
+    private static final int NOS_VIRTUAIS = Integer.getInteger("kv.anel.vnos", 64);
+
+    private final String descricao;
+    private final List<Grupo> grupos = new ArrayList<>();
+    private final TreeMap<Long, Grupo> anel = new TreeMap<>();
+
+    /*
+     * Grupo de replicacao: lider inicial e membros (o lider e o primeiro membro)
+     */
+    public static class Grupo {
+        final InetSocketAddress lider;
+        final List<InetSocketAddress> membros;
+
+        Grupo(List<InetSocketAddress> membros) {
+            this.lider = membros.get(0);
+            this.membros = Collections.unmodifiableList(membros);
+        }
+
+        public InetSocketAddress getLider() {
+            return lider;
+        }
+
+        public List<InetSocketAddress> getMembros() {
+            return membros;
+        }
+
+        @Override
+        public String toString() {
+            return lider.getHostString() + ":" + lider.getPort();
+        }
+    }
+
+    public AnelHash(String descricao) {
+        this.descricao = descricao.trim();
+        for (String textoGrupo : this.descricao.split(";")) {
+            if (textoGrupo.isBlank()) {
+                continue;
+            }
+            List<InetSocketAddress> membros = new ArrayList<>();
+            for (String membro : textoGrupo.split(",")) {
+                membros.add(endereco(membro.trim()));
+            }
+            Grupo grupo = new Grupo(membros);
+            grupos.add(grupo);
+            for (int i = 0; i < NOS_VIRTUAIS; i++) {
+                anel.put(hash(grupo + "#" + i), grupo);
+            }
+        }
+        if (grupos.isEmpty()) {
+            throw new IllegalArgumentException("Topologia sem grupos: " + descricao);
+        }
+    }
+
+    /*
+     * Grupo dono da chave
+     */
+    public Grupo grupoDe(String key) {
+        Map.Entry<Long, Grupo> ponto = anel.ceilingEntry(hash(key));
+        return ponto != null ? ponto.getValue() : anel.firstEntry().getValue();
+    }
+
+    /*
+     * Grupo do servidor dado (null se nao esta na topologia)
+     */
+    public Grupo grupoDoMembro(InetSocketAddress servidor) {
+        for (Grupo grupo : grupos) {
+            if (grupo.membros.contains(servidor)) {
+                return grupo;
+            }
+        }
+        return null;
+    }
+
+    public List<Grupo> getGrupos() {
+        return Collections.unmodifiableList(grupos);
+    }
+
+    public String getDescricao() {
+        return descricao;
+    }
+
+    /*
+     * "ip:porta" -> endereco
+     */
+    public static InetSocketAddress endereco(String texto) {
+        int separador = texto.lastIndexOf(':');
+        if (separador < 0) {
+            throw new IllegalArgumentException("Endereco invalido (esperado ip:porta): " + texto);
+        }
+        return new InetSocketAddress(texto.substring(0, separador), Integer.parseInt(texto.substring(separador + 1)));
+    }
+
+    /*
+     * FNV-1a de 64 bits seguido do finalizador do MurmurHash3 (espalha bem chaves parecidas)
+     */
+    static long hash(String texto) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < texto.length(); i++) {
+            h ^= texto.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
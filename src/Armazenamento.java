@@ -0,0 +1,119 @@
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/*
+ * Armazenamento do banco (key -> valor+timestamp).
+ * Toda escrita segue a regra de timestamp: so grava se o timestamp novo for
+ * maior ou igual ao atual, de forma atomica (REPLICATION atrasado nunca
+ * sobrescreve um valor mais novo).
+ * Leituras (obter/obterVarios) tocam o acesso da entrada, para o despejo.
+ */
+public interface Armazenamento {
+    DadoKV obter(String key);
+
+    // Leitura interna (indice, varredura): nao toca o acesso, nao conta para o despejo
+    DadoKV espiar(String key);
+
+    // Le varias chaves vendo um estado consistente (nao pega um lote pela metade)
+    Map<String, DadoKV> obterVarios(Collection<String> keys);
+
+    // Devolve true se gravou; false se ja havia valor mais novo
+    boolean gravarSeMaisNovo(String key, DadoKV dado);
+
+    // Compare-and-set: grava so se o timestamp atual for tsEsperado (0 = chave ausente)
+    boolean compararEGravar(String key, long tsEsperado, DadoKV dado);
+
+    // Remove a chave se o valor atual nao for mais novo que timestamp; true se removeu
+    boolean remover(String key, long timestamp);
+
+    // Aplica um lote de escritas atomicamente em relacao a obterVarios
+    // (valor null no lote = remocao daquela versao, ver aplicar)
+    void gravarLote(Map<String, DadoKV> lote);
+
+    int tamanho();
+
+    // Percorre todas as entradas (visao fracamente consistente, usada em snapshots)
+    void paraCada(BiConsumer<String, DadoKV> acao);
+
+    // Memoria aproximada ocupada pelas entradas, para o limite kv.memoria.maxMb
+    long bytesEstimados();
+
+    // Ate quantidade entradas de uma regiao sorteada do banco (candidatas ao despejo)
+    void amostrar(int quantidade, BiConsumer<String, DadoKV> acao);
+
+    // Varredura em ordem (SCAN): so no ArmazenamentoOrdenado, por cima de um destes
+
+    /*
+     * Cria a implementacao escolhida em kv.armazenamento
+     */
+    static Armazenamento criar(String tipo) {
+        switch (tipo) {
+            case "concorrente":
+                return new ArmazenamentoConcorrente();
+            case "sincronizado":
+                return new ArmazenamentoSincronizado();
+            case "compacto":
+                return new ArmazenamentoCompacto();
+            default:
+                throw new IllegalArgumentException("Armazenamento desconhecido: " + tipo);
+        }
+    }
+
+    // Escrita ou remocao (valor null), como vem de lotes de replicacao e do WAL
+    default void aplicar(String key, DadoKV dado) {
+        if (dado.valor == null) {
+            remover(key, dado.timestamp);
+        } else {
+            gravarSeMaisNovo(key, dado);
+        }
+    }
+
+    // Regra de timestamp compartilhada pelas implementacoes
+    static boolean maisNovo(DadoKV novo, DadoKV atual) {
+        return atual == null || novo.timestamp >= atual.timestamp;
+    }
+
+    // Custo fixo de uma entrada num mapa de objetos (no, String da key,
+    // DadoKV, String do valor), medido com bench/BenchMemoria
+    int CUSTO_ENTRADA = 150;
+
+    static long bytesEstimados(String key, DadoKV dado) {
+        return dado == null ? 0 : CUSTO_ENTRADA + key.length() + dado.valor.length();
+    }
+
+    /*
+     * Amostra de um mapa sem percorre-lo: para cada entrada, desce por trySplit
+     * escolhendo uma metade ao acaso ate um pedaco pequeno da tabela (o spliterator
+     * de HashMap/ConcurrentHashMap divide a tabela ao meio) e sorteia uma entrada
+     * dele. Uma descida por entrada, e nao varias entradas do mesmo pedaco: num
+     * pedaco ja desbastado pelo despejo sobram justamente as chaves mais usadas.
+     */
+    static void amostrar(Map<String, DadoKV> mapa, int quantidade, BiConsumer<String, DadoKV> acao) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // Pedacos vazios nao contam: ate 4 descidas por entrada pedida
+        int obtidas = 0;
+        for (int tentativa = 0; obtidas < quantidade && tentativa < 4 * quantidade; tentativa++) {
+            Spliterator<Map.Entry<String, DadoKV>> entradas = mapa.entrySet().spliterator();
+            Spliterator<Map.Entry<String, DadoKV>> metade;
+            while (entradas.estimateSize() > 8 && (metade = entradas.trySplit()) != null) {
+                if (random.nextBoolean()) {
+                    entradas = metade;
+                }
+            }
+            // Reservoir sampling de uma entrada do pedaco
+            List<Map.Entry<String, DadoKV>> sorteada = new ArrayList<>(1);
+            int[] vistas = {0};
+            entradas.forEachRemaining(entrada -> {
+                if (random.nextInt(++vistas[0]) == 0) {
+                    sorteada.clear();
+                    sorteada.add(entrada);
+                }
+            });
+            if (!sorteada.isEmpty()) {
+                acao.accept(sorteada.get(0).getKey(), sorteada.get(0).getValue());
+                obtidas++;
+            }
+        }
+    }
+}
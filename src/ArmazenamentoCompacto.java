@@ -0,0 +1,497 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+/*
+ * Armazenamento compacto (kv.armazenamento=compacto), para muitas entradas pequenas.
+ * Em vez de String da key + DadoKV + String do valor (tres objetos, UTF-16) por
+ * entrada, cada entrada e um registro de bytes numa arena de slabs de
+ * kv.compacto.slabMb MB (fora do heap com kv.compacto.foraDoHeap=true, o padrao):
+ *   [timestamp 8][capacidade do valor 4][tamanho key 4][tamanho valor 4][expira 8][acesso 4]
+ *   [key UTF-8][valor UTF-8]
+ * O indice e uma tabela de enderecamento aberto (sondagem linear) so de primitivos:
+ * long[] com o endereco do registro e int[] com o hash da key, para nao ler a
+ * arena em colisoes. Valor novo que cabe na capacidade do registro e gravado no
+ * lugar; maior, vai para um registro novo e o antigo vira lixo, recolhido por
+ * compactacao quando passa da metade da arena.
+ * Custo: obter decodifica o valor a cada leitura (cria o String e o DadoKV) e as
+ * escritas sao serializadas por um StampedLock (leituras em paralelo entre si).
+ * O acesso (PoliticaDespejo) e regravado no registro pela propria leitura, sob o
+ * read lock: leituras concorrentes podem perder um toque, sem importancia.
+ */
+public class ArmazenamentoCompacto implements Armazenamento {
+    private static final int CABECALHO = 32;
+    private static final int POS_EXPIRA = 20;
+    private static final int POS_ACESSO = 28;
+    private static final long VAZIO = 0;
+    private static final long REMOVIDO = -1;
+    private static final int CAPACIDADE_INICIAL = 1024;
+    private static final int SLOTS_POR_PASSO = 4096;
+
+    private final int tamanhoSlab;
+    private final boolean foraDoHeap;
+    private final StampedLock lock = new StampedLock();
+
+    // Arena: slabs preenchidos em sequencia; endereco = (slab << 32 | deslocamento) + 1
+    private List<ByteBuffer> slabs = new ArrayList<>();
+    private int posicaoSlab;
+    private long usados;
+    private long lixo;
+
+    // Indice: endereco (VAZIO, REMOVIDO ou registro) e hash da key por slot
+    private long[] enderecos = new long[CAPACIDADE_INICIAL];
+    private int[] hashes = new int[CAPACIDADE_INICIAL];
+    private int tamanho;
+    private int removidos;
+
+    // Muda quando o indice e reconstruido (paraCada recomeca)
+    private int epoca;
+
+    public ArmazenamentoCompacto() {
+        this(tamanhoSlab(Long.getLong("kv.compacto.slabMb", 64)),
+                Boolean.parseBoolean(System.getProperty("kv.compacto.foraDoHeap", "true")));
+    }
+
+    public ArmazenamentoCompacto(int tamanhoSlab, boolean foraDoHeap) {
+        this.tamanhoSlab = tamanhoSlab;
+        this.foraDoHeap = foraDoHeap;
+    }
+
+    /*
+     * Slab e um ByteBuffer, indexado por int: de 1 MB ate o que cabe em Integer.MAX_VALUE
+     */
+    private static int tamanhoSlab(long megabytes) {
+        long bytes = megabytes << 20;
+        if (megabytes < 1 || bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("kv.compacto.slabMb fora do intervalo 1.."
+                    + (Integer.MAX_VALUE >> 20) + ": " + megabytes);
+        }
+        return (int) bytes;
+    }
+
+    public DadoKV obter(String key) {
+        byte[] k = utf8(key);
+        int hash = espalhar(key.hashCode());
+        long stamp = lock.readLock();
+        try {
+            int slot = procurar(k, hash);
+            return slot >= 0 ? lerTocando(enderecos[slot]) : null;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public DadoKV espiar(String key) {
+        byte[] k = utf8(key);
+        int hash = espalhar(key.hashCode());
+        long stamp = lock.readLock();
+        try {
+            int slot = procurar(k, hash);
+            return slot >= 0 ? ler(enderecos[slot]) : null;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public Map<String, DadoKV> obterVarios(Collection<String> keys) {
+        Map<String, DadoKV> resultado = new HashMap<>();
+        long stamp = lock.readLock();
+        try {
+            for (String key : keys) {
+                int slot = procurar(utf8(key), espalhar(key.hashCode()));
+                resultado.put(key, slot >= 0 ? lerTocando(enderecos[slot]) : null);
+            }
+            return resultado;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean gravarSeMaisNovo(String key, DadoKV dado) {
+        long stamp = lock.writeLock();
+        try {
+            return gravar(key, dado, -1);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public boolean compararEGravar(String key, long tsEsperado, DadoKV dado) {
+        long stamp = lock.writeLock();
+        try {
+            return gravar(key, dado, tsEsperado);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public boolean remover(String key, long timestamp) {
+        long stamp = lock.writeLock();
+        try {
+            return removerInterno(key, timestamp);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void gravarLote(Map<String, DadoKV> lote) {
+        long stamp = lock.writeLock();
+        try {
+            for (Map.Entry<String, DadoKV> escrita : lote.entrySet()) {
+                if (escrita.getValue().valor == null) {
+                    removerInterno(escrita.getKey(), escrita.getValue().timestamp);
+                } else {
+                    gravar(escrita.getKey(), escrita.getValue(), -1);
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int tamanho() {
+        long stamp = lock.readLock();
+        try {
+            return tamanho;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /*
+     * Percorre o indice em pedacos, soltando o lock entre eles (escritas nao
+     * ficam paradas durante um snapshot). Se o indice for reconstruido no meio,
+     * recomeca: entradas podem se repetir, o que a regra de timestamp torna
+     * inofensivo para quem reaplica (snapshot, migracao).
+     */
+    public void paraCada(BiConsumer<String, DadoKV> acao) {
+        List<String> keys = new ArrayList<>(SLOTS_POR_PASSO);
+        List<DadoKV> dados = new ArrayList<>(SLOTS_POR_PASSO);
+        int inicio = 0;
+        int epocaVista = -1;
+        while (true) {
+            long stamp = lock.readLock();
+            try {
+                if (epocaVista != epoca) {
+                    inicio = 0;
+                    epocaVista = epoca;
+                }
+                if (inicio >= enderecos.length) {
+                    return;
+                }
+                int fim = Math.min(inicio + SLOTS_POR_PASSO, enderecos.length);
+                for (int slot = inicio; slot < fim; slot++) {
+                    long endereco = enderecos[slot];
+                    if (endereco != VAZIO && endereco != REMOVIDO) {
+                        keys.add(lerKey(endereco));
+                        dados.add(ler(endereco));
+                    }
+                }
+                inicio = fim;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                acao.accept(keys.get(i), dados.get(i));
+            }
+            keys.clear();
+            dados.clear();
+        }
+    }
+
+    // Registros vivos mais o indice (o lixo ainda nao compactado nao conta)
+    public long bytesEstimados() {
+        long stamp = lock.readLock();
+        try {
+            return usados - lixo + enderecos.length * (long) (Long.BYTES + Integer.BYTES);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /*
+     * Ate quantidade registros vivos a partir de um slot sorteado do indice
+     */
+    public void amostrar(int quantidade, BiConsumer<String, DadoKV> acao) {
+        List<String> keys = new ArrayList<>(quantidade);
+        List<DadoKV> dados = new ArrayList<>(quantidade);
+        long stamp = lock.readLock();
+        try {
+            int mascara = enderecos.length - 1;
+            int slot = ThreadLocalRandom.current().nextInt(enderecos.length);
+            for (int i = 0; i < enderecos.length && keys.size() < quantidade; i++, slot = (slot + 1) & mascara) {
+                long endereco = enderecos[slot];
+                if (endereco != VAZIO && endereco != REMOVIDO) {
+                    keys.add(lerKey(endereco));
+                    dados.add(ler(endereco));
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            acao.accept(keys.get(i), dados.get(i));
+        }
+    }
+
+    /*
+     * Bytes reservados na arena (fora do heap se isForaDoHeap) e no indice
+     */
+    public long bytesArena() {
+        long stamp = lock.readLock();
+        try {
+            long total = 0;
+            for (ByteBuffer slab : slabs) {
+                total += slab.capacity();
+            }
+            return total;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long bytesIndice() {
+        long stamp = lock.readLock();
+        try {
+            return enderecos.length * (long) (Long.BYTES + Integer.BYTES);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean isForaDoHeap() {
+        return foraDoHeap;
+    }
+
+    // tsEsperado < 0: regra de timestamp; senao compare-and-set (0 = chave ausente)
+    private boolean gravar(String key, DadoKV dado, long tsEsperado) {
+        byte[] k = utf8(key);
+        byte[] v = utf8(dado.valor);
+        int hash = espalhar(key.hashCode());
+        int slot = procurar(k, hash);
+        if (slot >= 0) {
+            long atual = lerTimestamp(enderecos[slot]);
+            if (tsEsperado < 0 ? dado.timestamp < atual : atual != tsEsperado) {
+                return false;
+            }
+            regravar(slot, k, v, dado);
+            return true;
+        }
+        if (tsEsperado > 0) {
+            return false;
+        }
+        slot = -slot - 1;
+        if (enderecos[slot] == REMOVIDO) {
+            removidos--;
+        }
+        enderecos[slot] = novoRegistro(k, v, dado.timestamp, dado.expira, dado.acesso);
+        hashes[slot] = hash;
+        tamanho++;
+        if ((tamanho + removidos) * 4L > enderecos.length * 3L) {
+            // Muitas remocoes: reconstroi no mesmo tamanho; senao dobra
+            reconstruirIndice(tamanho * 2L > enderecos.length ? enderecos.length * 2 : enderecos.length);
+        }
+        return true;
+    }
+
+    private boolean removerInterno(String key, long timestamp) {
+        int slot = procurar(utf8(key), espalhar(key.hashCode()));
+        if (slot < 0 || lerTimestamp(enderecos[slot]) > timestamp) {
+            return false;
+        }
+        lixo += tamanhoRegistro(enderecos[slot]);
+        enderecos[slot] = REMOVIDO;
+        tamanho--;
+        removidos++;
+        compactarSePreciso();
+        return true;
+    }
+
+    /*
+     * Slot da key (>= 0) ou -(slot para inserir) - 1
+     */
+    private int procurar(byte[] key, int hash) {
+        int mascara = enderecos.length - 1;
+        int livre = -1;
+        for (int slot = hash & mascara; ; slot = (slot + 1) & mascara) {
+            long endereco = enderecos[slot];
+            if (endereco == VAZIO) {
+                return -(livre >= 0 ? livre : slot) - 1;
+            }
+            if (endereco == REMOVIDO) {
+                if (livre < 0) {
+                    livre = slot;
+                }
+            } else if (hashes[slot] == hash && keyIgual(endereco, key)) {
+                return slot;
+            }
+        }
+    }
+
+    private void regravar(int slot, byte[] key, byte[] valor, DadoKV dado) {
+        long endereco = enderecos[slot];
+        ByteBuffer slab = slab(endereco);
+        int inicio = deslocamento(endereco);
+        if (valor.length <= slab.getInt(inicio + 8)) {
+            // Cabe no registro atual: grava no lugar
+            slab.putLong(inicio, dado.timestamp);
+            slab.putInt(inicio + 16, valor.length);
+            slab.putLong(inicio + POS_EXPIRA, dado.expira);
+            slab.putInt(inicio + POS_ACESSO, dado.acesso);
+            slab.put(inicio + CABECALHO + key.length, valor);
+            return;
+        }
+        lixo += tamanhoRegistro(endereco);
+        enderecos[slot] = novoRegistro(key, valor, dado.timestamp, dado.expira, dado.acesso);
+        compactarSePreciso();
+    }
+
+    private long novoRegistro(byte[] key, byte[] valor, long timestamp, long expira, int acesso) {
+        int tamanhoRegistro = CABECALHO + key.length + valor.length;
+        if (slabs.isEmpty() || posicaoSlab + tamanhoRegistro > slabs.get(slabs.size() - 1).capacity()) {
+            slabs.add(foraDoHeap ? ByteBuffer.allocateDirect(Math.max(tamanhoSlab, tamanhoRegistro))
+                    : ByteBuffer.allocate(Math.max(tamanhoSlab, tamanhoRegistro)));
+            posicaoSlab = 0;
+        }
+        ByteBuffer slab = slabs.get(slabs.size() - 1);
+        int inicio = posicaoSlab;
+        slab.putLong(inicio, timestamp);
+        slab.putInt(inicio + 8, valor.length);
+        slab.putInt(inicio + 12, key.length);
+        slab.putInt(inicio + 16, valor.length);
+        slab.putLong(inicio + POS_EXPIRA, expira);
+        slab.putInt(inicio + POS_ACESSO, acesso);
+        slab.put(inicio + CABECALHO, key);
+        slab.put(inicio + CABECALHO + key.length, valor);
+        posicaoSlab += tamanhoRegistro;
+        usados += tamanhoRegistro;
+        return (((long) (slabs.size() - 1) << 32) | inicio) + 1;
+    }
+
+    /*
+     * Mais da metade da arena e lixo: copia os registros vivos para slabs novos
+     * (os slots do indice nao mudam, so os enderecos)
+     */
+    private void compactarSePreciso() {
+        if (lixo * 2 <= usados || usados < tamanhoSlab) {
+            return;
+        }
+        List<ByteBuffer> antigos = slabs;
+        long[] antigosEnderecos = enderecos.clone();
+        slabs = new ArrayList<>();
+        posicaoSlab = 0;
+        usados = 0;
+        lixo = 0;
+        for (int slot = 0; slot < enderecos.length; slot++) {
+            long endereco = antigosEnderecos[slot];
+            if (endereco != VAZIO && endereco != REMOVIDO) {
+                ByteBuffer slab = antigos.get((int) ((endereco - 1) >>> 32));
+                int inicio = deslocamento(endereco);
+                byte[] key = new byte[slab.getInt(inicio + 12)];
+                byte[] valor = new byte[slab.getInt(inicio + 16)];
+                slab.get(inicio + CABECALHO, key);
+                slab.get(inicio + CABECALHO + key.length, valor);
+                enderecos[slot] = novoRegistro(key, valor, slab.getLong(inicio),
+                        slab.getLong(inicio + POS_EXPIRA), slab.getInt(inicio + POS_ACESSO));
+            }
+        }
+    }
+
+    private void reconstruirIndice(int capacidade) {
+        long[] antigosEnderecos = enderecos;
+        int[] antigosHashes = hashes;
+        enderecos = new long[capacidade];
+        hashes = new int[capacidade];
+        removidos = 0;
+        int mascara = capacidade - 1;
+        for (int i = 0; i < antigosEnderecos.length; i++) {
+            long endereco = antigosEnderecos[i];
+            if (endereco != VAZIO && endereco != REMOVIDO) {
+                int slot = antigosHashes[i] & mascara;
+                while (enderecos[slot] != VAZIO) {
+                    slot = (slot + 1) & mascara;
+                }
+                enderecos[slot] = endereco;
+                hashes[slot] = antigosHashes[i];
+            }
+        }
+        epoca++;
+    }
+
+    private boolean keyIgual(long endereco, byte[] key) {
+        ByteBuffer slab = slab(endereco);
+        int inicio = deslocamento(endereco);
+        if (slab.getInt(inicio + 12) != key.length) {
+            return false;
+        }
+        int base = inicio + CABECALHO;
+        for (int i = 0; i < key.length; i++) {
+            if (slab.get(base + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private DadoKV ler(long endereco) {
+        ByteBuffer slab = slab(endereco);
+        int inicio = deslocamento(endereco);
+        byte[] valor = new byte[slab.getInt(inicio + 16)];
+        slab.get(inicio + CABECALHO + slab.getInt(inicio + 12), valor);
+        DadoKV dado = new DadoKV(new String(valor, StandardCharsets.UTF_8), slab.getLong(inicio),
+                slab.getLong(inicio + POS_EXPIRA));
+        dado.acesso = slab.getInt(inicio + POS_ACESSO);
+        return dado;
+    }
+
+    // Leitura de cliente: devolve o dado e regrava o acesso tocado
+    private DadoKV lerTocando(long endereco) {
+        DadoKV dado = ler(endereco);
+        dado.tocar();
+        slab(endereco).putInt(deslocamento(endereco) + POS_ACESSO, dado.acesso);
+        return dado;
+    }
+
+    private String lerKey(long endereco) {
+        ByteBuffer slab = slab(endereco);
+        int inicio = deslocamento(endereco);
+        byte[] key = new byte[slab.getInt(inicio + 12)];
+        slab.get(inicio + CABECALHO, key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private long lerTimestamp(long endereco) {
+        return slab(endereco).getLong(deslocamento(endereco));
+    }
+
+    private int tamanhoRegistro(long endereco) {
+        ByteBuffer slab = slab(endereco);
+        int inicio = deslocamento(endereco);
+        return CABECALHO + slab.getInt(inicio + 12) + slab.getInt(inicio + 8);
+    }
+
+    private ByteBuffer slab(long endereco) {
+        return slabs.get((int) ((endereco - 1) >>> 32));
+    }
+
+    private static int deslocamento(long endereco) {
+        return (int) (endereco - 1);
+    }
+
+    private static byte[] utf8(String texto) {
+        return texto.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Finalizador do MurmurHash3: String.hashCode sozinho agrupa keys parecidas na sondagem linear
+    private static int espalhar(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
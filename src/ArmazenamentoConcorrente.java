@@ -0,0 +1,123 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+/*
+ * Armazenamento de alta concorrencia (padrao, kv.armazenamento=concorrente).
+ * - obter: leitura sem lock (ConcurrentHashMap.get)
+ * - gravarSeMaisNovo/compararEGravar: compara timestamps e grava atomicamente por chave (compute)
+ * - gravarLote/obterVarios: o lote segura o write lock de um StampedLock e
+ *   a leitura de varias chaves e otimista, refeita se um lote passou no meio
+ */
+public class ArmazenamentoConcorrente implements Armazenamento {
+    private final ConcurrentHashMap<String, DadoKV> banco = new ConcurrentHashMap<>();
+    private final StampedLock lotes = new StampedLock();
+
+    // Soma de Armazenamento.bytesEstimados das entradas, atualizada dentro do compute
+    private final LongAdder bytes = new LongAdder();
+
+    public DadoKV obter(String key) {
+        DadoKV dado = banco.get(key);
+        if (dado != null) {
+            dado.tocar();
+        }
+        return dado;
+    }
+
+    public DadoKV espiar(String key) {
+        return banco.get(key);
+    }
+
+    public Map<String, DadoKV> obterVarios(Collection<String> keys) {
+        Map<String, DadoKV> resultado = new HashMap<>();
+        long stamp = lotes.tryOptimisticRead();
+        for (String key : keys) {
+            resultado.put(key, banco.get(key));
+        }
+        if (lotes.validate(stamp)) {
+            tocar(resultado);
+            return resultado;
+        }
+        // Um lote foi aplicado durante a leitura: rele bloqueando os lotes
+        stamp = lotes.readLock();
+        try {
+            for (String key : keys) {
+                resultado.put(key, banco.get(key));
+            }
+        } finally {
+            lotes.unlockRead(stamp);
+        }
+        tocar(resultado);
+        return resultado;
+    }
+
+    private static void tocar(Map<String, DadoKV> dados) {
+        for (DadoKV dado : dados.values()) {
+            if (dado != null) {
+                dado.tocar();
+            }
+        }
+    }
+
+    public boolean gravarSeMaisNovo(String key, DadoKV dado) {
+        boolean[] gravou = new boolean[1];
+        banco.compute(key, (k, atual) -> {
+            gravou[0] = Armazenamento.maisNovo(dado, atual);
+            return gravou[0] ? trocar(k, atual, dado) : atual;
+        });
+        return gravou[0];
+    }
+
+    public boolean compararEGravar(String key, long tsEsperado, DadoKV dado) {
+        boolean[] gravou = new boolean[1];
+        banco.compute(key, (k, atual) -> {
+            gravou[0] = (atual == null ? 0 : atual.timestamp) == tsEsperado;
+            return gravou[0] ? trocar(k, atual, dado) : atual;
+        });
+        return gravou[0];
+    }
+
+    public boolean remover(String key, long timestamp) {
+        boolean[] removeu = new boolean[1];
+        banco.computeIfPresent(key, (k, atual) -> {
+            removeu[0] = atual.timestamp <= timestamp;
+            return removeu[0] ? trocar(k, atual, null) : atual;
+        });
+        return removeu[0];
+    }
+
+    public void gravarLote(Map<String, DadoKV> lote) {
+        long stamp = lotes.writeLock();
+        try {
+            for (Map.Entry<String, DadoKV> escrita : lote.entrySet()) {
+                aplicar(escrita.getKey(), escrita.getValue());
+            }
+        } finally {
+            lotes.unlockWrite(stamp);
+        }
+    }
+
+    // Chamado dentro do compute: contabiliza a troca de atual por novo
+    private DadoKV trocar(String key, DadoKV atual, DadoKV novo) {
+        bytes.add(Armazenamento.bytesEstimados(key, novo) - Armazenamento.bytesEstimados(key, atual));
+        return novo;
+    }
+
+    public int tamanho() {
+        return banco.size();
+    }
+
+    public void paraCada(BiConsumer<String, DadoKV> acao) {
+        banco.forEach(acao);
+    }
+
+    public long bytesEstimados() {
+        return bytes.sum();
+    }
+
+    public void amostrar(int quantidade, BiConsumer<String, DadoKV> acao) {
+        Armazenamento.amostrar(banco, quantidade, acao);
+    }
+}
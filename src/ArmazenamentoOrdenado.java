@@ -0,0 +1,121 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/*
+ * Indice ordenado das chaves ao lado de outro armazenamento (kv.indice.ordenado),
+ * para SCAN por faixa: um ConcurrentSkipListSet com as keys, sem trava, atualizado
+ * depois de cada escrita/remocao no armazenamento de baixo (que continua
+ * respondendo as leituras por chave).
+ * O indice tem pelo menos as chaves do banco: toda escrita grava e depois indexa;
+ * a remocao tira do indice e confere o banco de novo, reindexando se uma escrita
+ * concorrente recolocou a chave. Uma key no indice que ja saiu do banco e pulada.
+ * O indice e a varredura leem o banco com espiar: um SCAN nao torna quentes, para
+ * o despejo (LRU/LFU), todas as chaves que percorre.
+ */
+public class ArmazenamentoOrdenado implements Armazenamento {
+    // Custo por chave do no do skip list (no, torres de indice), somado a bytesEstimados
+    private static final int CUSTO_INDICE = 48;
+
+    private final Armazenamento banco;
+    private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+
+    public ArmazenamentoOrdenado(Armazenamento banco) {
+        this.banco = banco;
+    }
+
+    public DadoKV obter(String key) {
+        return banco.obter(key);
+    }
+
+    public DadoKV espiar(String key) {
+        return banco.espiar(key);
+    }
+
+    public Map<String, DadoKV> obterVarios(Collection<String> keys) {
+        return banco.obterVarios(keys);
+    }
+
+    public boolean gravarSeMaisNovo(String key, DadoKV dado) {
+        boolean gravou = banco.gravarSeMaisNovo(key, dado);
+        keys.add(key);
+        return gravou;
+    }
+
+    public boolean compararEGravar(String key, long tsEsperado, DadoKV dado) {
+        boolean gravou = banco.compararEGravar(key, tsEsperado, dado);
+        if (gravou) {
+            keys.add(key);
+        }
+        return gravou;
+    }
+
+    public boolean remover(String key, long timestamp) {
+        boolean removeu = banco.remover(key, timestamp);
+        if (removeu) {
+            desindexar(key);
+        }
+        return removeu;
+    }
+
+    public void gravarLote(Map<String, DadoKV> lote) {
+        banco.gravarLote(lote);
+        for (Map.Entry<String, DadoKV> escrita : lote.entrySet()) {
+            if (escrita.getValue().valor != null) {
+                keys.add(escrita.getKey());
+            } else {
+                desindexar(escrita.getKey());
+            }
+        }
+    }
+
+    private void desindexar(String key) {
+        keys.remove(key);
+        if (banco.espiar(key) != null) {
+            keys.add(key);
+        }
+    }
+
+    public int tamanho() {
+        return banco.tamanho();
+    }
+
+    public void paraCada(BiConsumer<String, DadoKV> acao) {
+        banco.paraCada(acao);
+    }
+
+    public long bytesEstimados() {
+        return banco.bytesEstimados() + (long) CUSTO_INDICE * keys.size();
+    }
+
+    public void amostrar(int quantidade, BiConsumer<String, DadoKV> acao) {
+        banco.amostrar(quantidade, acao);
+    }
+
+    /*
+     * Percorre em ordem as chaves de [inicio, fim) (null = sem limite) enquanto
+     * acao devolver true. Fracamente consistente: cada chave vem com a versao
+     * atual no momento em que e lida.
+     */
+    public void varrer(String inicio, String fim, BiPredicate<String, DadoKV> acao) {
+        NavigableSet<String> faixa;
+        if (inicio == null && fim == null) {
+            faixa = keys;
+        } else if (inicio == null) {
+            faixa = keys.headSet(fim, false);
+        } else if (fim == null) {
+            faixa = keys.tailSet(inicio, true);
+        } else if (inicio.compareTo(fim) >= 0) {
+            return;
+        } else {
+            faixa = keys.subSet(inicio, true, fim, false);
+        }
+        for (String key : faixa) {
+            DadoKV dado = banco.espiar(key);
+            if (dado != null && !acao.test(key, dado)) {
+                return;
+            }
+        }
+    }
+}
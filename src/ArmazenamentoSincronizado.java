@@ -0,0 +1,92 @@
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/*
+ * Implementacao original: HashMap protegido por um unico monitor.
+ * Mantida para comparacao (kv.armazenamento=sincronizado).
+ */
+public class ArmazenamentoSincronizado implements Armazenamento {
+    private final Map<String, DadoKV> banco = new HashMap<>();
+    private long bytes;
+
+    public synchronized DadoKV obter(String key) {
+        DadoKV dado = banco.get(key);
+        if (dado != null) {
+            dado.tocar();
+        }
+        return dado;
+    }
+
+    public synchronized DadoKV espiar(String key) {
+        return banco.get(key);
+    }
+
+    public synchronized Map<String, DadoKV> obterVarios(Collection<String> keys) {
+        Map<String, DadoKV> resultado = new HashMap<>();
+        for (String key : keys) {
+            DadoKV dado = banco.get(key);
+            if (dado != null) {
+                dado.tocar();
+            }
+            resultado.put(key, dado);
+        }
+        return resultado;
+    }
+
+    public synchronized boolean gravarSeMaisNovo(String key, DadoKV dado) {
+        if (!Armazenamento.maisNovo(dado, banco.get(key))) {
+            return false;
+        }
+        trocar(key, banco.put(key, dado), dado);
+        return true;
+    }
+
+    public synchronized boolean compararEGravar(String key, long tsEsperado, DadoKV dado) {
+        DadoKV atual = banco.get(key);
+        if ((atual == null ? 0 : atual.timestamp) != tsEsperado) {
+            return false;
+        }
+        trocar(key, banco.put(key, dado), dado);
+        return true;
+    }
+
+    public synchronized boolean remover(String key, long timestamp) {
+        DadoKV atual = banco.get(key);
+        if (atual == null || atual.timestamp > timestamp) {
+            return false;
+        }
+        trocar(key, banco.remove(key), null);
+        return true;
+    }
+
+    private void trocar(String key, DadoKV antigo, DadoKV novo) {
+        bytes += Armazenamento.bytesEstimados(key, novo) - Armazenamento.bytesEstimados(key, antigo);
+    }
+
+    public synchronized void gravarLote(Map<String, DadoKV> lote) {
+        for (Map.Entry<String, DadoKV> escrita : lote.entrySet()) {
+            aplicar(escrita.getKey(), escrita.getValue());
+        }
+    }
+
+    public synchronized int tamanho() {
+        return banco.size();
+    }
+
+    public void paraCada(BiConsumer<String, DadoKV> acao) {
+        // Copia sob o monitor para nao segurar o banco durante a acao
+        Map<String, DadoKV> copia;
+        synchronized (this) {
+            copia = new HashMap<>(banco);
+        }
+        copia.forEach(acao);
+    }
+
+    public synchronized long bytesEstimados() {
+        return bytes;
+    }
+
+    public synchronized void amostrar(int quantidade, BiConsumer<String, DadoKV> acao) {
+        Armazenamento.amostrar(banco, quantidade, acao);
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.*;
+
+/*
+ * Resumo do banco em arvore de hashes de dois niveis, para comparar lider e
+ * seguidor sem transferir as chaves: BALDES folhas (cada chave cai numa folha
+ * pelo hash dela), agrupadas em nos de FOLHAS_POR_NO folhas.
+ * O hash de uma folha e a soma dos hashes de (key, valor, timestamp, expira) das
+ * suas chaves, entao nao depende da ordem de iteracao do banco.
+ * Sincronizacao: compara os nos; dos nos diferentes, compara as folhas; so as
+ * chaves das folhas diferentes sao transferidas, em fatias (outros bits do mesmo
+ * hash) quando uma folha nao cabe numa mensagem.
+ */
+public class ArvoreMerkle {
+    public static final int BALDES = 1024;
+    public static final int FOLHAS_POR_NO = 32;
+    public static final int NOS = BALDES / FOLHAS_POR_NO;
+
+    private final long[] folhas = new long[BALDES];
+
+    public static ArvoreMerkle de(Armazenamento banco) {
+        ArvoreMerkle arvore = new ArvoreMerkle();
+        banco.paraCada((key, dado) -> arvore.folhas[balde(key)] += hash(key, dado));
+        return arvore;
+    }
+
+    public static int balde(String key) {
+        return Math.floorMod(AnelHash.hash(key), BALDES);
+    }
+
+    /*
+     * Fatia (0 a fatias - 1) da chave dentro da folha, para transferir uma folha grande
+     * em partes: fatias e potencia de 2, e a fatia i de n se divide nas fatias i e i + n de 2n
+     */
+    public static int fatia(String key, int fatias) {
+        return (int) ((AnelHash.hash(key) >>> 32) & (fatias - 1));
+    }
+
+    private static long hash(String key, DadoKV dado) {
+        return AnelHash.hash(key + '\u0000' + dado.valor + '\u0000' + dado.timestamp + '\u0000' + dado.expira);
+    }
+
+    public long folha(int balde) {
+        return folhas[balde];
+    }
+
+    public long no(int indice) {
+        long soma = 0;
+        for (int i = indice * FOLHAS_POR_NO; i < (indice + 1) * FOLHAS_POR_NO; i++) {
+            soma += folhas[i];
+        }
+        return soma;
+    }
+
+    public long[] nos() {
+        long[] nos = new long[NOS];
+        for (int i = 0; i < NOS; i++) {
+            nos[i] = no(i);
+        }
+        return nos;
+    }
+
+    public long[] folhasDoNo(int indice) {
+        return Arrays.copyOfRange(folhas, indice * FOLHAS_POR_NO, (indice + 1) * FOLHAS_POR_NO);
+    }
+
+    /*
+     * Hashes em texto (hexadecimal separado por ',') para ir no value de uma Mensagem
+     */
+    public static String texto(long[] hashes) {
+        StringBuilder texto = new StringBuilder(hashes.length * 17);
+        for (long hash : hashes) {
+            texto.append(texto.length() > 0 ? "," : "").append(Long.toHexString(hash));
+        }
+        return texto.toString();
+    }
+
+    public static long[] hashes(String texto) {
+        String[] partes = texto.split(",");
+        long[] hashes = new long[partes.length];
+        for (int i = 0; i < partes.length; i++) {
+            hashes[i] = Long.parseUnsignedLong(partes[i], 16);
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,220 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Assinaturas WATCH (change data capture): uma conexao pede as escritas aplicadas
+ * neste servidor de uma chave (key), de um prefixo (key + value "prefixo") ou
+ * todas (key null), e recebe:
+ *   WATCH_OK (parcial, key = token da assinatura; UNWATCH com key = token cancela)
+ *   WATCH_EVENTOS (parcial, itens REPLICATION/REMOCAO na ordem aplicada;
+ *                  timestamp = posicao no historico, para retomar dali)
+ *   WATCH_FIM (final, value = motivo: cancelada, atrasada)
+ * ou WATCH_FAIL se a posicao pedida (timestamp do WATCH) ja saiu do historico.
+ *
+ * Os eventos saem do LogReplicacao, o mesmo historico do catch-up: cada assinatura
+ * e uma tarefa que, agendada, le um lote do historico a partir da sua seq, filtra,
+ * envia e se agenda de novo (no fim da fila) se ha mais; em dia com o historico fica
+ * parada ate o proximo avisar. A replicacao so agenda (avisar), entao uma assinatura
+ * lenta nunca segura o tratarREPLICATION: ela fica para tras no historico. As tarefas
+ * rodam em threads virtuais (se a JVM em execucao for 21+; o build e para Java 17) ou,
+ * sem elas, num despacho compartilhado de kv.watch.despachantes threads, nunca uma
+ * thread por assinatura. Os eventos saem por Canal.enviarEmFluxo, que nao bloqueia
+ * (socket ou NIO), e a tarefa so le o proximo lote depois que o canal desafogar
+ * (isCongestionado): cada assinatura tem no maximo um lote de eventos em transito e
+ * um cliente lento nunca segura uma thread do despacho. Se o historico descartar
+ * o que ela ainda nao leu (kv.sync.logEscritas), termina com WATCH_FIM atrasada e o
+ * cliente retoma com outro WATCH (timestamp = ultima posicao recebida) ou relendo.
+ * Retomar entrega de novo o lote daquela posicao: eventos sao "pelo menos uma vez",
+ * e reaplicar e inofensivo pela regra de timestamp.
+ */
+public class Assinaturas {
+    private static final int LOTE = Integer.getInteger("kv.watch.lote", 256);
+    private static final long LOTE_BYTES = Long.getLong("kv.watch.loteBytes", 4 << 20);
+    private static final int MAX_ASSINATURAS = Integer.getInteger("kv.watch.maxAssinaturas", 1000);
+
+    private static final int DESPACHANTES = Integer.getInteger("kv.watch.despachantes",
+            Runtime.getRuntime().availableProcessors());
+
+    // Sem aviso, as assinaturas paradas conferem de tempos em tempos se a conexao ainda esta aberta
+    private static final long ESPERA_MS = 1000;
+    private static final long ESPERA_CONGESTIONADO_MS = 1;
+
+    private final ExecutorService despacho = criarDespacho();
+    private final ScheduledExecutorService relogio = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+        Thread thread = new Thread(tarefa, "watch-relogio");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LogReplicacao historico;
+    private final Map<String, Assinatura> ativas = new ConcurrentHashMap<>();
+    private final AtomicLong proximoToken = new AtomicLong(1);
+    private final LongAdder eventos = Metricas.contador("watch.eventos");
+    private final LongAdder atrasadas = Metricas.contador("watch.atrasadas");
+
+    public Assinaturas(LogReplicacao historico) {
+        this.historico = historico;
+        Metricas.medidor("watch.assinaturas", ativas::size);
+        relogio.scheduleWithFixedDelay(this::avisar, ESPERA_MS, ESPERA_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static ExecutorService criarDespacho() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(DESPACHANTES, tarefa -> {
+                Thread thread = new Thread(tarefa, "watch-despacho");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /*
+     * Cria a assinatura pedida no WATCH; os eventos seguem pelo canal com o id do pedido
+     */
+    public void assinar(Canal canal, Mensagem pedido) {
+        long seq = pedido.getTimestamp() > 0 ? historico.seqDesde(pedido.getTimestamp()) : historico.fim();
+        if (seq < 0 || ativas.size() >= MAX_ASSINATURAS) {
+            Mensagem falha = new Mensagem("WATCH_FAIL", null, seq < 0 ? "historico" : "limite", 0, null, 0);
+            falha.setId(pedido.getId());
+            canal.enviar(falha);
+            return;
+        }
+        Assinatura assinatura = new Assinatura(String.valueOf(proximoToken.getAndIncrement()), canal, pedido, seq);
+        ativas.put(assinatura.token, assinatura);
+        Mensagem ok = new Mensagem("WATCH_OK", assinatura.token, null, 0, null, 0);
+        ok.setId(pedido.getId());
+        canal.enviar(ok);
+        assinatura.agendar();
+    }
+
+    /*
+     * UNWATCH: encerra a assinatura do token; false se nao existe (ja terminou)
+     */
+    public boolean cancelar(String token) {
+        Assinatura assinatura = token == null ? null : ativas.get(token);
+        if (assinatura == null) {
+            return false;
+        }
+        assinatura.cancelada = true;
+        assinatura.agendar();
+        return true;
+    }
+
+    /*
+     * Chamado depois de registrar um lote no historico (ou de reinicia-lo): so agenda
+     */
+    public void avisar() {
+        for (Assinatura assinatura : ativas.values()) {
+            assinatura.agendar();
+        }
+    }
+
+    private class Assinatura implements Runnable {
+        final String token;
+        final Canal canal;
+        final long id;
+        final String key;
+        final boolean prefixo;
+        final int lote;
+        // Uma execucao por vez (como CanalNio.agendado); aviso = lote novo desde o inicio dela
+        final AtomicBoolean agendada = new AtomicBoolean();
+        volatile boolean aviso;
+        volatile boolean cancelada;
+        // So a execucao agendada mexe
+        long seq;
+
+        Assinatura(String token, Canal canal, Mensagem pedido, long seq) {
+            this.token = token;
+            this.canal = canal;
+            this.id = pedido.getId();
+            this.key = pedido.getKey();
+            this.prefixo = "prefixo".equals(pedido.getValue());
+            this.lote = pedido.getLimite() > 0 ? Math.min(pedido.getLimite(), LOTE) : LOTE;
+            this.seq = seq;
+        }
+
+        void agendar() {
+            aviso = true;
+            if (agendada.compareAndSet(false, true)) {
+                despacho.execute(this);
+            }
+        }
+
+        public void run() {
+            try {
+                passo();
+            } catch (RuntimeException e) {
+                ativas.remove(token);
+                throw e;
+            }
+        }
+
+        // Le e envia um lote; a assinatura continua agendada enquanto ha o que ler
+        private void passo() {
+            aviso = false;
+            if (cancelada || !canal.isAberto()) {
+                terminar("cancelada");
+                return;
+            }
+            if (canal.isCongestionado()) {
+                // Lote anterior ainda saindo: tenta de novo em instantes, sem ocupar o despacho
+                relogio.schedule(() -> despacho.execute(this), ESPERA_CONGESTIONADO_MS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            LogReplicacao.Trecho trecho = historico.continuar(seq, lote, LOTE_BYTES);
+            if (trecho == null) {
+                atrasadas.increment();
+                terminar("atrasada");
+                return;
+            }
+            seq = trecho.seguinte;
+            List<Mensagem> filtrados = filtrar(trecho.itens);
+            if (!filtrados.isEmpty()) {
+                Mensagem evento = new Mensagem("WATCH_EVENTOS", null, null, trecho.posicao, null, 0);
+                evento.setItens(filtrados);
+                evento.setId(id);
+                canal.enviarEmFluxo(evento);
+                eventos.add(filtrados.size());
+            }
+            if (trecho.proximaSeq >= 0) {
+                // Ha mais lotes: volta para o fim da fila, dando a vez as outras assinaturas
+                despacho.execute(this);
+                return;
+            }
+            // Em dia com o historico: para ate o proximo avisar
+            agendada.set(false);
+            // Lote registrado entre a leitura e o set(false)
+            if (aviso && agendada.compareAndSet(false, true)) {
+                despacho.execute(this);
+            }
+        }
+
+        // Fim da assinatura; ela fica marcada como agendada e nao roda mais
+        private void terminar(String motivo) {
+            ativas.remove(token);
+            if (canal.isAberto()) {
+                Mensagem fim = new Mensagem("WATCH_FIM", token, motivo, 0, null, 0);
+                fim.setId(id);
+                // Pelo fluxo, para sair depois dos eventos ainda na fila do canal
+                canal.enviarEmFluxo(fim);
+            }
+        }
+
+        private List<Mensagem> filtrar(List<Mensagem> itens) {
+            if (key == null) {
+                return itens;
+            }
+            List<Mensagem> filtrados = new ArrayList<>();
+            for (Mensagem item : itens) {
+                if (prefixo ? item.getKey().startsWith(key) : item.getKey().equals(key)) {
+                    filtrados.add(item);
+                }
+            }
+            return filtrados;
+        }
+    }
+}
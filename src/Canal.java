@@ -0,0 +1,28 @@
+/*
+ * Lado servidor de uma conexao: por onde o ClienteHandler devolve respostas.
+ * Implementado sobre socket bloqueante (threads/virtual) ou SocketChannel (NIO).
+ * enviar() pode ser chamado de qualquer thread.
+ */
+public interface Canal {
+    void enviar(Mensagem msg);
+
+    String getIpRemoto();
+
+    int getPortaRemota();
+
+    boolean isAberto();
+
+    /*
+     * Envio de quem manda em fluxo (WATCH): nunca bloqueia quem chama. Sai na ordem
+     * das outras chamadas a enviarEmFluxo; quem chama espera isCongestionado() desafogar
+     * antes do proximo. NIO: o proprio enviar ja so enfileira.
+     */
+    default void enviarEmFluxo(Mensagem msg) {
+        enviar(msg);
+    }
+
+    // Saida acumulada sem caber no socket; quem envia em fluxo (WATCH) espera desafogar
+    default boolean isCongestionado() {
+        return false;
+    }
+}
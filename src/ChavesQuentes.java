@@ -0,0 +1,127 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Deteccao de chaves quentes (distribuicao desigual dos acessos, ex.: zipf):
+ * conta por chave uma amostra das requisicoes (1 em kv.quentes.amostragem) numa
+ * janela de kv.quentes.janelaMs; ao fim de cada janela guarda as kv.quentes.top
+ * chaves mais pedidas, com a taxa estimada em requisicoes/s, e recomeca.
+ * - a janela aceita ate kv.quentes.maxChaves chaves distintas; as que aparecem
+ *   depois de cheia ficam de fora (uma chave quente aparece logo no inicio)
+ * - consulta pelo STATS (linhas "quente.<posicao> <req/s> <key>") e pela metrica
+ *   quentes.maiorTaxa; quando a chave mais pedida muda e passa de
+ *   kv.quentes.alertaPct % das requisicoes, uma linha no console
+ * kv.quentes.amostragem=0 desliga.
+ */
+public class ChavesQuentes {
+    private static final int AMOSTRAGEM = Integer.getInteger("kv.quentes.amostragem", 8);
+    private static final long JANELA_MS = Long.getLong("kv.quentes.janelaMs", 5000);
+    private static final int TOP = Integer.getInteger("kv.quentes.top", 10);
+    private static final int MAX_CHAVES = Integer.getInteger("kv.quentes.maxChaves", 10000);
+    private static final int ALERTA_PCT = Integer.getInteger("kv.quentes.alertaPct", 10);
+
+    private static volatile Map<String, LongAdder> janela = new ConcurrentHashMap<>();
+
+    // Resultado da ultima janela fechada, da mais pedida para a menos
+    private static volatile List<Quente> top = Collections.emptyList();
+    private static String ultimaAlertada;
+
+    static {
+        if (AMOSTRAGEM > 0) {
+            Metricas.medidor("quentes.maiorTaxa", () -> {
+                List<Quente> atual = top;
+                return atual.isEmpty() ? 0 : atual.get(0).taxa;
+            });
+            Thread thread = new Thread(ChavesQuentes::fecharJanelas, "chaves-quentes");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private ChavesQuentes() {}
+
+    public static void registrar(String key) {
+        if (AMOSTRAGEM <= 0 || key == null ||
+                (AMOSTRAGEM > 1 && ThreadLocalRandom.current().nextInt(AMOSTRAGEM) != 0)) {
+            return;
+        }
+        Map<String, LongAdder> atual = janela;
+        LongAdder contador = atual.get(key);
+        if (contador == null) {
+            if (atual.size() >= MAX_CHAVES) {
+                return;
+            }
+            contador = atual.computeIfAbsent(key, k -> new LongAdder());
+        }
+        contador.increment();
+    }
+
+    /*
+     * Texto para o STATS_OK: uma linha por chave quente da ultima janela
+     */
+    public static String relatorio() {
+        StringBuilder texto = new StringBuilder();
+        int posicao = 1;
+        for (Quente quente : top) {
+            texto.append("quente.").append(posicao++).append(' ').append(quente.taxa)
+                    .append(' ').append(quente.key).append('\n');
+        }
+        return texto.toString();
+    }
+
+    private static void fecharJanelas() {
+        while (true) {
+            try {
+                Thread.sleep(JANELA_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Map<String, LongAdder> fechada = janela;
+            janela = new ConcurrentHashMap<>();
+            // Os TOP maiores com um heap de tamanho TOP (a janela pode ter milhares de chaves)
+            PriorityQueue<Quente> maiores = new PriorityQueue<>(Comparator.comparingLong(q -> q.taxa));
+            long total = 0;
+            for (Map.Entry<String, LongAdder> entrada : fechada.entrySet()) {
+                long amostras = entrada.getValue().sum();
+                total += amostras;
+                maiores.add(new Quente(entrada.getKey(), amostras * AMOSTRAGEM * 1000 / JANELA_MS));
+                if (maiores.size() > TOP) {
+                    maiores.poll();
+                }
+            }
+            List<Quente> ordenadas = new ArrayList<>(maiores);
+            ordenadas.sort(Comparator.comparingLong((Quente q) -> q.taxa).reversed());
+            top = Collections.unmodifiableList(ordenadas);
+            alertar(ordenadas, total * AMOSTRAGEM * 1000 / JANELA_MS);
+        }
+    }
+
+    private static void alertar(List<Quente> ordenadas, long taxaTotal) {
+        if (ordenadas.isEmpty() || taxaTotal == 0) {
+            return;
+        }
+        Quente maior = ordenadas.get(0);
+        long pct = maior.taxa * 100 / taxaTotal;
+        if (pct >= ALERTA_PCT && !maior.key.equals(ultimaAlertada)) {
+            System.out.println("Chave quente: " + maior.key + " (" + maior.taxa + " req/s, " + pct + "% das requisicoes)");
+            ultimaAlertada = maior.key;
+        } else if (pct < ALERTA_PCT) {
+            ultimaAlertada = null;
+        }
+    }
+
+    /*
+     * Chave e taxa estimada (requisicoes/s) na ultima janela
+     */
+    private static class Quente {
+        final String key;
+        final long taxa;
+
+        Quente(String key, long taxa) {
+            this.key = key;
+            this.taxa = taxa;
+        }
+    }
+}
@@ -1,7 +1,7 @@
-import com.google.gson.Gson;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /*
  * Projeto SD: ClienteX — Key-Value Store Distribuido
@@ -9,17 +9,41 @@ import java.util.*;
  */
 public class Cliente {
     private static final Scanner scanner = new Scanner(System.in);
-    private static final Gson gson = new Gson();
     private static final Random random = new Random();
 
     // Lista de servidores conhecidos pelo cliente (capturada via INIT, item 4a)
     private static List<InetSocketAddress> servidores = new ArrayList<>();
 
     // Mapa de timestamps por chave para garantir consistencia (item 4c)
-    private static Map<String, Long> timestamps = new HashMap<>();
+    // Concorrente: respostas assincronas de GET chegam na thread leitora da conexao
+    private static Map<String, Long> timestamps = new ConcurrentHashMap<>();
 
-    // Porta do cliente para escutar respostas assincronas (item 4c)
-    private static int portaCliente = 0;
+    // Visao do cliente sobre cada servidor: maior marca de replicacao (hwm) ja vista nas respostas.
+    // A marca so cresce no servidor, entao o valor aqui e um limite inferior seguro.
+    private static final Map<InetSocketAddress, Long> marcas = new ConcurrentHashMap<>();
+
+    // Lider, aprendido nas confirmacoes de escrita (null ate o primeiro PUT_OK)
+    private static volatile InetSocketAddress lider;
+
+    // Com kv.grupos: lider atual de cada grupo (o lider inicial ate um PUT_OK dizer outro)
+    private static final Map<AnelHash.Grupo, InetSocketAddress> lideresGrupo = new ConcurrentHashMap<>();
+
+    // Particionamento (kv.grupos, mesma topologia dos servidores): PUT vai direto ao lider
+    // do grupo dono da chave e GET so considera os membros desse grupo.
+    // Sem topologia, qualquer servidor serve (os servidores encaminham ao grupo certo).
+    private static final AnelHash anel = System.getProperty("kv.grupos") != null
+            ? new AnelHash(System.getProperty("kv.grupos")) : null;
+
+    // Conexoes persistentes com os servidores, reaproveitadas entre PUTs e GETs
+    private static final PoolConexoes pool = new PoolConexoes(Integer.getInteger("kv.pool.tamanho", 1));
+
+    // Tempo maximo de espera por uma resposta do servidor
+    private static final long TIMEOUT_MS = Long.getLong("kv.timeoutMs", 60000);
+
+    // Failover: um PUT que falha (lider caiu, eleicao em andamento) e repetido em outro
+    // servidor ate kv.cliente.tentativas vezes, esperando kv.cliente.esperaMs a mais a cada vez
+    private static final int TENTATIVAS = Integer.getInteger("kv.cliente.tentativas", 5);
+    private static final long ESPERA_TENTATIVA_MS = Long.getLong("kv.cliente.esperaMs", 200);
 
     public static void main(String[] args) throws UnsupportedEncodingException {
         while (true) {
@@ -51,6 +75,8 @@ public class Cliente {
     // SECAO 4a: Inicializacao do cliente
     private static void initCliente() {
         servidores.clear();
+        marcas.clear();
+        lider = null;
 
         System.out.print("Os servidores estao na mesma maquina (127.0.0.1)? (s/n): ");
         boolean mesmaMaquina = scanner.nextLine().trim().equalsIgnoreCase("s");
@@ -70,11 +96,6 @@ public class Cliente {
             servidores.add(new InetSocketAddress(ip, porta));
         }
 
-        // Captura porta para respostas assincronas (GET com WAIT_FOR_RESPONSE)
-        System.out.print("Digite a porta para receber respostas assincronas (ex: 20000): ");
-        portaCliente = Integer.parseInt(scanner.nextLine().trim());
-        iniciarServidorDeRetorno(portaCliente);
-
         System.out.println("Cliente inicializado com " + servidores.size() + " servidores.");
     }
 
@@ -88,14 +109,39 @@ public class Cliente {
         String key = scanner.nextLine().trim();
         System.out.print("Digite o valor (value): ");
         String value = scanner.nextLine().trim();
+        System.out.print("Digite o TTL em ms (Enter = sem expiracao): ");
+        String ttl = scanner.nextLine().trim();
 
-        InetSocketAddress servidor = escolherServidorAleatorio();
         Mensagem msg = new Mensagem("PUT", key, value, 0, null, 0);
+        if (!ttl.isEmpty()) {
+            msg.setTtl(Long.parseLong(ttl));
+        }
 
-        Mensagem resposta = enviarMensagem(servidor, msg);
+        InetSocketAddress servidor = null;
+        Mensagem resposta = null;
+        for (int tentativa = 0; tentativa < TENTATIVAS; tentativa++) {
+            if (tentativa > 0) {
+                // Da tempo para a eleicao de um novo lider antes de tentar de novo
+                System.out.println("PUT sem confirmacao; nova tentativa em outro servidor...");
+                try {
+                    Thread.sleep(ESPERA_TENTATIVA_MS * tentativa);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            servidor = escolherServidorParaEscrita(key, tentativa, servidor);
+            resposta = enviarMensagem(servidor, msg);
+            if (resposta != null && "PUT_OK".equals(resposta.getTipo())) {
+                break;
+            }
+        }
         if (resposta != null && "PUT_OK".equals(resposta.getTipo())) {
-            // Atualiza timestamp local
-            timestamps.put(key, resposta.getTimestamp());
+            // Atualiza timestamp local (nunca volta: o maior timestamp visto da chave)
+            timestamps.merge(key, resposta.getTimestamp(), Math::max);
+            if (anel != null && resposta.getLider() != null) {
+                lideresGrupo.put(anel.grupoDe(key), AnelHash.endereco(resposta.getLider()));
+            }
             // Print conforme enunciado
             System.out.println("PUT_OK key: " + key +
                     " value " + value +
@@ -116,31 +162,83 @@ public class Cliente {
         String key = scanner.nextLine().trim();
         long tsCliente = timestamps.getOrDefault(key, 0L);
 
-        InetSocketAddress servidor = escolherServidorAleatorio();
+        Mensagem msg = new Mensagem("GET", key, null, tsCliente, null, 0);
+        InetSocketAddress servidor = escolherServidorParaLeitura(key, tsCliente);
+        CompletableFuture<Mensagem> respostaFinal;
+        Mensagem resposta;
+        for (int tentativa = 1; ; tentativa++) {
+            // Primeira resposta: WAIT_FOR_RESPONSE (parcial) ou a final (GET_OK)
+            InetSocketAddress destino = servidor;
+            CompletableFuture<Mensagem> primeira = new CompletableFuture<>();
+            respostaFinal = pool.enviar(destino, msg, primeira::complete);
+            respostaFinal.whenComplete((recebida, erro) -> {
+                if (erro != null) {
+                    primeira.completeExceptionally(erro);
+                } else {
+                    registrarMarca(destino, recebida);
+                    primeira.complete(recebida);
+                }
+            });
 
-        try {
-            String ipLocal = InetAddress.getLocalHost().getHostAddress();
-            Mensagem msg = new Mensagem("GET", key, null, tsCliente, ipLocal, portaCliente);
-            Mensagem resposta = enviarMensagem(servidor, msg);
+            try {
+                resposta = primeira.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                break;
+            } catch (ExecutionException | TimeoutException e) {
+                System.out.println("Erro ao se conectar com o servidor " + servidor + ": " +
+                        (e instanceof ExecutionException ? e.getCause().getMessage() : "timeout"));
+                // Servidor fora do ar (ex.: lider que caiu): tenta outro membro
+                if (tentativa >= TENTATIVAS || !(e instanceof ExecutionException)) {
+                    return;
+                }
+                marcas.remove(servidor);
+                servidor = proximoServidor(key, servidor);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        InetSocketAddress respondeu = servidor;
 
-            if (resposta != null) {
-                if ("WAIT_FOR_RESPONSE".equals(resposta.getTipo())) {
-                    // Print conforme enunciado
-                    System.out.println("GET key: " + key + " WAIT_FOR_RESPONSE do servidor " +
-                            servidor.getAddress().getHostAddress() + ":" + servidor.getPort());
-                } else if ("GET_OK".equals(resposta.getTipo())) {
+        if ("WAIT_FOR_RESPONSE".equals(resposta.getTipo())) {
+            // Print conforme enunciado
+            System.out.println("GET key: " + key + " WAIT_FOR_RESPONSE do servidor " +
+                    servidor.getAddress().getHostAddress() + ":" + servidor.getPort());
+            // O servidor responde depois na mesma conexao, com o mesmo id
+            respostaFinal.whenComplete((assincrona, erro) -> {
+                if (erro != null) {
+                    System.out.println("Erro ao receber resposta assincrona: " + erro.getMessage());
+                } else if ("GET_OK".equals(assincrona.getTipo())) {
                     // Print conforme enunciado
-                    System.out.println("GET key: " + key +
-                            " value: " + resposta.getValue() +
-                            " obtido do servidor " + servidor.getAddress().getHostAddress() + ":" + servidor.getPort() +
-                            ", meu timestamp " + tsCliente + " e do servidor " + resposta.getTimestamp());
-                    timestamps.put(key, resposta.getTimestamp());
+                    System.out.println("GET key: " + assincrona.getKey() +
+                            " value: " + assincrona.getValue() +
+                            " obtido do servidor [assincrono], meu timestamp " +
+                            timestamps.getOrDefault(assincrona.getKey(), 0L) +
+                            " e do servidor " + assincrona.getTimestamp());
+                    timestamps.merge(assincrona.getKey(), assincrona.getTimestamp(), Math::max);
                 } else {
-                    System.out.println("Resposta inesperada: " + resposta.getTipo());
+                    imprimirOutraResposta(key, respondeu, assincrona);
                 }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+            });
+        } else if ("GET_OK".equals(resposta.getTipo())) {
+            // Print conforme enunciado
+            System.out.println("GET key: " + key +
+                    " value: " + resposta.getValue() +
+                    " obtido do servidor " + servidor.getAddress().getHostAddress() + ":" + servidor.getPort() +
+                    ", meu timestamp " + tsCliente + " e do servidor " + resposta.getTimestamp());
+            timestamps.merge(key, resposta.getTimestamp(), Math::max);
+        } else {
+            imprimirOutraResposta(key, servidor, resposta);
+        }
+    }
+
+    // GET_TIMEOUT (replicacao nao chegou no prazo do servidor) ou tipo desconhecido
+    private static void imprimirOutraResposta(String key, InetSocketAddress servidor, Mensagem resposta) {
+        if ("GET_TIMEOUT".equals(resposta.getTipo())) {
+            System.out.println("GET key: " + key + " GET_TIMEOUT do servidor " +
+                    servidor.getAddress().getHostAddress() + ":" + servidor.getPort() +
+                    " (timestamp local do servidor " + resposta.getTimestamp() + "), tente novamente.");
+        } else {
+            System.out.println("Resposta inesperada: " + resposta.getTipo());
         }
     }
 
@@ -149,54 +247,76 @@ public class Cliente {
         return servidores.get(random.nextInt(servidores.size()));
     }
 
-    // Envia mensagem via TCP, recebe resposta — obrigatoriedade de TCP
-    private static Mensagem enviarMensagem(InetSocketAddress servidor, Mensagem mensagem) {
-        try (Socket socket = new Socket(servidor.getAddress(), servidor.getPort());
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+    /*
+     * Leitura: sorteia entre os servidores que ja aplicaram o timestamp que o
+     * cliente conhece da chave (respondem GET_OK sem WAIT_FOR_RESPONSE).
+     * Se nenhum for conhecido, vai ao lider; sem lider conhecido, qualquer um.
+     * Com kv.grupos, os candidatos e o lider sao os do grupo dono da chave.
+     */
+    private static InetSocketAddress escolherServidorParaLeitura(String key, long tsCliente) {
+        List<InetSocketAddress> candidatos = servidores;
+        InetSocketAddress liderConhecido = lider;
+        if (anel != null) {
+            AnelHash.Grupo grupo = anel.grupoDe(key);
+            candidatos = grupo.getMembros();
+            liderConhecido = lideresGrupo.getOrDefault(grupo, grupo.getLider());
+        }
+        if (tsCliente == 0) {
+            return candidatos.get(random.nextInt(candidatos.size()));
+        }
+        List<InetSocketAddress> atualizados = new ArrayList<>();
+        for (InetSocketAddress servidor : candidatos) {
+            if (marcas.getOrDefault(servidor, 0L) >= tsCliente) {
+                atualizados.add(servidor);
+            }
+        }
+        if (!atualizados.isEmpty()) {
+            return atualizados.get(random.nextInt(atualizados.size()));
+        }
+        return liderConhecido != null ? liderConhecido : escolherServidorAleatorio();
+    }
 
-            String json = gson.toJson(mensagem);
-            out.println(json);
+    /*
+     * Escrita: na primeira tentativa o lider do grupo dono (com kv.grupos) ou um
+     * servidor aleatorio, que encaminha ao lider; nas seguintes, o proximo servidor
+     * depois do anterior, ja que ele (ou o lider atras dele) pode ter caido.
+     */
+    private static InetSocketAddress escolherServidorParaEscrita(String key, int tentativa, InetSocketAddress anterior) {
+        if (tentativa > 0) {
+            return proximoServidor(key, anterior);
+        }
+        if (anel != null) {
+            AnelHash.Grupo grupo = anel.grupoDe(key);
+            return lideresGrupo.getOrDefault(grupo, grupo.getLider());
+        }
+        return escolherServidorAleatorio();
+    }
+
+    // Servidor seguinte a atual entre os candidatos da chave (membros do grupo dono, com kv.grupos)
+    private static InetSocketAddress proximoServidor(String key, InetSocketAddress atual) {
+        List<InetSocketAddress> candidatos = anel != null ? anel.grupoDe(key).getMembros() : servidores;
+        return candidatos.get((candidatos.indexOf(atual) + 1) % candidatos.size());
+    }
 
-            String respostaJson = in.readLine();
-            return gson.fromJson(respostaJson, Mensagem.class);
+    // Atualiza a visao de frescor do servidor (e o lider) com os dados de uma resposta
+    private static void registrarMarca(InetSocketAddress servidor, Mensagem resposta) {
+        if (resposta.getHwm() > 0) {
+            marcas.merge(servidor, resposta.getHwm(), Math::max);
+        }
+        if (resposta.getLider() != null && anel == null) {
+            lider = AnelHash.endereco(resposta.getLider());
+        }
+    }
 
+    // Envia mensagem via TCP (conexao persistente do pool), recebe resposta — obrigatoriedade de TCP
+    private static Mensagem enviarMensagem(InetSocketAddress servidor, Mensagem mensagem) {
+        try {
+            Mensagem resposta = pool.enviarEsperar(servidor, mensagem, TIMEOUT_MS);
+            registrarMarca(servidor, resposta);
+            return resposta;
         } catch (IOException e) {
             System.out.println("Erro ao se conectar com o servidor " + servidor + ": " + e.getMessage());
             return null;
         }
     }
-
-    // Listener assincrono para respostas GET_OK futuras (quando recebeu WAIT_FOR_RESPONSE)
-    private static void iniciarServidorDeRetorno(int porta) {
-        new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(porta)) {
-                System.out.println("Servidor de retorno escutando na porta " + porta + "...");
-                while (true) {
-                    Socket socket = serverSocket.accept();
-                    new Thread(() -> {
-                        try (
-                            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))
-                        ) {
-                            String respostaJson = in.readLine();
-                            Mensagem resposta = gson.fromJson(respostaJson, Mensagem.class);
-
-                            // Print conforme enunciado
-                            System.out.println("GET key: " + resposta.getKey() +
-                                    " value: " + resposta.getValue() +
-                                    " obtido do servidor [assincrono], meu timestamp " +
-                                    timestamps.getOrDefault(resposta.getKey(), 0L) +
-                                    " e do servidor " + resposta.getTimestamp());
-
-                            timestamps.put(resposta.getKey(), resposta.getTimestamp());
-                        } catch (IOException e) {
-                            System.out.println("Erro ao receber resposta assincrona: " + e.getMessage());
-                        }
-                    }).start();
-                }
-            } catch (IOException e) {
-                System.out.println("Erro no servidor de retorno: " + e.getMessage());
-            }
-        }).start();
-    }
 }
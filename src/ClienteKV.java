@@ -0,0 +1,573 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/*
+ * Biblioteca cliente assincrona do KV Store, para embutir em outros servicos
+ * (o Cliente e o menu interativo do enunciado, com estado estatico).
+ * - Thread-safe: uma instancia compartilhada pela aplicacao inteira
+ * - put/get/mget/mput devolvem CompletableFuture sem esperar a resposta: muitas
+ *   requisicoes seguem em pipeline pelas conexoes persistentes do pool
+ *   (kv.pool.tamanho por servidor), casadas com as respostas pelo id
+ * - Read-your-writes: guarda o maior timestamp visto de cada chave (escrita ou
+ *   leitura) e o manda no GET; um GET que recebe WAIT_FOR_RESPONSE so completa
+ *   com a resposta final, que o servidor envia depois na mesma conexao
+ * - get/mget com Consistencia: ANY le de qualquer servidor sem esperar (pode voltar
+ *   no tempo), LINEARIZABLE le do lider (lease + versao confirmada pelo quorum)
+ * - Escritas vao ao lider conhecido (aprendido nas confirmacoes) e, se falharem,
+ *   sao repetidas no servidor seguinte (kv.cliente.tentativas, kv.cliente.esperaMs)
+ * - Com kv.grupos (ou um AnelHash no construtor), cada chave vai ao grupo dono
+ * - scan/scanPrefixo: paginas de chaves em ordem, continuadas pelo token da pagina.
+ *   Opcional no servidor (kv.indice.ordenado=true, desligado por padrao); sem o
+ *   indice falha com UnsupportedOperationException
+ * - watch: escritas aplicadas de uma chave, prefixo ou de tudo, empurradas pelo servidor
+ * Abrir uma conexao nova (primeira requisicao a um servidor) conecta na thread
+ * que chamou; o restante nao bloqueia.
+ *
+ *   try (ClienteKV kv = new ClienteKV(servidores)) {
+ *       kv.put("a", "1").thenCompose(ts -> kv.get("a")).thenAccept(System.out::println);
+ *   }
+ */
+public class ClienteKV implements Closeable {
+    private final List<InetSocketAddress> servidores;
+    private final AnelHash anel;
+    // Sem particionamento, o cluster inteiro como um grupo (chave das posicoes do WATCH)
+    private final AnelHash.Grupo grupoUnico;
+    private final PoolConexoes pool = new PoolConexoes(Integer.getInteger("kv.pool.tamanho", 2));
+    private final long timeoutMs = Long.getLong("kv.timeoutMs", 60000);
+    private final int tentativas = Integer.getInteger("kv.cliente.tentativas", 5);
+    private final long esperaTentativaMs = Long.getLong("kv.cliente.esperaMs", 200);
+
+    // Maior timestamp conhecido por chave: leituras desta instancia nunca voltam no tempo
+    private final Map<String, Long> timestamps = new ConcurrentHashMap<>();
+
+    // Maior marca de replicacao (hwm) vista nas respostas de cada servidor
+    private final Map<InetSocketAddress, Long> marcas = new ConcurrentHashMap<>();
+
+    // Lider aprendido nas confirmacoes de escrita (por grupo com particionamento)
+    private volatile InetSocketAddress lider;
+    private final Map<AnelHash.Grupo, InetSocketAddress> lideresGrupo = new ConcurrentHashMap<>();
+
+    public ClienteKV(List<InetSocketAddress> servidores) {
+        this(servidores, System.getProperty("kv.grupos") != null ? new AnelHash(System.getProperty("kv.grupos")) : null);
+    }
+
+    public ClienteKV(List<InetSocketAddress> servidores, AnelHash anel) {
+        if (servidores.isEmpty() && anel == null) {
+            throw new IllegalArgumentException("Nenhum servidor informado");
+        }
+        this.servidores = Collections.unmodifiableList(new ArrayList<>(servidores));
+        this.anel = anel;
+        this.grupoUnico = anel == null ? new AnelHash.Grupo(this.servidores) : null;
+    }
+
+    /*
+     * PUT; completa com o timestamp atribuido pelo lider
+     */
+    public CompletableFuture<Long> put(String key, String value) {
+        return put(key, value, 0);
+    }
+
+    /*
+     * PUT com tempo de vida em ms (0 = nao expira)
+     */
+    public CompletableFuture<Long> put(String key, String value, long ttlMs) {
+        Mensagem msg = new Mensagem("PUT", key, value, 0, null, 0);
+        msg.setTtl(ttlMs);
+        return escrever(key, msg, "PUT_OK").thenApply(resposta -> {
+            timestamps.merge(key, resposta.getTimestamp(), Math::max);
+            return resposta.getTimestamp();
+        });
+    }
+
+    /*
+     * MPUT: todas as chaves com um unico timestamp, aplicadas atomicamente
+     * (com particionamento, precisam estar no mesmo grupo)
+     */
+    public CompletableFuture<Long> mput(Map<String, String> valores) {
+        if (valores.isEmpty()) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("MPUT sem chaves"));
+        }
+        List<Mensagem> itens = new ArrayList<>(valores.size());
+        for (Map.Entry<String, String> valor : valores.entrySet()) {
+            itens.add(new Mensagem(null, valor.getKey(), valor.getValue(), 0, null, 0));
+        }
+        Mensagem msg = new Mensagem("MPUT", null, null, 0, null, 0);
+        msg.setItens(itens);
+        return escrever(itens.get(0).getKey(), msg, "MPUT_OK").thenApply(resposta -> {
+            for (String key : valores.keySet()) {
+                timestamps.merge(key, resposta.getTimestamp(), Math::max);
+            }
+            return resposta.getTimestamp();
+        });
+    }
+
+    /*
+     * GET; completa com o valor, ou null se a chave nao existe (ou venceu)
+     */
+    public CompletableFuture<String> get(String key) {
+        return get(key, null);
+    }
+
+    /*
+     * GET com a consistencia dada (null = SESSION, o padrao)
+     */
+    public CompletableFuture<String> get(String key, Consistencia consistencia) {
+        long tsCliente = timestamps.getOrDefault(key, 0L);
+        Mensagem msg = new Mensagem("GET", key, null, tsCliente, null, 0);
+        msg.setConsistencia(consistencia);
+        CompletableFuture<Mensagem> resposta = new CompletableFuture<>();
+        ler(key, msg, "GET_OK", servidorDeLeitura(candidatos(key), liderDe(key), tsCliente, consistencia), 0, resposta);
+        return resposta.thenApply(this::valorLido);
+    }
+
+    /*
+     * MGET; completa com chave -> valor (null se nao existe), na ordem pedida.
+     * Com particionamento, um MGET por grupo dono, em paralelo.
+     */
+    public CompletableFuture<Map<String, String>> mget(Collection<String> keys) {
+        return mget(keys, null);
+    }
+
+    /*
+     * MGET com a consistencia dada (null = SESSION, o padrao)
+     */
+    public CompletableFuture<Map<String, String>> mget(Collection<String> keys, Consistencia consistencia) {
+        Map<AnelHash.Grupo, List<String>> porGrupo = new HashMap<>();
+        for (String key : keys) {
+            porGrupo.computeIfAbsent(anel == null ? null : anel.grupoDe(key), g -> new ArrayList<>()).add(key);
+        }
+        List<CompletableFuture<Mensagem>> respostas = new ArrayList<>(porGrupo.size());
+        for (List<String> doGrupo : porGrupo.values()) {
+            List<Mensagem> itens = new ArrayList<>(doGrupo.size());
+            long maiorTs = 0;
+            for (String key : doGrupo) {
+                long ts = timestamps.getOrDefault(key, 0L);
+                itens.add(new Mensagem(null, key, null, ts, null, 0));
+                maiorTs = Math.max(maiorTs, ts);
+            }
+            Mensagem msg = new Mensagem("MGET", null, null, 0, null, 0);
+            msg.setItens(itens);
+            msg.setConsistencia(consistencia);
+            CompletableFuture<Mensagem> resposta = new CompletableFuture<>();
+            String primeira = doGrupo.get(0);
+            ler(primeira, msg, "MGET_OK", servidorDeLeitura(candidatos(primeira), liderDe(primeira), maiorTs, consistencia),
+                    0, resposta);
+            respostas.add(resposta);
+        }
+        return CompletableFuture.allOf(respostas.toArray(new CompletableFuture<?>[0])).thenApply(x -> {
+            Map<String, String> lidos = new HashMap<>();
+            for (CompletableFuture<Mensagem> resposta : respostas) {
+                for (Mensagem item : resposta.join().getItens()) {
+                    lidos.put(item.getKey(), valorLido(item));
+                }
+            }
+            Map<String, String> resultado = new LinkedHashMap<>();
+            for (String key : keys) {
+                resultado.put(key, lidos.get(key));
+            }
+            return resultado;
+        });
+    }
+
+    /*
+     * SCAN: ate limite chaves vivas de [inicio, fim) em ordem (null = sem limite naquele
+     * lado; limite 0 = maximo do servidor). Pagina.continuacao e o inicio da proxima
+     * pagina, null quando a faixa acabou. Com particionamento, um SCAN por grupo em
+     * paralelo: a pagina so vai ate o menor token entre os grupos (alem dele falta
+     * chave de algum grupo). Read-your-writes: cada grupo recebe o maior timestamp
+     * conhecido das chaves da faixa que sao dele.
+     * So com servidores iniciados com kv.indice.ordenado=true: senao o future falha
+     * com UnsupportedOperationException (sem novas tentativas).
+     */
+    public CompletableFuture<Pagina> scan(String inicio, String fim, int limite) {
+        Map<AnelHash.Grupo, Long> tsGrupos = new HashMap<>();
+        List<AnelHash.Grupo> grupos = anel != null ? anel.getGrupos() : Collections.singletonList(null);
+        for (AnelHash.Grupo grupo : grupos) {
+            tsGrupos.put(grupo, 0L);
+        }
+        for (Map.Entry<String, Long> conhecido : timestamps.entrySet()) {
+            String key = conhecido.getKey();
+            if ((inicio == null || key.compareTo(inicio) >= 0) && (fim == null || key.compareTo(fim) < 0)) {
+                tsGrupos.merge(anel == null ? null : anel.grupoDe(key), conhecido.getValue(), Math::max);
+            }
+        }
+        List<CompletableFuture<Mensagem>> respostas = new ArrayList<>(grupos.size());
+        for (AnelHash.Grupo grupo : grupos) {
+            Mensagem msg = new Mensagem("SCAN", inicio, fim, tsGrupos.get(grupo), null, 0);
+            msg.setLimite(limite);
+            List<InetSocketAddress> membros = grupo != null ? grupo.getMembros() : servidores;
+            CompletableFuture<Mensagem> resposta = new CompletableFuture<>();
+            varrer(grupo, msg, servidorDeLeitura(membros, liderDoGrupo(grupo), tsGrupos.get(grupo)), 0, resposta);
+            respostas.add(resposta);
+        }
+        return CompletableFuture.allOf(respostas.toArray(new CompletableFuture<?>[0])).thenApply(x -> {
+            String corte = null;
+            TreeMap<String, Mensagem> itens = new TreeMap<>();
+            for (CompletableFuture<Mensagem> resposta : respostas) {
+                Mensagem ok = resposta.join();
+                if (ok.getKey() != null && (corte == null || ok.getKey().compareTo(corte) < 0)) {
+                    corte = ok.getKey();
+                }
+                for (Mensagem item : ok.getItens()) {
+                    itens.put(item.getKey(), item);
+                }
+            }
+            SortedMap<String, String> valores = new TreeMap<>();
+            String continuacao = corte;
+            for (Mensagem item : (corte == null ? itens : itens.headMap(corte)).values()) {
+                if (limite > 0 && valores.size() == limite) {
+                    continuacao = item.getKey();
+                    break;
+                }
+                valores.put(item.getKey(), valorLido(item));
+            }
+            return new Pagina(valores, continuacao);
+        });
+    }
+
+    // SCAN das chaves que comecam com prefixo (a partir de continuacao, se nao for null);
+    // como scan, exige kv.indice.ordenado=true nos servidores
+    public CompletableFuture<Pagina> scanPrefixo(String prefixo, String continuacao, int limite) {
+        return scan(continuacao != null ? continuacao : prefixo, fimDoPrefixo(prefixo), limite);
+    }
+
+    // Menor string maior que todas as que comecam com prefixo (null = nenhuma)
+    static String fimDoPrefixo(String prefixo) {
+        for (int i = prefixo.length() - 1; i >= 0; i--) {
+            if (prefixo.charAt(i) != Character.MAX_VALUE) {
+                return prefixo.substring(0, i) + (char) (prefixo.charAt(i) + 1);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * WATCH: entrega a aoEvento cada escrita aplicada de key (prefixo = true: das chaves
+     * que comecam com key; key null: todas), como itens REPLICATION ou REMOCAO
+     * (key, value, timestamp), na ordem em que o grupo as aplicou. desde = posicao
+     * para retomar em todos os grupos (0 = so as novas).
+     * Com particionamento, uma assinatura por grupo envolvido; a ordem e a posicao
+     * valem dentro de cada grupo, entao para retomar use a forma com as posicoes de
+     * cada grupo (Observacao.getPosicoes). Queda do servidor: assina de novo em outro
+     * membro do grupo a partir da ultima posicao recebida dele (eventos daquela
+     * posicao podem chegar repetidos).
+     * aoEvento roda na thread leitora da conexao: enquanto ele nao volta, o servidor
+     * deixa de enviar (contrapressao), mas as outras requisicoes da conexao esperam
+     * junto; trabalho demorado deve ir para outro executor.
+     */
+    public Observacao watch(String key, boolean prefixo, long desde, Consumer<Mensagem> aoEvento) {
+        Map<AnelHash.Grupo, Long> posicoes = new HashMap<>();
+        for (AnelHash.Grupo grupo : gruposWatch(key, prefixo)) {
+            posicoes.put(grupo, desde);
+        }
+        return watch(key, prefixo, posicoes, aoEvento);
+    }
+
+    /*
+     * WATCH retomando cada grupo da sua posicao (Observacao.getPosicoes de uma
+     * observacao anterior; grupo ausente = so as novas)
+     */
+    public Observacao watch(String key, boolean prefixo, Map<AnelHash.Grupo, Long> desde, Consumer<Mensagem> aoEvento) {
+        List<AnelHash.Grupo> grupos = gruposWatch(key, prefixo);
+        Observacao observacao = new Observacao();
+        for (AnelHash.Grupo grupo : grupos) {
+            observacao.posicoes.put(grupo, desde.getOrDefault(grupo, 0L));
+        }
+        for (AnelHash.Grupo grupo : grupos) {
+            List<InetSocketAddress> membros = grupo.getMembros();
+            assinar(grupo, key, prefixo, aoEvento, membros.get(ThreadLocalRandom.current().nextInt(membros.size())),
+                    0, observacao);
+        }
+        return observacao;
+    }
+
+    private List<AnelHash.Grupo> gruposWatch(String key, boolean prefixo) {
+        return anel == null ? Collections.singletonList(grupoUnico)
+                : key != null && !prefixo ? Collections.singletonList(anel.grupoDe(key)) : anel.getGrupos();
+    }
+
+    /*
+     * Assinatura WATCH em andamento; fim completa com o motivo (WATCH_FIM) quando a
+     * primeira assinatura de grupo termina, e as demais sao canceladas
+     */
+    public class Observacao {
+        public final CompletableFuture<String> fim = new CompletableFuture<>();
+        private final Map<InetSocketAddress, String> tokens = new ConcurrentHashMap<>();
+        private final Map<AnelHash.Grupo, Long> posicoes = new ConcurrentHashMap<>();
+
+        Observacao() {
+            fim.whenComplete((motivo, erro) -> cancelar());
+        }
+
+        // Posicao do ultimo lote de eventos recebido de cada grupo, para retomar com outro watch
+        public Map<AnelHash.Grupo, Long> getPosicoes() {
+            return Collections.unmodifiableMap(new HashMap<>(posicoes));
+        }
+
+        public long getPosicao(AnelHash.Grupo grupo) {
+            return posicoes.getOrDefault(grupo, 0L);
+        }
+
+        public void cancelar() {
+            for (Map.Entry<InetSocketAddress, String> token : tokens.entrySet()) {
+                if (tokens.remove(token.getKey(), token.getValue())) {
+                    enviar(token.getKey(), new Mensagem("UNWATCH", token.getValue(), null, 0, null, 0));
+                }
+            }
+            fim.complete("cancelada");
+        }
+    }
+
+    /*
+     * Pagina de um SCAN: chave -> valor em ordem e o inicio da proxima (null = acabou)
+     */
+    public static class Pagina {
+        public final SortedMap<String, String> valores;
+        public final String continuacao;
+
+        Pagina(SortedMap<String, String> valores, String continuacao) {
+            this.valores = Collections.unmodifiableSortedMap(valores);
+            this.continuacao = continuacao;
+        }
+
+        @Override
+        public String toString() {
+            return valores + (continuacao != null ? " (continua em " + continuacao + ")" : "");
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    /*
+     * Escrita com failover: repete no servidor seguinte, esperando mais a cada
+     * tentativa (tempo para a eleicao de um novo lider)
+     */
+    private CompletableFuture<Mensagem> escrever(String key, Mensagem msg, String tipoOk) {
+        CompletableFuture<Mensagem> resultado = new CompletableFuture<>();
+        tentarEscrita(key, msg, tipoOk, servidorDeEscrita(key), 0, resultado);
+        return resultado;
+    }
+
+    private void tentarEscrita(String key, Mensagem msg, String tipoOk, InetSocketAddress servidor, int tentativa,
+                               CompletableFuture<Mensagem> resultado) {
+        enviar(servidor, msg).whenComplete((resposta, erro) -> {
+            if (erro == null && tipoOk.equals(resposta.getTipo())) {
+                registrarLider(key, resposta);
+                resultado.complete(resposta);
+            } else if (tentativa + 1 < tentativas) {
+                Executor depois = CompletableFuture.delayedExecutor(esperaTentativaMs * (tentativa + 1), TimeUnit.MILLISECONDS);
+                depois.execute(() -> tentarEscrita(key, msg, tipoOk, proximoServidor(key, servidor), tentativa + 1, resultado));
+            } else {
+                resultado.completeExceptionally(erro != null ? erro : new IOException(resposta.getTipo()));
+            }
+        });
+    }
+
+    /*
+     * Leitura: servidor fora do ar, tenta o seguinte; prazo de espera do servidor
+     * esgotado (GET_TIMEOUT/MGET_TIMEOUT), repete no lider, que ja aplicou toda
+     * escrita confirmada
+     */
+    private void ler(String key, Mensagem msg, String tipoOk, InetSocketAddress servidor, int tentativa,
+                     CompletableFuture<Mensagem> resultado) {
+        enviar(servidor, msg).whenComplete((resposta, erro) -> {
+            InetSocketAddress liderAtual = liderDe(key);
+            if (erro == null && tipoOk.equals(resposta.getTipo())) {
+                resultado.complete(resposta);
+            } else if (tentativa + 1 >= tentativas) {
+                resultado.completeExceptionally(erro != null ? erro : new IOException(resposta.getTipo()));
+            } else if (erro != null) {
+                marcas.remove(servidor);
+                ler(key, msg, tipoOk, proximoServidor(key, servidor), tentativa + 1, resultado);
+            } else if (resposta.getTipo().endsWith("_TIMEOUT") && liderAtual != null && !liderAtual.equals(servidor)) {
+                ler(key, msg, tipoOk, liderAtual, tentativa + 1, resultado);
+            } else {
+                resultado.completeExceptionally(new IOException(resposta.getTipo()));
+            }
+        });
+    }
+
+    /*
+     * SCAN em um grupo, com as mesmas tentativas da leitura (ler); os blocos
+     * SCAN_PARCIAL sao juntados aos itens do SCAN_OK. Uma tentativa nova recomeca
+     * do zero, descartando os blocos da anterior.
+     */
+    private void varrer(AnelHash.Grupo grupo, Mensagem msg, InetSocketAddress servidor, int tentativa,
+                        CompletableFuture<Mensagem> resultado) {
+        List<Mensagem> itens = Collections.synchronizedList(new ArrayList<>());
+        enviar(servidor, msg, parcial -> {
+            if ("SCAN_PARCIAL".equals(parcial.getTipo())) {
+                itens.addAll(parcial.getItens());
+            }
+        }).whenComplete((resposta, erro) -> {
+            List<InetSocketAddress> membros = grupo != null ? grupo.getMembros() : servidores;
+            InetSocketAddress liderAtual = liderDoGrupo(grupo);
+            if (erro == null && "SCAN_OK".equals(resposta.getTipo())) {
+                itens.addAll(resposta.getItens());
+                resposta.setItens(itens);
+                resultado.complete(resposta);
+            } else if (erro == null && "SCAN_FAIL".equals(resposta.getTipo())) {
+                // Todo membro do grupo sobe com a mesma configuracao: outra tentativa nao ajuda
+                resultado.completeExceptionally(new UnsupportedOperationException(
+                        "SCAN desligado em " + servidor + ": e opcional, exige kv.indice.ordenado=true nos servidores"));
+            } else if (tentativa + 1 >= tentativas) {
+                resultado.completeExceptionally(erro != null ? erro : new IOException(resposta.getTipo()));
+            } else if (erro != null) {
+                marcas.remove(servidor);
+                InetSocketAddress proximo = membros.get((membros.indexOf(servidor) + 1) % membros.size());
+                varrer(grupo, msg, proximo, tentativa + 1, resultado);
+            } else if ("SCAN_TIMEOUT".equals(resposta.getTipo()) && liderAtual != null && !liderAtual.equals(servidor)) {
+                varrer(grupo, msg, liderAtual, tentativa + 1, resultado);
+            } else {
+                resultado.completeExceptionally(new IOException(resposta.getTipo() +
+                        (resposta.getValue() != null ? ": " + resposta.getValue() : "")));
+            }
+        });
+    }
+
+    /*
+     * WATCH em um membro do grupo; falha de conexao assina no seguinte (kv.cliente.tentativas
+     * seguidas, sem contar as que chegaram a receber WATCH_OK). Sem prazo: a assinatura
+     * dura ate ser cancelada ou a conexao cair.
+     */
+    private void assinar(AnelHash.Grupo grupo, String key, boolean prefixo, Consumer<Mensagem> aoEvento,
+                         InetSocketAddress servidor, int tentativa, Observacao observacao) {
+        if (observacao.fim.isDone()) {
+            return;
+        }
+        Mensagem msg = new Mensagem("WATCH", key, prefixo ? "prefixo" : null, observacao.getPosicao(grupo), null, 0);
+        boolean[] aceita = {false};
+        pool.enviar(servidor, msg, parcial -> {
+            if ("WATCH_OK".equals(parcial.getTipo())) {
+                aceita[0] = true;
+                observacao.tokens.put(servidor, parcial.getKey());
+                if (observacao.fim.isDone()) {
+                    observacao.cancelar();
+                }
+            } else if ("WATCH_EVENTOS".equals(parcial.getTipo())) {
+                for (Mensagem item : parcial.getItens()) {
+                    aoEvento.accept(item);
+                }
+                observacao.posicoes.merge(grupo, parcial.getTimestamp(), Math::max);
+            }
+        }).whenComplete((resposta, erro) -> {
+            observacao.tokens.remove(servidor);
+            List<InetSocketAddress> membros = grupo.getMembros();
+            int tentativas = aceita[0] ? 0 : tentativa + 1;
+            if (erro == null) {
+                observacao.fim.complete("WATCH_FIM".equals(resposta.getTipo()) ? resposta.getValue()
+                        : resposta.getTipo() + (resposta.getValue() != null ? ": " + resposta.getValue() : ""));
+            } else if (tentativas >= this.tentativas) {
+                observacao.fim.completeExceptionally(erro);
+            } else {
+                InetSocketAddress proximo = membros.get((membros.indexOf(servidor) + 1) % membros.size());
+                Executor depois = CompletableFuture.delayedExecutor(esperaTentativaMs * tentativas, TimeUnit.MILLISECONDS);
+                depois.execute(() -> assinar(grupo, key, prefixo, aoEvento, proximo, tentativas, observacao));
+            }
+        });
+    }
+
+    private CompletableFuture<Mensagem> enviar(InetSocketAddress servidor, Mensagem msg) {
+        return enviar(servidor, msg, null);
+    }
+
+    private CompletableFuture<Mensagem> enviar(InetSocketAddress servidor, Mensagem msg, Consumer<Mensagem> aoParcial) {
+        return pool.enviar(servidor, msg, aoParcial)
+                .orTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .whenComplete((resposta, erro) -> {
+                    if (resposta != null && resposta.getHwm() > 0) {
+                        marcas.merge(servidor, resposta.getHwm(), Math::max);
+                    }
+                });
+    }
+
+    // Valor de um GET_OK ("NULL" = chave ausente); guarda o timestamp lido
+    private String valorLido(Mensagem resposta) {
+        if (resposta.getTimestamp() > 0) {
+            timestamps.merge(resposta.getKey(), resposta.getTimestamp(), Math::max);
+        }
+        return "NULL".equals(resposta.getValue()) ? null : resposta.getValue();
+    }
+
+    /*
+     * Leitura: sorteia entre os servidores que ja aplicaram o timestamp pedido
+     * (respondem sem WAIT_FOR_RESPONSE); senao o lider; sem lider conhecido, qualquer um.
+     * ANY: qualquer um; LINEARIZABLE: o lider (outro servidor encaminha a ele)
+     */
+    private InetSocketAddress servidorDeLeitura(List<InetSocketAddress> candidatos, InetSocketAddress liderAtual,
+                                                long tsCliente, Consistencia consistencia) {
+        if (consistencia == Consistencia.ANY) {
+            return candidatos.get(ThreadLocalRandom.current().nextInt(candidatos.size()));
+        }
+        if (consistencia == Consistencia.LINEARIZABLE && liderAtual != null) {
+            return liderAtual;
+        }
+        return servidorDeLeitura(candidatos, liderAtual, tsCliente);
+    }
+
+    private InetSocketAddress servidorDeLeitura(List<InetSocketAddress> candidatos, InetSocketAddress liderAtual,
+                                                long tsCliente) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (tsCliente > 0) {
+            List<InetSocketAddress> atualizados = new ArrayList<>();
+            for (InetSocketAddress servidor : candidatos) {
+                if (marcas.getOrDefault(servidor, 0L) >= tsCliente) {
+                    atualizados.add(servidor);
+                }
+            }
+            if (!atualizados.isEmpty()) {
+                return atualizados.get(random.nextInt(atualizados.size()));
+            }
+            if (liderAtual != null) {
+                return liderAtual;
+            }
+        }
+        return candidatos.get(random.nextInt(candidatos.size()));
+    }
+
+    // Escrita: lider conhecido; senao qualquer servidor (encaminha ao lider)
+    private InetSocketAddress servidorDeEscrita(String key) {
+        InetSocketAddress liderAtual = liderDe(key);
+        if (liderAtual != null) {
+            return liderAtual;
+        }
+        List<InetSocketAddress> candidatos = candidatos(key);
+        return candidatos.get(ThreadLocalRandom.current().nextInt(candidatos.size()));
+    }
+
+    private InetSocketAddress proximoServidor(String key, InetSocketAddress atual) {
+        List<InetSocketAddress> candidatos = candidatos(key);
+        return candidatos.get((candidatos.indexOf(atual) + 1) % candidatos.size());
+    }
+
+    private List<InetSocketAddress> candidatos(String key) {
+        return anel != null ? anel.grupoDe(key).getMembros() : servidores;
+    }
+
+    private InetSocketAddress liderDe(String key) {
+        return liderDoGrupo(anel == null ? null : anel.grupoDe(key));
+    }
+
+    // Grupo null = sem particionamento
+    private InetSocketAddress liderDoGrupo(AnelHash.Grupo grupo) {
+        return grupo == null ? lider : lideresGrupo.getOrDefault(grupo, grupo.getLider());
+    }
+
+    private void registrarLider(String key, Mensagem resposta) {
+        if (resposta.getLider() == null) {
+            return;
+        }
+        InetSocketAddress endereco = AnelHash.endereco(resposta.getLider());
+        if (anel == null) {
+            lider = endereco;
+        } else {
+            lideresGrupo.put(anel.grupoDe(key), endereco);
+        }
+    }
+}
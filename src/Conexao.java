@@ -0,0 +1,183 @@
+import java.io.*;
+import java.net.*;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/*
+ * Conexao TCP persistente e multiplexada.
+ * Varias requisicoes compartilham o mesmo socket: cada uma recebe um id,
+ * o servidor ecoa o id na resposta e a resposta e casada pelo id,
+ * mesmo que chegue fora de ordem.
+ * Respostas parciais (WAIT_FOR_RESPONSE, blocos de SCAN_PARCIAL, eventos de WATCH) nao encerram a requisicao:
+ * vao para o callback do pedido e a resposta final chega depois com o mesmo id.
+ * O protocolo (kv.protocolo = binario ou json) e negociado na abertura.
+ */
+public class Conexao implements Closeable {
+    private static final Protocolo PROTOCOLO_PADRAO =
+            "json".equals(System.getProperty("kv.protocolo", "binario")) ? Protocolo.JSON : Protocolo.BINARIO;
+
+    // Ids unicos no processo (facilita depuracao entre conexoes)
+    private static final AtomicLong proximoId = new AtomicLong(1);
+
+    private static final int TIMEOUT_CONEXAO_MS = Integer.getInteger("kv.conexao.timeoutMs", 5000);
+
+    // Tipos de resposta parcial: a requisicao continua pendente depois deles
+    private static final Set<String> TIPOS_PARCIAIS = Set.of("WAIT_FOR_RESPONSE", "SCAN_PARCIAL", "WATCH_OK", "WATCH_EVENTOS");
+
+    private final InetSocketAddress destino;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Protocolo protocolo;
+
+    // Requisicoes enviadas aguardando resposta (id -> pedido)
+    private final Map<Long, Pedido> pendentes = new ConcurrentHashMap<>();
+
+    private volatile boolean aberta = true;
+
+    public Conexao(InetSocketAddress destino) throws IOException {
+        this(destino, PROTOCOLO_PADRAO);
+    }
+
+    public Conexao(InetSocketAddress destino, Protocolo protocolo) throws IOException {
+        this.destino = destino;
+        this.protocolo = protocolo;
+        this.socket = new Socket();
+        socket.connect(destino, TIMEOUT_CONEXAO_MS);
+        socket.setTcpNoDelay(true);
+        this.in = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+        Protocolo.pedir(protocolo, out);
+
+        Thread leitor = new Thread(this::lerRespostas, "conexao-" + destino);
+        leitor.setDaemon(true);
+        leitor.start();
+    }
+
+    public InetSocketAddress getDestino() {
+        return destino;
+    }
+
+    public boolean isAberta() {
+        return aberta;
+    }
+
+    /*
+     * Envia requisicao e devolve futuro completado com a resposta de mesmo id.
+     * A mensagem do chamador nao e alterada (pode ser enviada a varios destinos).
+     */
+    public CompletableFuture<Mensagem> enviar(Mensagem msg) {
+        return enviar(msg, null);
+    }
+
+    /*
+     * Igual a enviar(msg), entregando as respostas parciais a aoParcial
+     * (chamado na thread leitora; sem callback, as parciais sao descartadas)
+     */
+    public CompletableFuture<Mensagem> enviar(Mensagem msg, Consumer<Mensagem> aoParcial) {
+        long id = proximoId.getAndIncrement();
+        CompletableFuture<Mensagem> resposta = new CompletableFuture<>();
+        pendentes.put(id, new Pedido(resposta, aoParcial));
+        // Quem chamou completou o futuro antes da resposta (orTimeout, cancel): o pedido
+        // sai de pendentes, e uma resposta que ainda chegue e descartada
+        resposta.whenComplete((ok, erro) -> {
+            if (erro != null) {
+                pendentes.remove(id);
+            }
+        });
+        try {
+            escrever(msg, id);
+        } catch (IOException e) {
+            pendentes.remove(id);
+            resposta.completeExceptionally(e);
+            return resposta;
+        }
+        // Conexao pode ter caido entre o put e a escrita
+        if (!aberta && pendentes.remove(id) != null) {
+            resposta.completeExceptionally(new IOException("Conexao fechada com " + destino));
+        }
+        return resposta;
+    }
+
+    /*
+     * Envia mensagem sem esperar resposta (id 0)
+     */
+    public void enviarSemResposta(Mensagem msg) throws IOException {
+        escrever(msg, 0);
+    }
+
+    private void escrever(Mensagem msg, long id) throws IOException {
+        if (!aberta) {
+            throw new IOException("Conexao fechada com " + destino);
+        }
+        try {
+            // Mensagens grandes vao em partes, sem segurar a conexao o envio inteiro
+            protocolo.enviar(out, msg, id);
+        } catch (IOException e) {
+            fechar(e);
+            throw e;
+        }
+    }
+
+    /*
+     * Thread leitora: entrega cada resposta ao pedido com o mesmo id
+     */
+    private void lerRespostas() {
+        try {
+            Protocolo.confirmar(protocolo, in);
+            Remontagem remontagem = new Remontagem();
+            Mensagem resposta;
+            while ((resposta = protocolo.ler(in, remontagem)) != null) {
+                if (TIPOS_PARCIAIS.contains(resposta.getTipo())) {
+                    Pedido pedido = pendentes.get(resposta.getId());
+                    if (pedido != null && pedido.aoParcial != null) {
+                        pedido.aoParcial.accept(resposta);
+                    }
+                    continue;
+                }
+                Pedido pedido = pendentes.remove(resposta.getId());
+                if (pedido != null) {
+                    pedido.futuro.complete(resposta);
+                }
+            }
+            fechar(new IOException("Conexao encerrada por " + destino));
+        } catch (IOException | RuntimeException e) {
+            fechar(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    private void fechar(IOException causa) {
+        aberta = false;
+        try {
+            socket.close();
+        } catch (IOException e) {}
+        for (Long id : pendentes.keySet()) {
+            Pedido pedido = pendentes.remove(id);
+            if (pedido != null) {
+                pedido.futuro.completeExceptionally(causa);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        fechar(new IOException("Conexao fechada com " + destino));
+    }
+
+    /*
+     * Requisicao em andamento: futuro da resposta final e callback das parciais
+     */
+    private static class Pedido {
+        final CompletableFuture<Mensagem> futuro;
+        final Consumer<Mensagem> aoParcial;
+
+        Pedido(CompletableFuture<Mensagem> futuro, Consumer<Mensagem> aoParcial) {
+            this.futuro = futuro;
+            this.aoParcial = aoParcial;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+/*
+ * Consistencia pedida numa leitura (GET/MGET, campo consistencia da Mensagem):
+ *   ANY: o servidor que recebe responde na hora com o que tem, mesmo atrasado
+ *   SESSION: regra do GET (5f), o padrao (null): responde se ja tem a versao que o
+ *            cliente conhece (timestamp), senao WAIT_FOR_RESPONSE ate a replicacao chegar
+ *   LINEARIZABLE: so o lider responde, com lease valido (nenhum outro lider pode ter
+ *                 sido eleito) e com a versao lida ja confirmada pelo quorum
+ * A ordem e o codigo no protocolo binario: so acrescentar no fim.
+ */
+public enum Consistencia {
+    ANY,
+    SESSION,
+    LINEARIZABLE
+}
@@ -0,0 +1,37 @@
+/*
+ * Estrutura auxiliar: value + timestamp por chave
+ * Imutavel (exceto acesso): uma escrita troca o objeto inteiro no armazenamento
+ * Em lotes de replicacao e no WAL, valor null representa a remocao da chave
+ */
+public class DadoKV {
+    final String valor;
+
+    // Versao: timestamp do lider (RelogioHibrido); duas escritas da chave nunca tem o mesmo
+    final long timestamp;
+
+    // Instante absoluto de expiracao em ms, no relogio do lider (0 = nao expira)
+    final long expira;
+
+    // Ultimo acesso ou frequencia, para o despejo (ver PoliticaDespejo).
+    // Atualizado sem trava nas leituras: perder um toque concorrente nao importa
+    int acesso;
+
+    DadoKV(String valor, long timestamp) {
+        this(valor, timestamp, 0);
+    }
+
+    DadoKV(String valor, long timestamp, long expira) {
+        this.valor = valor;
+        this.timestamp = timestamp;
+        this.expira = expira;
+        this.acesso = PoliticaDespejo.ATUAL.inicial();
+    }
+
+    void tocar() {
+        acesso = PoliticaDespejo.ATUAL.tocar(acesso);
+    }
+
+    boolean expirado(long agora) {
+        return expira != 0 && expira <= agora;
+    }
+}
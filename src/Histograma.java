@@ -0,0 +1,102 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Histograma de latencias no estilo do HdrHistogram, sem travas: faixas
+ * log-lineares (cada potencia de 2 dividida em SUBFAIXAS faixas iguais), entao
+ * o erro relativo de um percentil fica abaixo de 1/SUBFAIXAS (~3%) em qualquer
+ * escala, com memoria fixa. Valores abaixo de 2*SUBFAIXAS sao exatos.
+ * Registrar e um incremento atomico numa posicao do vetor; os percentis sao
+ * calculados so na leitura. Acumula desde o inicio do servidor.
+ */
+public class Histograma {
+    private static final int BITS_SUBFAIXA = 5;
+    private static final int SUBFAIXAS = 1 << BITS_SUBFAIXA;
+    private static final int EXATOS = 2 * SUBFAIXAS;
+    private static final int FAIXAS = EXATOS + (63 - BITS_SUBFAIXA - 1) * SUBFAIXAS;
+
+    private final AtomicLongArray contagens = new AtomicLongArray(FAIXAS);
+    private final LongAdder soma = new LongAdder();
+    private final AtomicLong maximo = new AtomicLong();
+
+    public void registrar(long valor) {
+        if (valor < 0) {
+            valor = 0;
+        }
+        contagens.incrementAndGet(faixa(valor));
+        soma.add(valor);
+        if (valor > maximo.get()) {
+            maximo.accumulateAndGet(valor, Math::max);
+        }
+    }
+
+    /*
+     * Registra em microssegundos o tempo desde inicioNanos (System.nanoTime)
+     */
+    public void registrarDesde(long inicioNanos) {
+        registrar((System.nanoTime() - inicioNanos) / 1000);
+    }
+
+    private static int faixa(long valor) {
+        if (valor < EXATOS) {
+            return (int) valor;
+        }
+        int expoente = 63 - Long.numberOfLeadingZeros(valor);
+        int deslocamento = expoente - BITS_SUBFAIXA;
+        int sub = (int) (valor >>> deslocamento) & (SUBFAIXAS - 1);
+        return EXATOS + (deslocamento - 1) * SUBFAIXAS + sub;
+    }
+
+    // Maior valor que cai na faixa
+    private static long limite(int faixa) {
+        if (faixa < EXATOS) {
+            return faixa;
+        }
+        int deslocamento = (faixa - EXATOS) / SUBFAIXAS + 1;
+        long sub = (faixa - EXATOS) % SUBFAIXAS;
+        return ((SUBFAIXAS + sub + 1) << deslocamento) - 1;
+    }
+
+    public long contagem() {
+        long total = 0;
+        for (int i = 0; i < FAIXAS; i++) {
+            total += contagens.get(i);
+        }
+        return total;
+    }
+
+    public long media() {
+        long total = contagem();
+        return total == 0 ? 0 : soma.sum() / total;
+    }
+
+    public long maximo() {
+        return maximo.get();
+    }
+
+    /*
+     * Menor valor que cobre a fracao pedida (0 < fracao <= 1) das amostras,
+     * arredondado para o limite da faixa (nunca acima do maximo registrado)
+     */
+    public long percentil(double fracao) {
+        long[] copia = new long[FAIXAS];
+        long total = 0;
+        for (int i = 0; i < FAIXAS; i++) {
+            copia[i] = contagens.get(i);
+            total += copia[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long alvo = Math.max(1, (long) Math.ceil(fracao * total));
+        long acumulado = 0;
+        for (int i = 0; i < FAIXAS; i++) {
+            acumulado += copia[i];
+            if (acumulado >= alvo) {
+                return Math.min(limite(i), maximo.get());
+            }
+        }
+        return maximo.get();
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*
+ * Log por requisicao (os prints do enunciado) fora do caminho critico: quem
+ * registra so enfileira o texto ainda nao montado (Supplier); uma thread
+ * monta e escreve as linhas em blocos no console.
+ * - kv.log.requisicoes=false desliga (nada e montado nem enfileirado)
+ * - no maximo kv.log.maxPorSegundo linhas por segundo (0 = sem limite) e
+ *   kv.log.fila linhas na fila; o excesso e descartado e contado
+ *   (linha de aviso no console e metrica log.descartadas)
+ */
+public class LogAssincrono {
+    public static final boolean ATIVO = Boolean.parseBoolean(System.getProperty("kv.log.requisicoes", "true"));
+    private static final int MAX_POR_SEGUNDO = Integer.getInteger("kv.log.maxPorSegundo", 1000);
+
+    private static final BlockingQueue<Supplier<String>> fila =
+            new ArrayBlockingQueue<>(Integer.getInteger("kv.log.fila", 10000));
+
+    // Janela atual do limite (segundo do nanoTime) e linhas aceitas nela
+    private static final AtomicLong janela = new AtomicLong();
+    private static final AtomicInteger naJanela = new AtomicInteger();
+
+    private static final LongAdder descartadas = Metricas.contador("log.descartadas");
+    private static final AtomicLong descartadasSemAviso = new AtomicLong();
+
+    static {
+        if (ATIVO) {
+            Thread thread = new Thread(LogAssincrono::escrever, "log");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private LogAssincrono() {}
+
+    public static void registrar(Supplier<String> linha) {
+        if (!ATIVO) {
+            return;
+        }
+        if (!dentroDoLimite() || !fila.offer(linha)) {
+            descartadas.increment();
+            descartadasSemAviso.incrementAndGet();
+        }
+    }
+
+    // Aproximado: duas threads podem zerar a mesma janela, o que so aceita umas linhas a mais
+    private static boolean dentroDoLimite() {
+        if (MAX_POR_SEGUNDO <= 0) {
+            return true;
+        }
+        long segundo = System.nanoTime() / 1_000_000_000L;
+        long atual = janela.get();
+        if (segundo != atual && janela.compareAndSet(atual, segundo)) {
+            naJanela.set(0);
+        }
+        return naJanela.incrementAndGet() <= MAX_POR_SEGUNDO;
+    }
+
+    private static void escrever() {
+        List<Supplier<String>> bloco = new ArrayList<>();
+        StringBuilder texto = new StringBuilder();
+        while (true) {
+            try {
+                bloco.add(fila.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            fila.drainTo(bloco);
+            for (Supplier<String> linha : bloco) {
+                try {
+                    texto.append(linha.get()).append(System.lineSeparator());
+                } catch (RuntimeException e) {
+                    texto.append("Erro ao montar linha de log: ").append(e).append(System.lineSeparator());
+                }
+            }
+            long perdidas = descartadasSemAviso.getAndSet(0);
+            if (perdidas > 0) {
+                texto.append("(").append(perdidas).append(" linhas de log descartadas pelo limite)")
+                        .append(System.lineSeparator());
+            }
+            System.out.print(texto);
+            System.out.flush();
+            bloco.clear();
+            texto.setLength(0);
+        }
+    }
+}
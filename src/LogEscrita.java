@@ -0,0 +1,319 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/*
+ * Write-ahead log em segmentos (wal-000001.log, wal-000002.log, ...).
+ * Cada registro e um lote de escritas: [tamanho][crc32][n][key,valor,ts]*n
+ * (valor com tamanho -1 = remocao). Se alguma escrita do lote expira, n vem
+ * negado (~n) e cada escrita leva tambem [expira 8] depois do ts.
+ * Um registro cortado no fim do ultimo segmento (queda no meio da escrita)
+ * e detectado pelo CRC e descartado na reproducao.
+ *
+ * Politicas de fsync (kv.wal.fsync):
+ *   escrita   - fsync a cada registro
+ *   grupo     - escritores concorrentes compartilham o mesmo fsync
+ *   intervalo - fsync em segundo plano a cada intervaloMs (pode perder o ultimo intervalo)
+ */
+public class LogEscrita implements Closeable {
+    public enum PoliticaFsync { ESCRITA, GRUPO, INTERVALO }
+
+    private static final String PREFIXO = "wal-";
+    private static final String SUFIXO = ".log";
+
+    private final File dir;
+    private final PoliticaFsync politica;
+
+    // Segmento aberto para escrita e posicao logica (acumulada entre segmentos)
+    private FileChannel canal;
+    private long segmento;
+    private long escrito;
+
+    // Maior posicao logica ja garantida em disco (so muda sob lockSync)
+    private final Object lockSync = new Object();
+    private volatile long sincronizado;
+
+    private volatile boolean fechado;
+    private Thread threadFsync;
+
+    public LogEscrita(File dir, PoliticaFsync politica, long intervaloMs, long primeiroSegmento) throws IOException {
+        this.dir = dir;
+        this.politica = politica;
+        this.segmento = primeiroSegmento;
+        this.canal = abrir(primeiroSegmento);
+
+        if (politica == PoliticaFsync.INTERVALO) {
+            threadFsync = new Thread(() -> {
+                while (!fechado) {
+                    try {
+                        Thread.sleep(intervaloMs);
+                        sincronizarAte(escritoAtual());
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        System.err.println("Erro no fsync do WAL: " + e.getMessage());
+                    }
+                }
+            }, "wal-fsync");
+            threadFsync.setDaemon(true);
+            threadFsync.start();
+        }
+    }
+
+    public static PoliticaFsync politica(String nome) {
+        switch (nome) {
+            case "escrita":
+                return PoliticaFsync.ESCRITA;
+            case "grupo":
+                return PoliticaFsync.GRUPO;
+            case "intervalo":
+                return PoliticaFsync.INTERVALO;
+            default:
+                throw new IllegalArgumentException("Politica de fsync desconhecida: " + nome);
+        }
+    }
+
+    private FileChannel abrir(long numero) throws IOException {
+        return FileChannel.open(arquivo(dir, numero).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    static File arquivo(File dir, long numero) {
+        return new File(dir, String.format("%s%06d%s", PREFIXO, numero, SUFIXO));
+    }
+
+    /*
+     * Grava um lote; retorna quando o lote esta duravel segundo a politica
+     */
+    public void registrar(Map<String, DadoKV> lote) throws IOException {
+        long minhaPosicao = anexar(lote);
+        if (politica == PoliticaFsync.GRUPO) {
+            sincronizarAte(minhaPosicao);
+        }
+    }
+
+    /*
+     * Escreve o lote no segmento sem esperar o fsync da politica grupo (esse fica
+     * para sincronizar); devolve a posicao logica do fim do registro
+     */
+    public long anexar(Map<String, DadoKV> lote) throws IOException {
+        ByteBuffer registro = codificar(lote);
+        synchronized (this) {
+            if (fechado) {
+                throw new IOException("WAL fechado");
+            }
+            while (registro.hasRemaining()) {
+                canal.write(registro);
+            }
+            escrito += registro.limit();
+            if (politica == PoliticaFsync.ESCRITA) {
+                canal.force(false);
+                sincronizado = escrito;
+            }
+            return escrito;
+        }
+    }
+
+    /*
+     * Politica grupo: um fsync para tudo ja anexado (as demais ja sincronizam sozinhas)
+     */
+    public void sincronizar() throws IOException {
+        if (politica == PoliticaFsync.GRUPO) {
+            sincronizarAte(escritoAtual());
+        }
+    }
+
+    private synchronized long escritoAtual() {
+        return escrito;
+    }
+
+    /*
+     * Group fsync: quem chega primeiro faz o fsync de tudo ja escrito;
+     * os que esperavam no lock e ja foram cobertos saem sem novo fsync
+     */
+    private void sincronizarAte(long posicao) throws IOException {
+        synchronized (lockSync) {
+            if (sincronizado >= posicao) {
+                return;
+            }
+            FileChannel alvo;
+            long ate;
+            synchronized (this) {
+                if (fechado) {
+                    return;
+                }
+                alvo = canal;
+                ate = escrito;
+            }
+            alvo.force(false);
+            sincronizado = Math.max(sincronizado, ate);
+        }
+    }
+
+    /*
+     * Fecha o segmento atual (com fsync) e abre o proximo.
+     * Devolve o numero do segmento fechado: tudo ate ele pode ir para o snapshot.
+     */
+    public long rotacionar() throws IOException {
+        synchronized (lockSync) {
+            synchronized (this) {
+                canal.force(false);
+                canal.close();
+                sincronizado = escrito;
+                long fechadoNumero = segmento;
+                segmento++;
+                canal = abrir(segmento);
+                return fechadoNumero;
+            }
+        }
+    }
+
+    public synchronized long tamanhoSegmentoAtual() throws IOException {
+        return canal.size();
+    }
+
+    /*
+     * Apaga os segmentos ate (inclusive) o numero dado, ja cobertos por snapshot
+     */
+    public void apagarAte(long numero) {
+        for (long seg : segmentos(dir)) {
+            if (seg <= numero) {
+                arquivo(dir, seg).delete();
+            }
+        }
+    }
+
+    /*
+     * Numeros dos segmentos existentes, em ordem
+     */
+    static List<Long> segmentos(File dir) {
+        List<Long> numeros = new ArrayList<>();
+        String[] nomes = dir.list();
+        if (nomes != null) {
+            for (String nome : nomes) {
+                if (nome.startsWith(PREFIXO) && nome.endsWith(SUFIXO)) {
+                    numeros.add(Long.parseLong(nome.substring(PREFIXO.length(), nome.length() - SUFIXO.length())));
+                }
+            }
+        }
+        Collections.sort(numeros);
+        return numeros;
+    }
+
+    /*
+     * Reproduz um segmento; registro incompleto ou corrompido encerra a leitura
+     * (e o fim valido do log). Devolve o numero de registros aplicados.
+     */
+    static long reproduzir(File arquivo, BiConsumer<String, DadoKV> aplicar) throws IOException {
+        long registros = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(arquivo), 1 << 16))) {
+            while (true) {
+                int tamanho;
+                long crc;
+                byte[] dados;
+                try {
+                    tamanho = in.readInt();
+                    crc = in.readInt() & 0xffffffffL;
+                    if (tamanho < 0) {
+                        break;
+                    }
+                    dados = new byte[tamanho];
+                    in.readFully(dados);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc32 = new CRC32();
+                crc32.update(dados);
+                if (crc32.getValue() != crc) {
+                    System.out.println("WAL: registro corrompido em " + arquivo.getName() + ", ignorando o restante.");
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(dados);
+                int n = buffer.getInt();
+                boolean comExpira = n < 0;
+                if (comExpira) {
+                    n = ~n;
+                }
+                for (int i = 0; i < n; i++) {
+                    String key = lerTexto(buffer);
+                    String valor = lerTexto(buffer);
+                    long ts = buffer.getLong();
+                    aplicar.accept(key, new DadoKV(valor, ts, comExpira ? buffer.getLong() : 0));
+                }
+                registros++;
+            }
+        }
+        return registros;
+    }
+
+    private static ByteBuffer codificar(Map<String, DadoKV> lote) {
+        List<byte[]> textos = new ArrayList<>(lote.size() * 2);
+        boolean comExpira = false;
+        int tamanho = 4;
+        for (Map.Entry<String, DadoKV> escrita : lote.entrySet()) {
+            byte[] key = escrita.getKey().getBytes(StandardCharsets.UTF_8);
+            String texto = escrita.getValue().valor;
+            byte[] valor = texto == null ? null : texto.getBytes(StandardCharsets.UTF_8);
+            textos.add(key);
+            textos.add(valor);
+            tamanho += 4 + key.length + 4 + (valor == null ? 0 : valor.length) + 8;
+            comExpira |= escrita.getValue().expira != 0;
+        }
+        if (comExpira) {
+            tamanho += 8 * lote.size();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8 + tamanho);
+        buffer.putInt(tamanho);
+        buffer.putInt(0); // crc, preenchido abaixo
+        buffer.putInt(comExpira ? ~lote.size() : lote.size());
+        int i = 0;
+        for (Map.Entry<String, DadoKV> escrita : lote.entrySet()) {
+            byte[] key = textos.get(i++);
+            byte[] valor = textos.get(i++);
+            buffer.putInt(key.length).put(key);
+            if (valor == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(valor.length).put(valor);
+            }
+            buffer.putLong(escrita.getValue().timestamp);
+            if (comExpira) {
+                buffer.putLong(escrita.getValue().expira);
+            }
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(buffer.array(), 8, tamanho);
+        buffer.putInt(4, (int) crc32.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String lerTexto(ByteBuffer buffer) {
+        int tamanho = buffer.getInt();
+        if (tamanho < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[tamanho];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (threadFsync != null) {
+            threadFsync.interrupt();
+        }
+        synchronized (lockSync) {
+            synchronized (this) {
+                fechado = true;
+                canal.force(false);
+                canal.close();
+            }
+        }
+    }
+}
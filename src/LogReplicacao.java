@@ -0,0 +1,153 @@
+import java.util.*;
+
+/*
+ * Historico recente da replicacao, em memoria: os ultimos lotes de REPLICATION
+ * (ate maxEscritas escritas e maxBytes de chaves e valores, o que vier primeiro),
+ * para o catch-up incremental de um seguidor atrasado.
+ * Cada lote guarda sua posicao: a marca do lider (maior timestamp replicado)
+ * depois dele. Um seguidor com marca M recebe de novo todos os lotes de posicao
+ * >= M; reaplicar e inofensivo (regra de timestamp), e assim nenhum lote de
+ * REMOCAO (timestamps antigos, nao sobem a marca) fica de fora.
+ * Se algum desses lotes ja foi descartado, o seguidor precisa da arvore (ArvoreMerkle).
+ * As assinaturas WATCH (Assinaturas) leem o mesmo historico, cada uma da sua seq.
+ */
+public class LogReplicacao {
+    private final int maxEscritas;
+    private final long maxBytes;
+    private final ArrayDeque<Lote> lotes = new ArrayDeque<>();
+    private long proximaSeq;
+    private int escritas;
+    private long bytes;
+
+    // Menor marca de seguidor que o historico ainda cobre
+    private long marcaMinima;
+
+    private static class Lote {
+        final long seq;
+        final long posicao;
+        final List<Mensagem> itens;
+        final long bytes;
+
+        Lote(long seq, long posicao, List<Mensagem> itens) {
+            this.seq = seq;
+            this.posicao = posicao;
+            this.itens = itens;
+            long soma = 0;
+            for (Mensagem item : itens) {
+                soma += bytes(item);
+            }
+            this.bytes = soma;
+        }
+    }
+
+    /*
+     * Pedaco do historico: itens em ordem e a seq para continuar (-1 = chegou ao fim).
+     * seguinte e a seq do primeiro lote nao lido mesmo no fim (quem acompanha o
+     * historico continua dali) e posicao, a do ultimo lote lido (0 se nenhum).
+     */
+    public static class Trecho {
+        public final List<Mensagem> itens;
+        public final long proximaSeq;
+        public final long seguinte;
+        public final long posicao;
+
+        Trecho(List<Mensagem> itens, long proximaSeq, long seguinte, long posicao) {
+            this.itens = itens;
+            this.proximaSeq = proximaSeq;
+            this.seguinte = seguinte;
+            this.posicao = posicao;
+        }
+    }
+
+    public LogReplicacao(int maxEscritas, long maxBytes) {
+        this.maxEscritas = maxEscritas;
+        this.maxBytes = maxBytes;
+    }
+
+    // Tamanho aproximado de uma escrita em memoria: chars da key e do valor, mais os objetos
+    static long bytes(Mensagem item) {
+        return 64 + 2L * ((item.getKey() != null ? item.getKey().length() : 0) +
+                (item.getValue() != null ? item.getValue().length() : 0));
+    }
+
+    /*
+     * Sem historico anterior a esta marca (ex.: logo depois de recuperar do disco)
+     */
+    public synchronized void iniciar(long marca) {
+        lotes.clear();
+        escritas = 0;
+        bytes = 0;
+        marcaMinima = marca;
+    }
+
+    public synchronized void registrar(List<Mensagem> itens, long posicao) {
+        Lote lote = new Lote(proximaSeq++, posicao, itens);
+        lotes.addLast(lote);
+        escritas += itens.size();
+        bytes += lote.bytes;
+        while ((escritas > maxEscritas || bytes > maxBytes) && lotes.size() > 1) {
+            Lote descartado = lotes.pollFirst();
+            escritas -= descartado.itens.size();
+            bytes -= descartado.bytes;
+            marcaMinima = Math.max(marcaMinima, descartado.posicao + 1);
+        }
+    }
+
+    /*
+     * Lotes de posicao >= marca, ate maxItens escritas e maxBytes (lotes inteiros,
+     * pelo menos um); null se o historico nao cobre mais essa marca
+     */
+    public synchronized Trecho desde(long marca, int maxItens, long maxBytes) {
+        long seq = seqDesde(marca);
+        return seq < 0 ? null : ler(seq, maxItens, maxBytes);
+    }
+
+    /*
+     * Seq do primeiro lote de posicao >= marca (a seguinte ao fim, se nenhum);
+     * -1 se o historico nao cobre mais essa marca
+     */
+    public synchronized long seqDesde(long marca) {
+        if (marca < marcaMinima) {
+            return -1;
+        }
+        for (Lote lote : lotes) {
+            if (lote.posicao >= marca) {
+                return lote.seq;
+            }
+        }
+        return proximaSeq;
+    }
+
+    // Seq do proximo lote a ser registrado
+    public synchronized long fim() {
+        return proximaSeq;
+    }
+
+    /*
+     * Continua a partir da seq devolvida num Trecho anterior; null se ja foi descartada
+     */
+    public synchronized Trecho continuar(long seq, int maxItens, long maxBytes) {
+        if (seq < (lotes.isEmpty() ? proximaSeq : lotes.peekFirst().seq)) {
+            return null;
+        }
+        return ler(seq, maxItens, maxBytes);
+    }
+
+    private Trecho ler(long seq, int maxItens, long maxBytes) {
+        List<Mensagem> itens = new ArrayList<>();
+        long posicao = 0;
+        long lidos = 0;
+        for (Lote lote : lotes) {
+            if (lote.seq < seq) {
+                continue;
+            }
+            if (!itens.isEmpty() && (itens.size() + lote.itens.size() > maxItens || lidos + lote.bytes > maxBytes)) {
+                return new Trecho(itens, lote.seq, lote.seq, posicao);
+            }
+            itens.addAll(lote.itens);
+            lidos += lote.bytes;
+            posicao = lote.posicao;
+        }
+        return new Trecho(itens, -1, proximaSeq, posicao);
+    }
+}
@@ -1,4 +1,10 @@
+import java.util.List;
+
 public class Mensagem {
+    // Id da requisicao, ecoado na resposta para casar respostas fora de ordem
+    // em conexoes persistentes (0 = mensagem sem resposta esperada)
+    private long id;
+
     private String tipo;
 
     private String key;
@@ -9,6 +15,31 @@ public class Mensagem {
     private String ipCliente;
     private int portaCliente;
 
+    // Escritas agrupadas num unico REPLICATION (lote); null nas mensagens simples
+    private List<Mensagem> itens;
+
+    // Respostas: maior timestamp de replicacao ja aplicado por quem respondeu
+    private long hwm;
+
+    // Confirmacoes de escrita: endereco do lider ("ip:porta")
+    private String lider;
+
+    // Mandato (term) da eleicao de lider: HEARTBEAT, VOTO e REPLICATION
+    private long mandato;
+
+    // PUT/MPUT/CAS: tempo de vida pedido pelo cliente, em ms (0 = sem expiracao)
+    private long ttl;
+
+    // Itens replicados e respostas de GET: instante absoluto de expiracao, em ms
+    // no relogio do lider (0 = nao expira)
+    private long expira;
+
+    // SCAN: maximo de chaves pedidas (0 = limite do servidor)
+    private int limite;
+
+    // GET/MGET: consistencia da leitura (null = SESSION)
+    private Consistencia consistencia;
+
     public Mensagem() {}
 
     public Mensagem(String tipo, String key, String value, long timestamp, String ipCliente, int portaCliente) {
@@ -20,6 +51,14 @@ public class Mensagem {
         this.portaCliente = portaCliente;
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public String getTipo() {
         return tipo;
     }
@@ -67,4 +106,68 @@ public class Mensagem {
     public void setPortaCliente(int portaCliente) {
         this.portaCliente = portaCliente;
     }
+
+    public List<Mensagem> getItens() {
+        return itens;
+    }
+
+    public void setItens(List<Mensagem> itens) {
+        this.itens = itens;
+    }
+
+    public long getHwm() {
+        return hwm;
+    }
+
+    public void setHwm(long hwm) {
+        this.hwm = hwm;
+    }
+
+    public String getLider() {
+        return lider;
+    }
+
+    public void setLider(String lider) {
+        this.lider = lider;
+    }
+
+    public long getMandato() {
+        return mandato;
+    }
+
+    public void setMandato(long mandato) {
+        this.mandato = mandato;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public long getExpira() {
+        return expira;
+    }
+
+    public void setExpira(long expira) {
+        this.expira = expira;
+    }
+
+    public int getLimite() {
+        return limite;
+    }
+
+    public void setLimite(int limite) {
+        this.limite = limite;
+    }
+
+    public Consistencia getConsistencia() {
+        return consistencia;
+    }
+
+    public void setConsistencia(Consistencia consistencia) {
+        this.consistencia = consistencia;
+    }
 }
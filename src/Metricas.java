@@ -0,0 +1,129 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+/*
+ * Metricas do servidor, por nome: contadores (LongAdder), histogramas de
+ * latencia (Histograma) e medidores (valor lido na hora, ex.: tamanho de uma fila).
+ * Quem registra no caminho critico guarda a referencia do contador/histograma
+ * (o mapa so e consultado na criacao). Leitura pela mensagem STATS (relatorio)
+ * e por JMX (registrarJmx), com os mesmos nomes: cada histograma aparece como
+ * <nome>.n, .media, .p50, .p90, .p99, .p999 e .max.
+ */
+public class Metricas {
+    private static final Map<String, LongAdder> contadores = new ConcurrentHashMap<>();
+    private static final Map<String, Histograma> histogramas = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> medidores = new ConcurrentHashMap<>();
+
+    private Metricas() {}
+
+    public static LongAdder contador(String nome) {
+        return contadores.computeIfAbsent(nome, n -> new LongAdder());
+    }
+
+    public static Histograma histograma(String nome) {
+        return histogramas.computeIfAbsent(nome, n -> new Histograma());
+    }
+
+    /*
+     * Medidor lido so no relatorio; registrar de novo o mesmo nome nao troca o primeiro
+     */
+    public static void medidor(String nome, LongSupplier valor) {
+        medidores.putIfAbsent(nome, valor);
+    }
+
+    /*
+     * Todas as metricas, em ordem de nome
+     */
+    public static SortedMap<String, Long> valores() {
+        SortedMap<String, Long> valores = new TreeMap<>();
+        contadores.forEach((nome, contador) -> valores.put(nome, contador.sum()));
+        medidores.forEach((nome, medidor) -> valores.put(nome, medidor.getAsLong()));
+        histogramas.forEach((nome, histograma) -> {
+            valores.put(nome + ".n", histograma.contagem());
+            valores.put(nome + ".media", histograma.media());
+            valores.put(nome + ".p50", histograma.percentil(0.5));
+            valores.put(nome + ".p90", histograma.percentil(0.9));
+            valores.put(nome + ".p99", histograma.percentil(0.99));
+            valores.put(nome + ".p999", histograma.percentil(0.999));
+            valores.put(nome + ".max", histograma.maximo());
+        });
+        return valores;
+    }
+
+    /*
+     * Texto da resposta STATS_OK: uma linha "nome valor" por metrica
+     */
+    public static String relatorio() {
+        StringBuilder texto = new StringBuilder();
+        for (Map.Entry<String, Long> valor : valores().entrySet()) {
+            texto.append(valor.getKey()).append(' ').append(valor.getValue()).append('\n');
+        }
+        return texto.toString();
+    }
+
+    /*
+     * Publica as metricas como atributos (somente leitura) de um MBean, ex.:
+     * "KVStore:type=Metricas,porta=10097" (jconsole, VisualVM, agentes JMX)
+     */
+    public static void registrarJmx(String nome) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(nome));
+        } catch (JMException e) {
+            System.err.println("Erro ao registrar metricas no JMX: " + e.getMessage());
+        }
+    }
+
+    // MBean dinamico: os atributos sao as metricas existentes no momento da consulta
+    private static class Bean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String atributo) throws AttributeNotFoundException {
+            Long valor = valores().get(atributo);
+            if (valor == null) {
+                throw new AttributeNotFoundException(atributo);
+            }
+            return valor;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] atributos) {
+            SortedMap<String, Long> valores = valores();
+            AttributeList lista = new AttributeList();
+            for (String atributo : atributos) {
+                Long valor = valores.get(atributo);
+                if (valor != null) {
+                    lista.add(new Attribute(atributo, valor));
+                }
+            }
+            return lista;
+        }
+
+        @Override
+        public void setAttribute(Attribute atributo) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrica somente leitura: " + atributo.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList atributos) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String acao, Object[] parametros, String[] assinatura) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(acao));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> atributos = new ArrayList<>();
+            for (String nome : valores().keySet()) {
+                atributos.add(new MBeanAttributeInfo(nome, Long.class.getName(), nome, true, false, false));
+            }
+            return new MBeanInfo(Metricas.class.getName(), "Metricas do KVStore",
+                    atributos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * Durabilidade do banco: WAL (LogEscrita) + snapshots periodicos.
+ *
+ * Snapshot: gira o WAL, grava todo o banco em snapshot.tmp, faz fsync e
+ * renomeia para snapshot.dat; so entao apaga os segmentos que ele cobre.
+ * Cada escrita vai ao WAL e depois ao banco entre iniciarEscrita e terminarEscrita;
+ * o giro espera as que estao nesse meio, entao tudo o que ficou nos segmentos
+ * cobertos ja esta no banco quando ele comeca a ser percorrido. Fora isso o snapshot
+ * e "fuzzy" (escritas posteriores podem ou nao entrar), o que e seguro porque elas
+ * estao no segmento novo e a reproducao usa a regra de timestamp (gravarSeMaisNovo).
+ *
+ * Inicio: carrega snapshot.dat e reproduz os segmentos seguintes; a escrita
+ * continua num segmento novo (nunca no fim de um segmento possivelmente cortado).
+ */
+public class Persistencia implements Closeable {
+    private static final int MAGICO = 0x4B56534E; // "KVSN"
+    // Versao com o instante de expiracao depois do timestamp de cada entrada
+    private static final int MAGICO_EXPIRA = 0x4B565345; // "KVSE"
+    private static final String SNAPSHOT = "snapshot.dat";
+    private static final String SNAPSHOT_TEMP = "snapshot.tmp";
+
+    private final File dir;
+    private final LogEscrita.PoliticaFsync politica;
+    private final long intervaloFsyncMs;
+    private LogEscrita wal;
+    private ScheduledExecutorService agendador;
+    // Leitura: escritas entre o WAL e o banco; escrita: o giro do WAL no snapshot
+    private final ReentrantReadWriteLock giro = new ReentrantReadWriteLock();
+
+    public Persistencia(File dir, LogEscrita.PoliticaFsync politica, long intervaloFsyncMs) throws IOException {
+        this.dir = dir;
+        this.politica = politica;
+        this.intervaloFsyncMs = intervaloFsyncMs;
+        Files.createDirectories(dir.toPath());
+    }
+
+    /*
+     * Recupera o banco do disco e abre o WAL para novas escritas.
+     * Devolve o maior timestamp recuperado (0 se vazio).
+     */
+    public long recuperar(Armazenamento banco) throws IOException {
+        long maiorTimestamp = 0;
+        long coberto = 0;
+        long entradas = 0;
+
+        File snapshot = new File(dir, SNAPSHOT);
+        if (snapshot.exists()) {
+            CheckedInputStream verificado = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(snapshot), 1 << 16), new CRC32());
+            try (DataInputStream in = new DataInputStream(verificado)) {
+                int magico = in.readInt();
+                if (magico != MAGICO && magico != MAGICO_EXPIRA) {
+                    throw new IOException("Snapshot invalido: " + snapshot);
+                }
+                coberto = in.readLong();
+                while (in.readBoolean()) {
+                    String key = lerTexto(in);
+                    String valor = lerTexto(in);
+                    long ts = in.readLong();
+                    DadoKV dado = new DadoKV(valor, ts, magico == MAGICO_EXPIRA ? in.readLong() : 0);
+                    banco.gravarSeMaisNovo(key, dado);
+                    maiorTimestamp = Math.max(maiorTimestamp, dado.timestamp);
+                    entradas++;
+                }
+                long crcCalculado = verificado.getChecksum().getValue();
+                if ((in.readInt() & 0xffffffffL) != crcCalculado) {
+                    throw new IOException("Snapshot corrompido (CRC): " + snapshot);
+                }
+            }
+        }
+
+        long[] maior = { maiorTimestamp };
+        long registros = 0;
+        long ultimoSegmento = coberto;
+        for (long segmento : LogEscrita.segmentos(dir)) {
+            if (segmento <= coberto) {
+                continue;
+            }
+            registros += LogEscrita.reproduzir(LogEscrita.arquivo(dir, segmento), (key, dado) -> {
+                banco.aplicar(key, dado);
+                maior[0] = Math.max(maior[0], dado.timestamp);
+            });
+            ultimoSegmento = segmento;
+        }
+
+        wal = new LogEscrita(dir, politica, intervaloFsyncMs, ultimoSegmento + 1);
+        System.out.println("Recuperado de " + dir + ": " + entradas + " chaves do snapshot, " +
+                registros + " lotes do WAL.");
+        return maior[0];
+    }
+
+    /*
+     * Escrita local em andamento, do WAL ate o banco: varias ao mesmo tempo, mas o
+     * snapshot so gira o WAL sem nenhuma no meio. Senao a escrita ficaria num segmento
+     * apagado e fora do banco percorrido, e sumiria no proximo inicio.
+     */
+    public void iniciarEscrita() {
+        giro.readLock().lock();
+    }
+
+    public void terminarEscrita() {
+        giro.readLock().unlock();
+    }
+
+    /*
+     * Registra um lote no WAL (deve ser chamado antes de confirmar a escrita)
+     */
+    public void registrar(Map<String, DadoKV> lote) throws IOException {
+        wal.registrar(lote);
+    }
+
+    /*
+     * Anexa um lote ao WAL sem esperar o fsync em grupo; sincronizar o torna duravel.
+     * O lider anexa cada escrita antes de aplica-la no banco e faz um fsync por lote
+     * de replicacao, em vez de um por escrita.
+     */
+    public void anexar(Map<String, DadoKV> lote) throws IOException {
+        wal.anexar(lote);
+    }
+
+    /*
+     * fsync do que ja foi anexado (segundo a politica do WAL)
+     */
+    public void sincronizar() throws IOException {
+        wal.sincronizar();
+    }
+
+    /*
+     * Agenda snapshots a cada intervaloMs
+     */
+    public void iniciarSnapshots(Armazenamento banco, long intervaloMs) {
+        agendador = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        agendador.scheduleWithFixedDelay(() -> {
+            try {
+                if (wal.tamanhoSegmentoAtual() > 0) {
+                    snapshot(banco);
+                }
+            } catch (IOException e) {
+                System.err.println("Erro ao gravar snapshot: " + e.getMessage());
+            }
+        }, intervaloMs, intervaloMs, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Grava snapshot compacto do banco e descarta os segmentos cobertos
+     */
+    public synchronized void snapshot(Armazenamento banco) throws IOException {
+        long coberto;
+        giro.writeLock().lock();
+        try {
+            coberto = wal.rotacionar();
+        } finally {
+            giro.writeLock().unlock();
+        }
+        File temp = new File(dir, SNAPSHOT_TEMP);
+        CRC32 crc = new CRC32();
+        try (FileOutputStream arquivo = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(arquivo, 1 << 16), crc))) {
+            out.writeInt(MAGICO_EXPIRA);
+            out.writeLong(coberto);
+            IOException[] erro = new IOException[1];
+            banco.paraCada((key, dado) -> {
+                if (erro[0] != null) {
+                    return;
+                }
+                try {
+                    out.writeBoolean(true);
+                    escreverTexto(out, key);
+                    escreverTexto(out, dado.valor);
+                    out.writeLong(dado.timestamp);
+                    out.writeLong(dado.expira);
+                } catch (IOException e) {
+                    erro[0] = e;
+                }
+            });
+            if (erro[0] != null) {
+                throw erro[0];
+            }
+            out.writeBoolean(false);
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            arquivo.getFD().sync();
+        }
+        Files.move(temp.toPath(), new File(dir, SNAPSHOT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // O rename so sobrevive a uma queda depois do fsync do diretorio;
+        // antes disso os segmentos cobertos nao podem sumir
+        sincronizarDiretorio();
+        wal.apagarAte(coberto);
+    }
+
+    private void sincronizarDiretorio() throws IOException {
+        FileChannel canal;
+        try {
+            canal = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            // Sistemas que nao abrem diretorio como arquivo (Windows): nao ha o que forcar
+            return;
+        }
+        try (canal) {
+            canal.force(true);
+        }
+    }
+
+    private static void escreverTexto(DataOutputStream out, String texto) throws IOException {
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String lerTexto(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (agendador != null) {
+            agendador.shutdownNow();
+        }
+        if (wal != null) {
+            wal.close();
+        }
+    }
+}
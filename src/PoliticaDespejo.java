@@ -0,0 +1,77 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Escolha de chaves para despejo quando o banco passa do limite de memoria
+ * (kv.memoria.maxMb), kv.despejo.politica = lru | lfu.
+ * Nao ha lista global de acessos: cada entrada guarda um int de acesso,
+ * atualizado nas leituras, e o despejo sorteia algumas chaves e remove a de
+ * maior prioridade (aproximado, como no Redis).
+ *   LRU: acesso = relogio em ms (nanoTime >> 20) do ultimo acesso
+ *   LFU: acesso = [minuto do ultimo decaimento 16 bits][contador logaritmico 8 bits];
+ *        o contador sobe com probabilidade decrescente e cai 1 por minuto parado
+ */
+public enum PoliticaDespejo {
+    LRU {
+        int inicial() {
+            return relogio();
+        }
+
+        int tocar(int acesso) {
+            return relogio();
+        }
+
+        long prioridade(int acesso) {
+            // Tempo parado, sem sinal: o relogio de 32 bits da a volta
+            return (relogio() - acesso) & 0xffffffffL;
+        }
+    },
+
+    LFU {
+        int inicial() {
+            return (minuto() << 8) | CONTADOR_INICIAL;
+        }
+
+        int tocar(int acesso) {
+            int contador = decair(acesso);
+            if (contador < 255) {
+                double chance = 1.0 / ((contador - CONTADOR_INICIAL) * FATOR_LOG + 1);
+                if (contador < CONTADOR_INICIAL || ThreadLocalRandom.current().nextDouble() < chance) {
+                    contador++;
+                }
+            }
+            return (minuto() << 8) | contador;
+        }
+
+        long prioridade(int acesso) {
+            return 255 - decair(acesso);
+        }
+    };
+
+    public static final PoliticaDespejo ATUAL =
+            valueOf(System.getProperty("kv.despejo.politica", "lru").toUpperCase());
+
+    // Chave nova comeca com alguma frequencia, para nao ser despejada antes da segunda leitura
+    private static final int CONTADOR_INICIAL = 5;
+    private static final int FATOR_LOG = 10;
+
+    abstract int inicial();
+
+    // Novo valor de acesso depois de uma leitura
+    abstract int tocar(int acesso);
+
+    // Quanto maior, melhor candidata ao despejo
+    abstract long prioridade(int acesso);
+
+    private static int relogio() {
+        return (int) (System.nanoTime() >>> 20);
+    }
+
+    private static int minuto() {
+        return (int) (System.currentTimeMillis() / 60_000) & 0xffff;
+    }
+
+    private static int decair(int acesso) {
+        int parado = (minuto() - (acesso >>> 8)) & 0xffff;
+        return Math.max(0, (acesso & 0xff) - parado);
+    }
+}
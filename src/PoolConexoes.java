@@ -0,0 +1,93 @@
+import java.io.*;
+import java.net.*;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/*
+ * Pool de conexoes persistentes por destino.
+ * Cada destino tem um numero fixo de conexoes multiplexadas, usadas em rodizio
+ * e reabertas sob demanda quando caem.
+ */
+public class PoolConexoes implements Closeable {
+    private final int tamanho;
+    private final Map<InetSocketAddress, Conexao[]> conexoes = new ConcurrentHashMap<>();
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    public PoolConexoes(int tamanho) {
+        if (tamanho < 1) {
+            throw new IllegalArgumentException("Tamanho do pool deve ser >= 1: " + tamanho);
+        }
+        this.tamanho = tamanho;
+    }
+
+    /*
+     * Devolve uma conexao aberta para o destino (abre se necessario)
+     */
+    public Conexao obter(InetSocketAddress destino) throws IOException {
+        Conexao[] slots = conexoes.computeIfAbsent(destino, d -> new Conexao[tamanho]);
+        int i = Math.floorMod(cursor.getAndIncrement(), tamanho);
+        synchronized (slots) {
+            Conexao conexao = slots[i];
+            if (conexao == null || !conexao.isAberta()) {
+                conexao = new Conexao(destino);
+                slots[i] = conexao;
+            }
+            return conexao;
+        }
+    }
+
+    /*
+     * Envia requisicao de forma assincrona; falha de conexao vira futuro falho
+     */
+    public CompletableFuture<Mensagem> enviar(InetSocketAddress destino, Mensagem msg) {
+        return enviar(destino, msg, null);
+    }
+
+    /*
+     * Idem, entregando respostas parciais (WAIT_FOR_RESPONSE) a aoParcial
+     */
+    public CompletableFuture<Mensagem> enviar(InetSocketAddress destino, Mensagem msg, Consumer<Mensagem> aoParcial) {
+        try {
+            return obter(destino).enviar(msg, aoParcial);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /*
+     * Envia requisicao e espera a resposta por ate timeoutMs
+     */
+    public Mensagem enviarEsperar(InetSocketAddress destino, Mensagem msg, long timeoutMs) throws IOException {
+        CompletableFuture<Mensagem> resposta = enviar(destino, msg);
+        try {
+            return resposta.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable causa = e.getCause();
+            throw causa instanceof IOException ? (IOException) causa : new IOException(causa);
+        } catch (TimeoutException e) {
+            // Desiste do pedido: a Conexao o tira de pendentes
+            resposta.completeExceptionally(e);
+            throw new IOException("Timeout aguardando resposta de " + destino);
+        } catch (InterruptedException e) {
+            resposta.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrompido aguardando resposta de " + destino);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Conexao[] slots : conexoes.values()) {
+            synchronized (slots) {
+                for (Conexao conexao : slots) {
+                    if (conexao != null) {
+                        conexao.close();
+                    }
+                }
+            }
+        }
+        conexoes.clear();
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/*
+ * Codificacao de Mensagem na conexao.
+ * JSON (uma linha por mensagem, formato original) ou binario compacto.
+ *
+ * Negociacao: quem abre a conexao e quer o binario envia primeiro os bytes
+ * PREFACIO e VERSAO; o servidor responde os mesmos dois bytes e a conexao
+ * passa a ser binaria nos dois sentidos. Qualquer outro primeiro byte
+ * ('{' de uma linha JSON) mantem o JSON, entao clientes antigos continuam funcionando.
+ */
+public interface Protocolo {
+    byte PREFACIO = (byte) 0xB1;
+    byte VERSAO = 1;
+
+    Protocolo JSON = new ProtocoloJson();
+    Protocolo BINARIO = new ProtocoloBinario();
+
+    // Quadro completo (com delimitador/tamanho), usando o id dado
+    byte[] codificar(Mensagem msg, long id);
+
+    default void escrever(OutputStream out, Mensagem msg, long id) throws IOException {
+        out.write(codificar(msg, id));
+    }
+
+    /*
+     * Escreve a mensagem e da flush sob o monitor de out (conexao compartilhada).
+     * No binario, uma mensagem grande sai em partes, uma por vez no monitor:
+     * mensagens de outras threads podem passar entre as partes.
+     */
+    default void enviar(OutputStream out, Mensagem msg, long id) throws IOException {
+        synchronized (out) {
+            escrever(out, msg, id);
+            out.flush();
+        }
+    }
+
+    // Quadros da mensagem (NIO): um so, ou as partes de uma mensagem grande (binario)
+    default Quadros quadros(Mensagem msg, long id) {
+        return Quadros.de(ByteBuffer.wrap(codificar(msg, id)));
+    }
+
+    /*
+     * Quadros de uma mensagem, gerados sob demanda: quem envia so pede o proximo
+     * depois de escrever o anterior inteiro, entao de uma mensagem em partes so
+     * a parte atual fica em memoria.
+     */
+    interface Quadros {
+        // Proximo quadro (valido ate a proxima chamada), ou null no fim
+        ByteBuffer proximo();
+
+        static Quadros de(ByteBuffer quadro) {
+            ByteBuffer[] restante = { quadro };
+            return () -> {
+                ByteBuffer proximo = restante[0];
+                restante[0] = null;
+                return proximo;
+            };
+        }
+    }
+
+    // Le um quadro do stream; null no fim da conexao
+    Mensagem ler(InputStream in) throws IOException;
+
+    // Le a proxima mensagem completa, juntando as partes das grandes na remontagem da conexao
+    default Mensagem ler(InputStream in, Remontagem remontagem) throws IOException {
+        return ler(in);
+    }
+
+    // Tamanho do primeiro quadro completo em buf[off, off+len), ou -1 se ainda incompleto (NIO)
+    int tamanhoQuadro(byte[] buf, int off, int len);
+
+    // Decodifica um quadro completo (como delimitado por tamanhoQuadro)
+    Mensagem decodificar(byte[] buf, int off, int len);
+
+    // Idem, com partes de mensagens grandes: null ate chegar a ultima parte
+    default Mensagem decodificar(byte[] buf, int off, int len, Remontagem remontagem) {
+        return decodificar(buf, off, len);
+    }
+
+    /*
+     * Lado que abriu a conexao: pede o protocolo (nada a enviar para JSON)
+     */
+    static void pedir(Protocolo protocolo, OutputStream out) throws IOException {
+        if (protocolo == BINARIO) {
+            out.write(new byte[] { PREFACIO, VERSAO });
+            out.flush();
+        }
+    }
+
+    /*
+     * Lado que abriu a conexao: confere a resposta do servidor ao pedido
+     */
+    static void confirmar(Protocolo protocolo, InputStream in) throws IOException {
+        if (protocolo == BINARIO && (in.read() != (PREFACIO & 0xff) || in.read() != VERSAO)) {
+            throw new IOException("Servidor nao aceitou o protocolo binario");
+        }
+    }
+
+    /*
+     * Lado que aceitou a conexao (stream bloqueante com mark/reset): decide pelo primeiro byte
+     */
+    static Protocolo negociar(InputStream in, OutputStream out) throws IOException {
+        in.mark(2);
+        int primeiro = in.read();
+        if (primeiro == (PREFACIO & 0xff)) {
+            if (in.read() != VERSAO) {
+                throw new IOException("Versao do protocolo binario nao suportada");
+            }
+            out.write(new byte[] { PREFACIO, VERSAO });
+            out.flush();
+            return BINARIO;
+        }
+        in.reset();
+        return JSON;
+    }
+}
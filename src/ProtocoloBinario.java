@@ -0,0 +1,756 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Codificacao binaria compacta de Mensagem:
+ *   quadro = [varint tamanho][corpo]
+ *   corpo  = [opcode][varint campos presentes][campos...]
+ * Opcode de 1 byte para os tipos conhecidos (0 = tipo enviado como texto),
+ * textos como [varint tamanho][UTF-8], timestamp com 8 bytes fixos e
+ * itens como lista de corpos [varint quantidade]([varint tamanho][corpo])*.
+ * Campos nulos/zero nao ocupam espaco.
+ * Valores grandes (>= kv.valor.comprimirAcima caracteres; 0 = nunca) vao comprimidos
+ * (deflate) quando isso os diminui. Mensagens com corpo acima de kv.protocolo.parteBytes
+ * vao em partes, cada uma num quadro proprio:
+ *   corpo da parte = [OPCODE_PARTE][varint sequencia][byte flags][varint total][pedaco do corpo]
+ * (flags: PRIMEIRA, ULTIMA; o total do corpo so vem na primeira) e o receptor junta as
+ * partes pela sequencia (Remontagem da conexao). As partes sao montadas uma de cada vez
+ * a partir da Mensagem (ver Partes): no envio o corpo inteiro nunca fica num buffer so.
+ * Intercalacao: na conexao bloqueante cada parte sai sob o monitor do stream, entao
+ * mensagens de outras threads podem passar entre duas partes; no NIO a fila de saida do
+ * canal e FIFO (ordem das mensagens de uma conexao, ex.: SCAN_PARCIAL antes do SCAN_OK),
+ * e o que vem depois de um valor de varios MB espera ele sair inteiro.
+ * O recebimento nao e em fluxo: a Remontagem junta o corpo inteiro num byte[] e o valor
+ * vira um String, entao cada mensagem grande em transito custa no receptor cerca de
+ * tres vezes o seu tamanho (mais as outras incompletas da conexao). Nenhuma mensagem
+ * (inteira ou remontada) passa de kv.mensagem.maxBytes: acima disso e erro e a conexao
+ * e fechada; com muitas conexoes trazendo valores grandes, baixe esse limite.
+ */
+public class ProtocoloBinario implements Protocolo {
+    // Tipos conhecidos; o indice e o opcode (0 reservado para tipo textual)
+    private static final String[] TIPOS = {
+        null, "PUT", "PUT_OK", "PUT_FAIL", "GET", "GET_OK", "WAIT_FOR_RESPONSE",
+        "REPLICATION", "REPLICATION_OK", "REPLICATION_FAIL", "GET_TIMEOUT",
+        "MGET", "MGET_OK", "MGET_TIMEOUT", "MPUT", "MPUT_OK", "CAS", "CAS_FAIL",
+        "MGET_FAIL", "TOPOLOGIA", "TOPOLOGIA_OK", "TOPOLOGIA_FAIL", "MIGRACAO", "MIGRACAO_OK",
+        "MIGRACAO_FAIL", "REMOCAO", "HEARTBEAT", "HEARTBEAT_OK", "VOTO", "VOTO_OK", "VOTO_NEGADO",
+        "SYNC", "SYNC_OK", "SYNC_ARVORE", "SYNC_FAIL", "ARVORE", "ARVORE_OK", "BALDES", "BALDES_OK",
+        "STATS", "STATS_OK", "SCAN", "SCAN_PARCIAL", "SCAN_OK", "SCAN_TIMEOUT", "SCAN_FAIL",
+        "WATCH", "WATCH_OK", "WATCH_EVENTOS", "WATCH_FIM", "WATCH_FAIL", "UNWATCH", "UNWATCH_OK", "UNWATCH_FAIL",
+        "GET_MIGRANDO", "MIGRACAO_FIM", "BALDES_DIVIDIR"
+    };
+    private static final Map<String, Integer> OPCODES = new HashMap<>();
+    static {
+        for (int i = 1; i < TIPOS.length; i++) {
+            OPCODES.put(TIPOS[i], i);
+        }
+    }
+
+    // Bits de presenca dos campos
+    private static final int ID = 1;
+    private static final int KEY = 1 << 1;
+    private static final int VALUE = 1 << 2;
+    private static final int TIMESTAMP = 1 << 3;
+    private static final int IP_CLIENTE = 1 << 4;
+    private static final int PORTA_CLIENTE = 1 << 5;
+    private static final int ITENS = 1 << 6;
+    private static final int TIPO_TEXTO = 1 << 7;
+    private static final int HWM = 1 << 8;
+    private static final int LIDER = 1 << 9;
+    private static final int MANDATO = 1 << 10;
+    private static final int TTL = 1 << 11;
+    private static final int EXPIRA = 1 << 12;
+    private static final int LIMITE = 1 << 13;
+    private static final int VALOR_COMPRIMIDO = 1 << 14;
+    private static final int CONSISTENCIA = 1 << 15;
+
+    // Codigo da consistencia = ordinal
+    private static final Consistencia[] CONSISTENCIAS = Consistencia.values();
+
+    static final int MAX_MENSAGEM = Integer.getInteger("kv.mensagem.maxBytes", 64 << 20);
+    private static final int TAMANHO_PARTE = Integer.getInteger("kv.protocolo.parteBytes", 64 << 10);
+    private static final int COMPRIMIR_ACIMA = Integer.getInteger("kv.valor.comprimirAcima", 0);
+
+    // Opcode dos quadros de parte (fora da faixa de TIPOS), flags e sequencia das mensagens partidas
+    private static final int OPCODE_PARTE = 0xff;
+    private static final int ULTIMA = 1;
+    private static final int PRIMEIRA = 2;
+    private static final AtomicLong sequenciaPartes = new AtomicLong();
+
+    // Textos (caracteres) e bytes a partir deste tamanho ficam fora do buffer ao enviar:
+    // as Partes os codificam direto no quadro de cada parte
+    private static final int EXTERNO = 4 << 10;
+
+    // Buffer de escrita reaproveitado por thread; depois de uma mensagem grande o buffer
+    // crescido e descartado, para cada thread nao reter o tamanho da maior ja enviada
+    private static final ThreadLocal<Saida> saidas = ThreadLocal.withInitial(Saida::new);
+    private static final int RETER_SAIDA = 1 << 20;
+
+    public byte[] codificar(Mensagem msg, long id) {
+        Saida saida = quadro(corpo(msg, id, false));
+        byte[] quadro = Arrays.copyOf(saida.buf, saida.tamanho);
+        liberar(saida);
+        return quadro;
+    }
+
+    @Override
+    public void escrever(OutputStream out, Mensagem msg, long id) throws IOException {
+        Saida saida = quadro(corpo(msg, id, false));
+        out.write(saida.buf, 0, saida.tamanho);
+        liberar(saida);
+    }
+
+    @Override
+    public void enviar(OutputStream out, Mensagem msg, long id) throws IOException {
+        Saida saida = corpo(msg, id, true);
+        if (saida.inteira()) {
+            quadro(saida);
+            try {
+                synchronized (out) {
+                    out.write(saida.buf, 0, saida.tamanho);
+                    out.flush();
+                }
+            } finally {
+                liberar(saida);
+            }
+            return;
+        }
+        Partes partes = new Partes(adotar(saida));
+        for (ByteBuffer parte; (parte = partes.proximo()) != null; ) {
+            synchronized (out) {
+                out.write(parte.array(), parte.position(), parte.remaining());
+                out.flush();
+            }
+        }
+    }
+
+    @Override
+    public Quadros quadros(Mensagem msg, long id) {
+        Saida saida = corpo(msg, id, true);
+        if (!saida.inteira()) {
+            return new Partes(adotar(saida));
+        }
+        quadro(saida);
+        byte[] quadro = Arrays.copyOf(saida.buf, saida.tamanho);
+        liberar(saida);
+        return Quadros.de(ByteBuffer.wrap(quadro));
+    }
+
+    private static void liberar(Saida saida) {
+        if (saida.buf.length > RETER_SAIDA) {
+            saidas.remove();
+        }
+    }
+
+    // A Saida da thread passa a ser das Partes (que podem ser lidas em outra thread)
+    private static Saida adotar(Saida saida) {
+        saidas.remove();
+        return saida;
+    }
+
+    /*
+     * Corpo da mensagem na Saida da thread, a partir da posicao 5 (reservada para o
+     * tamanho do quadro); com separar, textos e bytes grandes ficam de fora (externos)
+     */
+    private static Saida corpo(Mensagem msg, long id, boolean separar) {
+        Saida corpo = saidas.get();
+        corpo.reiniciar(separar);
+        corpo.posicionar(5);
+        escreverCorpo(corpo, msg, id);
+        return corpo;
+    }
+
+    // Poe o tamanho antes do corpo (sem externos) e desloca o quadro para comecar em 0
+    private static Saida quadro(Saida corpo) {
+        int tamanhoCorpo = corpo.tamanho - 5;
+        int bytesTamanho = tamanhoVarint(tamanhoCorpo);
+        int inicio = 5 - bytesTamanho;
+        corpo.escreverVarintEm(inicio, tamanhoCorpo);
+        System.arraycopy(corpo.buf, inicio, corpo.buf, 0, bytesTamanho + tamanhoCorpo);
+        corpo.tamanho = bytesTamanho + tamanhoCorpo;
+        return corpo;
+    }
+
+    private static void escreverCorpo(Saida out, Mensagem msg, long id) {
+        Integer opcode = msg.getTipo() == null ? null : OPCODES.get(msg.getTipo());
+        byte[] comprimido = COMPRIMIR_ACIMA > 0 && msg.getValue() != null && msg.getValue().length() >= COMPRIMIR_ACIMA
+                ? comprimir(msg.getValue()) : null;
+        int campos = 0;
+        if (id != 0) campos |= ID;
+        if (msg.getKey() != null) campos |= KEY;
+        if (comprimido != null) campos |= VALOR_COMPRIMIDO;
+        else if (msg.getValue() != null) campos |= VALUE;
+        if (msg.getTimestamp() != 0) campos |= TIMESTAMP;
+        if (msg.getIpCliente() != null) campos |= IP_CLIENTE;
+        if (msg.getPortaCliente() != 0) campos |= PORTA_CLIENTE;
+        if (msg.getItens() != null) campos |= ITENS;
+        if (opcode == null && msg.getTipo() != null) campos |= TIPO_TEXTO;
+        if (msg.getHwm() != 0) campos |= HWM;
+        if (msg.getLider() != null) campos |= LIDER;
+        if (msg.getMandato() != 0) campos |= MANDATO;
+        if (msg.getTtl() != 0) campos |= TTL;
+        if (msg.getExpira() != 0) campos |= EXPIRA;
+        if (msg.getLimite() != 0) campos |= LIMITE;
+        if (msg.getConsistencia() != null) campos |= CONSISTENCIA;
+
+        out.escreverByte(opcode == null ? 0 : opcode);
+        out.escreverVarint(campos);
+        if ((campos & TIPO_TEXTO) != 0) out.escreverTexto(msg.getTipo());
+        if ((campos & ID) != 0) out.escreverVarint(id);
+        if ((campos & KEY) != 0) out.escreverTexto(msg.getKey());
+        if ((campos & VALUE) != 0) out.escreverTexto(msg.getValue());
+        if ((campos & VALOR_COMPRIMIDO) != 0) out.escreverBytes(comprimido);
+        if ((campos & TIMESTAMP) != 0) out.escreverLong(msg.getTimestamp());
+        if ((campos & IP_CLIENTE) != 0) out.escreverTexto(msg.getIpCliente());
+        if ((campos & PORTA_CLIENTE) != 0) out.escreverVarint(msg.getPortaCliente());
+        if ((campos & ITENS) != 0) {
+            out.escreverVarint(msg.getItens().size());
+            for (Mensagem item : msg.getItens()) {
+                // Tamanho do item (contando os externos dele) reservado com 5 bytes e compactado depois
+                int marca = out.tamanho;
+                int externos = out.externos.size();
+                long bytesExternos = out.bytesExternos;
+                out.posicionar(marca + 5);
+                escreverCorpo(out, item, item.getId());
+                int emBuf = out.tamanho - marca - 5;
+                long tamanhoItem = emBuf + out.bytesExternos - bytesExternos;
+                int bytesTamanho = tamanhoVarint(tamanhoItem);
+                out.escreverVarintEm(marca, tamanhoItem);
+                System.arraycopy(out.buf, marca + 5, out.buf, marca + bytesTamanho, emBuf);
+                out.tamanho = marca + bytesTamanho + emBuf;
+                out.deslocarExternos(externos, bytesTamanho - 5);
+            }
+        }
+        if ((campos & HWM) != 0) out.escreverLong(msg.getHwm());
+        if ((campos & LIDER) != 0) out.escreverTexto(msg.getLider());
+        if ((campos & MANDATO) != 0) out.escreverVarint(msg.getMandato());
+        if ((campos & TTL) != 0) out.escreverVarint(msg.getTtl());
+        if ((campos & EXPIRA) != 0) out.escreverLong(msg.getExpira());
+        if ((campos & LIMITE) != 0) out.escreverVarint(msg.getLimite());
+        if ((campos & CONSISTENCIA) != 0) out.escreverVarint(msg.getConsistencia().ordinal());
+    }
+
+    public Mensagem ler(InputStream in) throws IOException {
+        return ler(in, null);
+    }
+
+    @Override
+    public Mensagem ler(InputStream in, Remontagem remontagem) throws IOException {
+        while (true) {
+            byte[] corpo = lerQuadro(in);
+            if (corpo == null) {
+                return null;
+            }
+            Mensagem msg = lerCorpoOuParte(corpo, 0, corpo.length, remontagem);
+            if (msg != null) {
+                return msg;
+            }
+        }
+    }
+
+    // Corpo do proximo quadro do stream; null no fim da conexao
+    private static byte[] lerQuadro(InputStream in) throws IOException {
+        int tamanho = 0;
+        for (int deslocamento = 0; ; deslocamento += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (deslocamento == 0) {
+                    return null;
+                }
+                throw new EOFException("Quadro binario incompleto");
+            }
+            tamanho |= (b & 0x7f) << deslocamento;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (deslocamento > 28) {
+                throw new IOException("Tamanho de quadro invalido");
+            }
+        }
+        if (tamanho < 0 || tamanho > MAX_MENSAGEM) {
+            throw new IOException("Quadro maior que kv.mensagem.maxBytes: " + tamanho);
+        }
+        byte[] corpo = new byte[tamanho];
+        int lidos = 0;
+        while (lidos < tamanho) {
+            int n = in.read(corpo, lidos, tamanho - lidos);
+            if (n < 0) {
+                throw new EOFException("Quadro binario incompleto");
+            }
+            lidos += n;
+        }
+        return corpo;
+    }
+
+    /*
+     * Corpo de um quadro: mensagem inteira, ou parte de uma grande (null ate a ultima)
+     */
+    private static Mensagem lerCorpoOuParte(byte[] buf, int off, int fim, Remontagem remontagem) {
+        if (off >= fim || (buf[off] & 0xff) != OPCODE_PARTE) {
+            return lerCorpo(new Entrada(buf, off, fim));
+        }
+        if (remontagem == null) {
+            throw new IllegalArgumentException("Parte de mensagem sem remontagem");
+        }
+        Entrada parte = new Entrada(buf, off + 1, fim);
+        long sequencia = parte.lerVarint();
+        int flags = parte.lerByte();
+        long total = (flags & PRIMEIRA) != 0 ? parte.lerVarint() : -1;
+        byte[] corpo = remontagem.adicionar(sequencia, total, (flags & ULTIMA) != 0, buf, parte.pos, fim - parte.pos);
+        return corpo == null ? null : lerCorpo(new Entrada(corpo, 0, corpo.length));
+    }
+
+    public int tamanhoQuadro(byte[] buf, int off, int len) {
+        int tamanho = 0;
+        for (int i = 0; i < Math.min(len, 5); i++) {
+            int b = buf[off + i];
+            tamanho |= (b & 0x7f) << (7 * i);
+            if ((b & 0x80) == 0) {
+                if (tamanho < 0 || tamanho > MAX_MENSAGEM) {
+                    throw new IllegalArgumentException("Quadro maior que kv.mensagem.maxBytes: " + tamanho);
+                }
+                int total = i + 1 + tamanho;
+                return total <= len ? total : -1;
+            }
+        }
+        return -1;
+    }
+
+    public Mensagem decodificar(byte[] buf, int off, int len) {
+        return decodificar(buf, off, len, null);
+    }
+
+    @Override
+    public Mensagem decodificar(byte[] buf, int off, int len, Remontagem remontagem) {
+        Entrada entrada = new Entrada(buf, off, off + len);
+        int tamanho = (int) entrada.lerVarint();
+        return lerCorpoOuParte(buf, entrada.pos, entrada.pos + tamanho, remontagem);
+    }
+
+    private static Mensagem lerCorpo(Entrada in) {
+        Mensagem msg = new Mensagem();
+        int opcode = in.lerByte();
+        int campos = (int) in.lerVarint();
+        if ((campos & TIPO_TEXTO) != 0) {
+            msg.setTipo(in.lerTexto());
+        } else if (opcode > 0 && opcode < TIPOS.length) {
+            msg.setTipo(TIPOS[opcode]);
+        }
+        if ((campos & ID) != 0) msg.setId(in.lerVarint());
+        if ((campos & KEY) != 0) msg.setKey(in.lerTexto());
+        if ((campos & VALUE) != 0) msg.setValue(in.lerTexto());
+        if ((campos & VALOR_COMPRIMIDO) != 0) msg.setValue(descomprimir(in.lerBytes()));
+        if ((campos & TIMESTAMP) != 0) msg.setTimestamp(in.lerLong());
+        if ((campos & IP_CLIENTE) != 0) msg.setIpCliente(in.lerTexto());
+        if ((campos & PORTA_CLIENTE) != 0) msg.setPortaCliente((int) in.lerVarint());
+        if ((campos & ITENS) != 0) {
+            int quantidade = (int) in.lerVarint();
+            List<Mensagem> itens = new ArrayList<>(quantidade);
+            for (int i = 0; i < quantidade; i++) {
+                int tamanho = (int) in.lerVarint();
+                itens.add(lerCorpo(new Entrada(in.buf, in.pos, in.pos + tamanho)));
+                in.pos += tamanho;
+            }
+            msg.setItens(itens);
+        }
+        if ((campos & HWM) != 0) msg.setHwm(in.lerLong());
+        if ((campos & LIDER) != 0) msg.setLider(in.lerTexto());
+        if ((campos & MANDATO) != 0) msg.setMandato(in.lerVarint());
+        if ((campos & TTL) != 0) msg.setTtl(in.lerVarint());
+        if ((campos & EXPIRA) != 0) msg.setExpira(in.lerLong());
+        if ((campos & LIMITE) != 0) msg.setLimite((int) in.lerVarint());
+        if ((campos & CONSISTENCIA) != 0) {
+            long codigo = in.lerVarint();
+            if (codigo < 0 || codigo >= CONSISTENCIAS.length) {
+                throw new IllegalArgumentException("Consistencia desconhecida: " + codigo);
+            }
+            msg.setConsistencia(CONSISTENCIAS[(int) codigo]);
+        }
+        return msg;
+    }
+
+    // Valor em UTF-8 comprimido (deflate, nivel rapido); null se nao diminuir
+    private static byte[] comprimir(String valor) {
+        byte[] bytes = valor.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] saida = new byte[bytes.length];
+            int tamanho = 0;
+            while (!deflater.finished() && tamanho < saida.length) {
+                tamanho += deflater.deflate(saida, tamanho, saida.length - tamanho);
+            }
+            return deflater.finished() && tamanho < bytes.length ? Arrays.copyOf(saida, tamanho) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String descomprimir(byte[] comprimido) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(comprimido);
+            ByteArrayOutputStream saida = new ByteArrayOutputStream(comprimido.length * 4);
+            byte[] bloco = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(bloco);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Valor comprimido truncado");
+                }
+                if (saida.size() + n > MAX_MENSAGEM) {
+                    throw new IllegalArgumentException("Valor descomprimido maior que kv.mensagem.maxBytes");
+                }
+                saida.write(bloco, 0, n);
+            }
+            return new String(saida.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Valor comprimido invalido", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int tamanhoVarint(long valor) {
+        int n = 1;
+        while ((valor & ~0x7fL) != 0) {
+            valor >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    // Bytes do texto em UTF-8 (como String.getBytes: surrogate sem par vira '?'), sem codificar
+    private static long tamanhoUtf8(String texto) {
+        int n = texto.length();
+        long bytes = n;
+        for (int i = 0; i < n; i++) {
+            char c = texto.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(texto.charAt(i + 1))) {
+                bytes += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /*
+     * Quadros de uma mensagem com corpo acima de TAMANHO_PARTE ou com externos, um
+     * por chamada: cada um e montado num buffer do tamanho de uma parte, reaproveitado,
+     * com o trecho seguinte do corpo (bytes de buf e externos, os textos codificados
+     * em UTF-8 direto do String). Corpo ate TAMANHO_PARTE sai num quadro comum; acima,
+     * nas partes de uma sequencia nova.
+     */
+    private static final class Partes implements Quadros {
+        // Maior cabecalho: [varint tamanho][OPCODE_PARTE][varint sequencia][flags][varint total]
+        private static final int CABECALHO = 5 + 1 + 10 + 1 + 5;
+
+        private final Saida corpo;
+        private final long total;
+        // 0 = quadro comum (corpo cabe numa parte)
+        private final long sequencia;
+        private final byte[] buf;
+        private final ByteBuffer quadro;
+        private final Saida cabecalho = new Saida();
+        private final CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        // Proximo byte de corpo.buf, proximo externo e o externo em andamento
+        private int posicao = 5;
+        private int proximoExterno;
+        private CharBuffer texto;
+        private byte[] bytes;
+        private int posicaoBytes;
+        private long enviados;
+
+        Partes(Saida corpo) {
+            this.corpo = corpo;
+            total = corpo.tamanho - 5 + corpo.bytesExternos;
+            sequencia = total <= TAMANHO_PARTE ? 0 : sequenciaPartes.incrementAndGet();
+            buf = new byte[CABECALHO + (int) Math.min(total, TAMANHO_PARTE)];
+            quadro = ByteBuffer.wrap(buf);
+        }
+
+        @Override
+        public ByteBuffer proximo() {
+            if (enviados == total) {
+                return null;
+            }
+            boolean primeira = enviados == 0;
+            quadro.limit(buf.length).position(CABECALHO);
+            preencher();
+            int pedaco = quadro.position() - CABECALHO;
+            enviados += pedaco;
+            boolean ultima = enviados == total;
+            if (pedaco == 0 || ultima != terminou()) {
+                throw new IllegalStateException("Corpo da mensagem diferente do tamanho calculado");
+            }
+            int resto = sequencia == 0 ? 0
+                    : 1 + tamanhoVarint(sequencia) + 1 + (primeira ? tamanhoVarint(total) : 0);
+            cabecalho.tamanho = 0;
+            cabecalho.escreverVarint(resto + pedaco);
+            if (sequencia != 0) {
+                cabecalho.escreverByte(OPCODE_PARTE);
+                cabecalho.escreverVarint(sequencia);
+                cabecalho.escreverByte((primeira ? PRIMEIRA : 0) | (ultima ? ULTIMA : 0));
+                if (primeira) {
+                    cabecalho.escreverVarint(total);
+                }
+            }
+            int inicio = CABECALHO - cabecalho.tamanho;
+            System.arraycopy(cabecalho.buf, 0, buf, inicio, cabecalho.tamanho);
+            quadro.limit(quadro.position()).position(inicio);
+            return quadro;
+        }
+
+        // Copia o corpo a partir de onde parou ate encher o quadro ou acabar
+        private void preencher() {
+            while (quadro.hasRemaining()) {
+                if (texto != null) {
+                    if (utf8.encode(texto, quadro, true).isOverflow()) {
+                        // Quadro cheio, ou sem espaco para o proximo caractere inteiro
+                        return;
+                    }
+                    texto = null;
+                } else if (bytes != null) {
+                    int n = Math.min(bytes.length - posicaoBytes, quadro.remaining());
+                    quadro.put(bytes, posicaoBytes, n);
+                    posicaoBytes += n;
+                    if (posicaoBytes == bytes.length) {
+                        bytes = null;
+                    }
+                } else {
+                    int fim = proximoExterno < corpo.externos.size()
+                            ? corpo.externos.get(proximoExterno).posicao : corpo.tamanho;
+                    if (posicao < fim) {
+                        int n = Math.min(fim - posicao, quadro.remaining());
+                        quadro.put(corpo.buf, posicao, n);
+                        posicao += n;
+                    } else if (proximoExterno < corpo.externos.size()) {
+                        Externo externo = corpo.externos.get(proximoExterno++);
+                        if (externo.texto != null) {
+                            utf8.reset();
+                            texto = CharBuffer.wrap(externo.texto);
+                        } else {
+                            bytes = externo.bytes;
+                            posicaoBytes = 0;
+                        }
+                    } else {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private boolean terminou() {
+            return texto == null && bytes == null && posicao == corpo.tamanho
+                    && proximoExterno == corpo.externos.size();
+        }
+    }
+
+    /*
+     * Texto ou bytes deixados fora de Saida.buf; entram no corpo na posicao dada de buf
+     */
+    private static class Externo {
+        int posicao;
+        final String texto;
+        final byte[] bytes;
+
+        Externo(int posicao, String texto, byte[] bytes) {
+            this.posicao = posicao;
+            this.texto = texto;
+            this.bytes = bytes;
+        }
+    }
+
+    /*
+     * Buffer de escrita que cresce sob demanda
+     */
+    private static class Saida {
+        byte[] buf = new byte[256];
+        int tamanho;
+        // Com separar, textos e bytes a partir de EXTERNO ficam em externos (so o tamanho em buf)
+        boolean separar;
+        final List<Externo> externos = new ArrayList<>(0);
+        long bytesExternos;
+
+        void reiniciar(boolean separar) {
+            tamanho = 0;
+            this.separar = separar;
+            externos.clear();
+            bytesExternos = 0;
+        }
+
+        // Corpo cabe num quadro comum montado em buf
+        boolean inteira() {
+            return externos.isEmpty() && tamanho - 5 <= TAMANHO_PARTE;
+        }
+
+        // Externos a partir do indice dado mudam de posicao (trecho de buf deslocado)
+        void deslocarExternos(int desde, int deslocamento) {
+            for (int i = desde; i < externos.size(); i++) {
+                externos.get(i).posicao += deslocamento;
+            }
+        }
+
+        void garantir(int extra) {
+            if (tamanho + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, tamanho + extra));
+            }
+        }
+
+        void posicionar(int posicao) {
+            garantir(posicao - tamanho);
+            tamanho = posicao;
+        }
+
+        void escreverByte(int b) {
+            garantir(1);
+            buf[tamanho++] = (byte) b;
+        }
+
+        void escreverVarint(long valor) {
+            garantir(10);
+            while ((valor & ~0x7fL) != 0) {
+                buf[tamanho++] = (byte) ((valor & 0x7f) | 0x80);
+                valor >>>= 7;
+            }
+            buf[tamanho++] = (byte) valor;
+        }
+
+        void escreverVarintEm(int posicao, long valor) {
+            while ((valor & ~0x7fL) != 0) {
+                buf[posicao++] = (byte) ((valor & 0x7f) | 0x80);
+                valor >>>= 7;
+            }
+            buf[posicao] = (byte) valor;
+        }
+
+        void escreverLong(long valor) {
+            garantir(8);
+            for (int i = 7; i >= 0; i--) {
+                buf[tamanho++] = (byte) (valor >>> (8 * i));
+            }
+        }
+
+        void escreverBytes(byte[] bytes) {
+            escreverVarint(bytes.length);
+            if (separar && bytes.length >= EXTERNO) {
+                externos.add(new Externo(tamanho, null, bytes));
+                bytesExternos += bytes.length;
+                return;
+            }
+            garantir(bytes.length);
+            System.arraycopy(bytes, 0, buf, tamanho, bytes.length);
+            tamanho += bytes.length;
+        }
+
+        void escreverTexto(String texto) {
+            int n = texto.length();
+            if (separar && n >= EXTERNO) {
+                long bytes = tamanhoUtf8(texto);
+                escreverVarint(bytes);
+                externos.add(new Externo(tamanho, texto, null));
+                bytesExternos += bytes;
+                return;
+            }
+            // Caminho rapido ASCII: sem alocar o array de bytes intermediario
+            boolean ascii = true;
+            for (int i = 0; i < n && ascii; i++) {
+                ascii = texto.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                escreverVarint(n);
+                garantir(n);
+                for (int i = 0; i < n; i++) {
+                    buf[tamanho++] = (byte) texto.charAt(i);
+                }
+            } else {
+                byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+                escreverVarint(bytes.length);
+                garantir(bytes.length);
+                System.arraycopy(bytes, 0, buf, tamanho, bytes.length);
+                tamanho += bytes.length;
+            }
+        }
+    }
+
+    /*
+     * Leitura sequencial de um corpo ja recebido
+     */
+    private static class Entrada {
+        final byte[] buf;
+        int pos;
+        final int fim;
+
+        Entrada(byte[] buf, int pos, int fim) {
+            this.buf = buf;
+            this.pos = pos;
+            this.fim = fim;
+        }
+
+        int lerByte() {
+            if (pos >= fim) {
+                throw new IllegalArgumentException("Quadro binario truncado");
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        long lerVarint() {
+            long valor = 0;
+            for (int deslocamento = 0; deslocamento < 64; deslocamento += 7) {
+                int b = lerByte();
+                valor |= (long) (b & 0x7f) << deslocamento;
+                if ((b & 0x80) == 0) {
+                    return valor;
+                }
+            }
+            throw new IllegalArgumentException("Varint invalido");
+        }
+
+        long lerLong() {
+            long valor = 0;
+            for (int i = 0; i < 8; i++) {
+                valor = (valor << 8) | lerByte();
+            }
+            return valor;
+        }
+
+        byte[] lerBytes() {
+            int tamanho = (int) lerVarint();
+            if (tamanho < 0 || pos + tamanho > fim) {
+                throw new IllegalArgumentException("Quadro binario truncado");
+            }
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + tamanho);
+            pos += tamanho;
+            return bytes;
+        }
+
+        String lerTexto() {
+            int tamanho = (int) lerVarint();
+            if (tamanho < 0 || pos + tamanho > fim) {
+                throw new IllegalArgumentException("Quadro binario truncado");
+            }
+            String texto = new String(buf, pos, tamanho, StandardCharsets.UTF_8);
+            pos += tamanho;
+            return texto;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Formato original: Mensagem em JSON (Gson), uma por linha
+ */
+public class ProtocoloJson implements Protocolo {
+    private static final Gson gson = new Gson();
+
+    public byte[] codificar(Mensagem msg, long id) {
+        String json;
+        if (msg.getId() == id) {
+            json = gson.toJson(msg);
+        } else {
+            // Nao altera a mensagem do chamador (pode ir para varios destinos)
+            JsonObject objeto = gson.toJsonTree(msg).getAsJsonObject();
+            objeto.addProperty("id", id);
+            json = objeto.toString();
+        }
+        return (json + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public Mensagem ler(InputStream in) throws IOException {
+        ByteArrayOutputStream linha = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            linha.write(b);
+        }
+        return decodificar(linha.toByteArray(), 0, linha.size());
+    }
+
+    public int tamanhoQuadro(byte[] buf, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            if (buf[off + i] == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    public Mensagem decodificar(byte[] buf, int off, int len) {
+        return gson.fromJson(new String(buf, off, len, StandardCharsets.UTF_8).trim(), Mensagem.class);
+    }
+}
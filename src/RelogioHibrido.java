@@ -0,0 +1,39 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Relogio logico hibrido (HLC) para os timestamps das escritas, num unico long:
+ *   [ms do relogio fisico, 48 bits][contador logico, 16 bits]
+ * Comparar timestamps continua sendo comparar longs (e timestamps antigos, so em ms,
+ * ficam abaixo de qualquer timestamp novo). Cada proximo() e maior que o anterior e
+ * que o piso pedido: duas escritas no mesmo ms ficam com timestamps diferentes, e um
+ * relogio fisico que volta no tempo so faz o contador logico andar, sem reordenar.
+ * Mais de 65536 escritas num ms transbordam para o ms seguinte (adianta o relogio,
+ * continua monotono). Sem trava: compareAndSet no ultimo valor emitido. O Servidor
+ * ainda le o relogio dentro de ordemEscritas, porque a ordem dos timestamps tem de ser
+ * a mesma da fila de replicacao e do WAL (ver Servidor.ordemEscritas).
+ */
+public class RelogioHibrido {
+    public static final int BITS_LOGICOS = 16;
+
+    private final AtomicLong ultimo = new AtomicLong();
+
+    /*
+     * Novo timestamp, maior que todos os ja emitidos e que piso (ex.: a marca
+     * aplicada, que inclui escritas de outro lider ou grupo)
+     */
+    public long proximo(long piso) {
+        long fisico = System.currentTimeMillis() << BITS_LOGICOS;
+        while (true) {
+            long atual = ultimo.get();
+            long novo = Math.max(Math.max(atual, piso) + 1, fisico);
+            if (ultimo.compareAndSet(atual, novo)) {
+                return novo;
+            }
+        }
+    }
+
+    // Parte fisica (ms) de um timestamp
+    public static long fisico(long timestamp) {
+        return timestamp >>> BITS_LOGICOS;
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Partes recebidas de mensagens grandes (protocolo binario, ver ProtocoloBinario):
+ * uma por conexao que le, usada so pela thread que le aquela conexao.
+ * A primeira parte de cada mensagem traz o tamanho do corpo inteiro: o array e
+ * alocado ja do tamanho certo, as partes sao copiadas nele e ele mesmo e devolvido
+ * na ultima (sem crescer nem copiar de novo). O total reservado pelas mensagens
+ * ainda incompletas fica limitado a kv.mensagem.maxBytes; acima disso, ou com
+ * partes que nao fecham o tamanho anunciado, e erro de protocolo (a conexao e fechada).
+ * Nao e leitura em fluxo: o corpo so e decodificado inteiro, depois da ultima parte,
+ * e o valor decodificado e uma copia (String) desse array. O limite e por conexao.
+ */
+public class Remontagem {
+    private final Map<Long, Corpo> incompletas = new HashMap<>();
+    private long pendentes;
+
+    private static class Corpo {
+        final byte[] bytes;
+        int recebidos;
+
+        Corpo(int tamanho) {
+            bytes = new byte[tamanho];
+        }
+    }
+
+    /*
+     * Acrescenta uma parte (total = tamanho do corpo na primeira, -1 nas demais);
+     * devolve o corpo completo na ultima parte, senao null
+     */
+    byte[] adicionar(long sequencia, long total, boolean ultima, byte[] buf, int off, int len) {
+        Corpo corpo = incompletas.get(sequencia);
+        if ((corpo == null) != (total >= 0)) {
+            throw new IllegalArgumentException("Parte fora de ordem na sequencia " + sequencia);
+        }
+        if (corpo == null) {
+            if (pendentes + total > ProtocoloBinario.MAX_MENSAGEM) {
+                throw new IllegalArgumentException("Mensagem maior que kv.mensagem.maxBytes");
+            }
+            corpo = new Corpo((int) total);
+            incompletas.put(sequencia, corpo);
+            pendentes += total;
+        }
+        if (len > corpo.bytes.length - corpo.recebidos) {
+            throw new IllegalArgumentException("Parte alem do tamanho anunciado da mensagem");
+        }
+        System.arraycopy(buf, off, corpo.bytes, corpo.recebidos, len);
+        corpo.recebidos += len;
+        if (!ultima) {
+            return null;
+        }
+        incompletas.remove(sequencia);
+        pendentes -= corpo.bytes.length;
+        if (corpo.recebidos != corpo.bytes.length) {
+            throw new IllegalArgumentException("Mensagem menor que o tamanho anunciado");
+        }
+        return corpo.bytes;
+    }
+}
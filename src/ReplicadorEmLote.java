@@ -0,0 +1,104 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/*
+ * Group commit da replicacao: PUTs concorrentes no lider entram numa fila e
+ * uma thread os junta em lotes (ate maxLote submissoes ou esperaMaxMs desde a
+ * primeira). Uma submissao de varias escritas (MPUT) nunca e dividida entre lotes. Cada lote vira um unico REPLICATION com itens, com um unico ACK
+ * por seguidor. Os lotes seguem em pipeline: o proximo nao espera o ACK do anterior.
+ */
+public class ReplicadorEmLote {
+    private final int maxLote;
+    private final long esperaMaxNanos;
+    private final Function<Mensagem, CompletableFuture<Boolean>> enviarLote;
+    private final BlockingQueue<Pendente> fila = new LinkedBlockingQueue<>();
+
+    // Escritas aguardando replicacao e o futuro de quem as submeteu
+    private static class Pendente {
+        final List<Mensagem> escritas;
+        final CompletableFuture<Boolean> confirmacao = new CompletableFuture<>();
+        Pendente(List<Mensagem> escritas) {
+            this.escritas = escritas;
+        }
+    }
+
+    public ReplicadorEmLote(int maxLote, long esperaMaxMs, Function<Mensagem, CompletableFuture<Boolean>> enviarLote) {
+        if (maxLote < 1) {
+            throw new IllegalArgumentException("Tamanho maximo do lote deve ser >= 1: " + maxLote);
+        }
+        this.maxLote = maxLote;
+        this.esperaMaxNanos = TimeUnit.MILLISECONDS.toNanos(esperaMaxMs);
+        this.enviarLote = enviarLote;
+
+        Thread thread = new Thread(this::executar, "replicador-lote");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Enfileira uma escrita (key, value, timestamp); o futuro completa com
+     * true quando o lote que a contem atinge o quorum de ACKs
+     */
+    public CompletableFuture<Boolean> submeter(Mensagem escrita) {
+        return submeter(Collections.singletonList(escrita));
+    }
+
+    /*
+     * Enfileira varias escritas que devem ir juntas no mesmo lote (MPUT)
+     */
+    public CompletableFuture<Boolean> submeter(List<Mensagem> escritas) {
+        Pendente pendente = new Pendente(escritas);
+        fila.add(pendente);
+        return pendente.confirmacao;
+    }
+
+    private void executar() {
+        List<Pendente> lote = new ArrayList<>(maxLote);
+        while (true) {
+            try {
+                lote.add(fila.take());
+                long prazo = System.nanoTime() + esperaMaxNanos;
+                while (lote.size() < maxLote) {
+                    // Pega o que ja esta na fila sem esperar; so espera se ainda houver prazo
+                    if (fila.drainTo(lote, maxLote - lote.size()) > 0) {
+                        continue;
+                    }
+                    long restante = prazo - System.nanoTime();
+                    Pendente proximo = restante > 0 ? fila.poll(restante, TimeUnit.NANOSECONDS) : null;
+                    if (proximo == null) {
+                        break;
+                    }
+                    lote.add(proximo);
+                }
+                enviar(new ArrayList<>(lote));
+                lote.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void enviar(List<Pendente> lote) {
+        List<Mensagem> itens = new ArrayList<>(lote.size());
+        for (Pendente pendente : lote) {
+            itens.addAll(pendente.escritas);
+        }
+        Mensagem replicacao = new Mensagem("REPLICATION", null, null, 0, null, 0);
+        replicacao.setItens(itens);
+
+        CompletableFuture<Boolean> resultado;
+        try {
+            resultado = enviarLote.apply(replicacao);
+        } catch (RuntimeException e) {
+            resultado = CompletableFuture.failedFuture(e);
+        }
+        resultado.whenComplete((confirmado, erro) -> {
+            boolean ok = erro == null && confirmado;
+            for (Pendente pendente : lote) {
+                pendente.confirmacao.complete(ok);
+            }
+        });
+    }
+}
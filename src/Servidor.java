@@ -1,45 +1,260 @@
-import com.google.gson.Gson;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /*
  * Projeto SD: ServidorS — Key-Value Store Distribuido
  * Funcionalidades conforme SECAO 5 do enunciado.
  */
 public class Servidor {
-    private static final Gson gson = new Gson();
 
-    // HashMap principal (key -> valor+timestamp), protegido manualmente (5a, 5c)
-    private static Map<String, DadoKV> banco = new HashMap<>();
+    // Banco principal (key -> valor+timestamp) (5a, 5c); implementacao escolhida em kv.armazenamento,
+    // opcionalmente com o indice ordenado das chaves para SCAN (kv.indice.ordenado, ver criarBanco)
+    private static final Armazenamento banco = criarBanco();
+    // O mesmo banco visto como ordenado, para o SCAN; null sem kv.indice.ordenado (SCAN_FAIL)
+    private static final ArmazenamentoOrdenado indice =
+            banco instanceof ArmazenamentoOrdenado ? (ArmazenamentoOrdenado) banco : null;
 
-    // True se este servidor e o lider (definido no teclado, 5a)
-    private static boolean souLider = false;
+    // True se este servidor e o lider (definido no teclado, 5a; muda numa eleicao)
+    private static volatile boolean souLider = false;
 
     // Porta deste servidor (capturada no teclado, 5a)
     private static int porta;
+    private static InetSocketAddress meuEndereco;
 
     // IP e porta do lider (capturados no teclado, 5a)
     private static String ipLider;
     private static int portaLider;
 
-    // Seguidores do lider (usado para replicacao, 5c2, APENAS NO LIDER)
-    private static List<InetSocketAddress> servidoresSeguidores = new ArrayList<>();
+    // Lider atual do grupo (comeca com o do teclado; muda por HEARTBEAT ou eleicao)
+    private static volatile InetSocketAddress liderDoGrupo;
 
-    // Gets pendentes para suporte a WAIT_FOR_RESPONSE (5f)
-    private static Map<String, List<Mensagem>> getsPendentes = new HashMap<>();
+    // Seguidores do lider (usado para replicacao, 5c2, APENAS NO LIDER); trocado inteiro numa eleicao
+    private static volatile List<InetSocketAddress> servidoresSeguidores = new ArrayList<>();
 
-    /*
-     * Estrutura auxiliar: value + timestamp por chave
-     */
-    private static class DadoKV {
-        String valor;
-        long timestamp;
-        DadoKV(String valor, long timestamp) {
-            this.valor = valor;
-            this.timestamp = timestamp;
+    // Seguidores que respondem ao heartbeat: so eles recebem REPLICATION, entao um seguidor
+    // morto nao trava os PUTs; o quorum continua sendo a maioria de membrosGrupo
+    private static final Set<InetSocketAddress> seguidoresAtivos = ConcurrentHashMap.newKeySet();
+
+    // Membros do grupo, lider incluso (no seguidor: aprendidos no HEARTBEAT ou em kv.grupos)
+    private static volatile List<InetSocketAddress> membrosGrupo = Collections.emptyList();
+
+    // Eleicao de lider: mandato (term) atual e em quem este servidor votou nele
+    private static final Object eleicao = new Object();
+    private static long mandato;
+    private static InetSocketAddress votoEm;
+
+    // Failover automatico (kv.failover): o lider manda HEARTBEAT a cada kv.heartbeat.intervaloMs;
+    // sem sinal do lider por kv.eleicao.timeoutMs (mais um sorteio de ate o mesmo tanto,
+    // para os candidatos nao empatarem) o seguidor se candidata
+    private static final boolean FAILOVER = Boolean.parseBoolean(System.getProperty("kv.failover", "true"));
+    private static final long INTERVALO_HEARTBEAT_MS = Long.getLong("kv.heartbeat.intervaloMs", 200);
+    private static final long TIMEOUT_ELEICAO_MS = Long.getLong("kv.eleicao.timeoutMs", 1000);
+    private static volatile long ultimoSinalLider = System.nanoTime();
+    private static volatile long prazoEleicaoNanos = TimeUnit.MILLISECONDS.toNanos(TIMEOUT_ELEICAO_MS);
+    private static final ScheduledThreadPoolExecutor relogioEleicao = criarAgendador("heartbeat");
+
+    // Lease do lider para leituras LINEARIZABLE: quem confirma um HEARTBEAT enviado no
+    // instante t nega votos ate pelo menos t + kv.eleicao.timeoutMs (tratarVOTO). Com a
+    // maioria do grupo confirmando, nenhum outro lider e eleito antes disso; o lease vai
+    // ate t + timeout menos kv.lease.margemPct % (ritmos diferentes dos relogios).
+    // heartbeatsConfirmados: seguidor -> envio (nanoTime) do ultimo HEARTBEAT confirmado
+    private static final long LEASE_NANOS = TimeUnit.MILLISECONDS.toNanos(TIMEOUT_ELEICAO_MS) *
+            (100 - Integer.getInteger("kv.lease.margemPct", 20)) / 100;
+    private static final Map<InetSocketAddress, Long> heartbeatsConfirmados = new ConcurrentHashMap<>();
+    private static volatile long fimLease = System.nanoTime();
+
+    // Numero de seguidores do grupo perguntados no teclado (lider)
+    private static final int NUM_SEGUIDORES = Integer.getInteger("kv.seguidores", 2);
+
+    // Particionamento entre grupos (kv.grupos); null = grupo unico, este servidor tem todas as chaves.
+    // Trocado inteiro por TOPOLOGIA (entrada de grupo novo), nunca alterado no lugar.
+    private static volatile AnelHash anel;
+
+    // Topologia anterior enquanto a migracao para a atual nao terminou (null fora disso):
+    // uma chave ausente aqui ainda pode estar no dono anterior (ver lerDoDonoAnterior).
+    // Sai quando todo grupo dela avisa que nao tem mais chaves a migrar (MIGRACAO_FIM);
+    // migracoesConcluidas: grupos (toString) que ja avisaram, para a topologia atual
+    private static volatile AnelHash anelAnterior;
+    private static final Set<String> migracoesConcluidas = new HashSet<>();
+
+    // Chaves por mensagem de MIGRACAO no rebalanceamento
+    private static final int LOTE_MIGRACAO = Integer.getInteger("kv.migracao.lote", 500);
+
+    // Uma migracao por vez (nova topologia durante uma migracao: a seguinte recomeca a varredura)
+    private static final Object migracao = new Object();
+
+    // Gets pendentes para suporte a WAIT_FOR_RESPONSE (5f): a requisicao fica estacionada
+    // e e respondida depois na mesma conexao, sem thread por GET em espera
+    // Cada lista so e alterada dentro de compute da propria chave (sem monitor global)
+    // GETs identicos (mesma key e timestamp) dividem uma unica entrada (ver estacionarGet)
+    private static final ConcurrentHashMap<String, List<GetPendente>> getsPendentes = new ConcurrentHashMap<>();
+
+    // Tempo maximo que um GET fica em espera antes de receber GET_TIMEOUT
+    private static final long ESPERA_GET_MS = Long.getLong("kv.get.esperaMaxMs", 30000);
+
+    // Uma unica thread dispara os prazos de todos os GETs em espera
+    private static final ScheduledThreadPoolExecutor prazosGet = criarAgendador("prazos-get");
+
+    // SCAN: no maximo kv.scan.maxLimite chaves por pagina (o cliente continua pelo token),
+    // enviadas em blocos SCAN_PARCIAL de kv.scan.lote chaves. No seguidor atrasado em relacao
+    // ao timestamp do cliente, o SCAN espera a marca aplicada alcanca-lo (como o GET, com
+    // WAIT_FOR_RESPONSE e prazo kv.get.esperaMaxMs)
+    private static final int MAX_SCAN = Integer.getInteger("kv.scan.maxLimite", 10000);
+    private static final int LOTE_SCAN = Integer.getInteger("kv.scan.lote", 256);
+    private static final ConcurrentLinkedQueue<EsperaMarca> esperasMarca = new ConcurrentLinkedQueue<>();
+
+    // Leituras LINEARIZABLE (lider): maior marca confirmada pelo quorum e leituras esperando
+    // lease ou confirmacao, tentadas de novo a cada aviso (lease renovado, marca confirmada)
+    private static final AtomicLong marcaConfirmada = new AtomicLong();
+    private static final ConcurrentLinkedQueue<Runnable> leiturasLineares = new ConcurrentLinkedQueue<>();
+    private static final AtomicLong avisosLineares = new AtomicLong();
+
+    // Conexoes persistentes para seguidores e lider (reuso entre requisicoes)
+    private static final PoolConexoes pool = new PoolConexoes(Integer.getInteger("kv.pool.tamanho", 2));
+
+    // Tempo maximo de espera por resposta de outro servidor
+    private static final long TIMEOUT_MS = Long.getLong("kv.timeoutMs", 60000);
+
+    // Modelo de execucao da rede: "threads" (thread por conexao), "nio" (Selector + pool) ou "virtual"
+    private static final String modo = System.getProperty("kv.modo", "threads");
+
+    // Threads das conexoes no modo "virtual"
+    private static final ExecutorService trabalhadores = criarExecutor();
+
+    // Canal unico e ordenado por seguidor: REPLICATIONs seguem em pipeline, sem esperar cada ACK
+    private static final PoolConexoes poolReplicacao = new PoolConexoes(1);
+
+    // Numero de REPLICATION_OK exigidos antes do PUT_OK (padrao: todos os seguidores ativos).
+    // Com failover nunca menos que a maioria do grupo (membrosGrupo.size() / 2 seguidores)
+    private static final int QUORUM_REPLICACAO = Integer.getInteger("kv.replicacao.quorum", -1);
+
+    // Injecao de falha, apenas para testes: atrasa cada REPLICATION (ex.: testar WAIT_FOR_RESPONSE)
+    private static final long ATRASO_REPLICACAO_MS = Long.getLong("kv.teste.atrasoReplicacaoMs", 0);
+
+    // Group commit: PUTs concorrentes viram lotes de ate kv.lote.max escritas,
+    // esperando no maximo kv.lote.esperaMaxMs pela chegada de mais escritas
+    private static final ReplicadorEmLote replicador = new ReplicadorEmLote(
+            Integer.getInteger("kv.lote.max", 256), Long.getLong("kv.lote.esperaMaxMs", 1), Servidor::replicar);
+
+    // WAL + snapshots do banco (null com kv.persistencia=false)
+    private static Persistencia persistencia;
+
+    // Marca d'agua (high-water mark) da replicacao: maior timestamp ja aplicado no banco local.
+    // Vai em toda resposta, para o cliente saber quais servidores ja tem as suas escritas.
+    private static final AtomicLong marcaAplicada = new AtomicLong();
+
+    // No lider: carimbo de timestamp e entrada na fila de replicacao acontecem juntos,
+    // entao os timestamps nunca diminuem ao longo dos lotes e a marca de um
+    // seguidor cobre todas as escritas anteriores a ela. Por isso o relogio (sem trava
+    // ele mesmo) e lido aqui dentro e nao antes: com o timestamp tirado fora, uma escrita
+    // de timestamp maior poderia entrar na fila antes de outra menor, e o seguidor que
+    // aplicou a maior anunciaria na marca uma escrita que ainda nao tem (GET com esse
+    // timestamp responderia o valor antigo). A mesma ordem vale para o WAL (recuperacao
+    // reaplica em ordem de timestamp), para marcaAplicada so subir e para o CAS
+    // (leitura, comparacao e gravacao sem outra escrita da chave no meio)
+    private static final Object ordemEscritas = new Object();
+
+    // Timestamps das escritas do lider: relogio logico hibrido, unicos e crescentes
+    // mesmo com varias escritas no mesmo ms (sempre acima da marca aplicada)
+    private static final RelogioHibrido relogio = new RelogioHibrido();
+
+    // Catch-up de seguidores: historico recente dos lotes replicados (kv.sync.logEscritas escritas,
+    // ate kv.sync.logBytes de chaves e valores) e a marca do ultimo lote, que vai em cada
+    // REPLICATION para o seguidor detectar lacunas
+    private static final LogReplicacao logReplicacao = new LogReplicacao(Integer.getInteger("kv.sync.logEscritas", 100000),
+            Long.getLong("kv.sync.logBytes", 64L << 20));
+    private static final AtomicLong marcaReplicada = new AtomicLong();
+    // Tamanho de cada resposta do catch-up (SYNC_OK, BALDES_OK): escritas e bytes, bem abaixo de kv.mensagem.maxBytes
+    private static final int LOTE_SYNC = Integer.getInteger("kv.sync.lote", 1000);
+    private static final long LOTE_SYNC_BYTES = Long.getLong("kv.sync.loteBytes", 4L << 20);
+    private static final int MAX_FATIAS = 1 << 16;
+
+    // WATCH: assinaturas que acompanham o mesmo historico (ver Assinaturas)
+    private static final Assinaturas assinaturas = new Assinaturas(logReplicacao);
+
+    // No seguidor: catch-up em andamento e maior timestamp recebido por REPLICATION enquanto
+    // isso (a marca so sobe quando a lacuna estiver preenchida)
+    private static final Object sincronia = new Object();
+    private static boolean sincronizando;
+    private static long marcaDuranteSync;
+
+    // Lapides do catch-up: remocoes recebidas por REPLICATION enquanto ele roda (key -> maior
+    // timestamp removido; null fora dele). Uma remocao de chave que ainda nao chegou aqui
+    // nao deixa rastro no banco, e a copia mais velha vinda depois por SYNC/BALDES a traria
+    // de volta (chave despejada ou migrada, sem TTL para esconde-la).
+    private static final Object lockLapides = new Object();
+    private static Map<String, Long> lapides;
+
+    // TTL: PUT/MPUT/CAS com ttl (ms) gravam expira = timestamp da escrita + ttl, no relogio
+    // do lider, replicado junto com o valor. Leituras tratam a chave vencida como ausente;
+    // o lider a remove de fato (REMOCAO replicada) a cada kv.ttl.intervaloMs, seguindo a
+    // fila de expiracoes em ordem de vencimento (so no lider; refeita numa eleicao)
+    private static final long INTERVALO_EXPIRACAO_MS = Long.getLong("kv.ttl.intervaloMs", 100);
+    private static final PriorityBlockingQueue<Expiracao> expiracoes = new PriorityBlockingQueue<>();
+    private static final ScheduledThreadPoolExecutor relogioExpiracao = criarAgendador("expiracao");
+    private static final int LOTE_EXPIRACAO = 1000;
+
+    // No seguidor: relogio do lider estimado pelo HEARTBEAT e pelo lote de REPLICATION
+    // (timestamp = agora no lider; o REPLICATION cobre kv.failover=false, sem HEARTBEAT),
+    // e a chave some kv.ttl.margemMs antes, para nunca ser lida aqui depois de vencer no lider
+    private static final long MARGEM_TTL_MS = Long.getLong("kv.ttl.margemMs", 200);
+    private static volatile long desvioRelogioLider;
+
+    // Limite de memoria do banco (kv.memoria.maxMb, 0 = sem limite): acima dele o lider
+    // despeja, no mesmo tique, a chave de maior prioridade (PoliticaDespejo) entre
+    // kv.despejo.amostras sorteadas, repetindo ate voltar ao limite
+    private static final long LIMITE_MEMORIA = Long.getLong("kv.memoria.maxMb", 0) << 20;
+    private static final int AMOSTRAS_DESPEJO = Integer.getInteger("kv.despejo.amostras", 5);
+
+    // Metricas (STATS e JMX, ver Metricas): requisicoes por tipo, latencias em microssegundos
+    // do recebimento ate a resposta, GETs/MGETs respondidos na hora ou estacionados e
+    // RTT da replicacao por seguidor. Referencias guardadas: o caminho critico so incrementa.
+    private static final Map<String, LongAdder> requisicoes = new HashMap<>();
+    static {
+        for (String tipo : new String[] {"PUT", "GET", "CAS", "MPUT", "MGET", "REPLICATION", "TOPOLOGIA",
+                "MIGRACAO", "HEARTBEAT", "VOTO", "SYNC", "ARVORE", "BALDES", "STATS", "SCAN", "WATCH", "UNWATCH"}) {
+            requisicoes.put(tipo, Metricas.contador("requisicoes." + tipo));
         }
     }
+    private static final Histograma latenciaPut = Metricas.histograma("put.latenciaUs");
+    private static final Histograma latenciaCas = Metricas.histograma("cas.latenciaUs");
+    private static final Histograma latenciaMput = Metricas.histograma("mput.latenciaUs");
+    private static final Histograma latenciaEncaminhada = Metricas.histograma("encaminhado.latenciaUs");
+    private static final LongAdder escritasFalhas = Metricas.contador("escrita.falhas");
+    private static final LongAdder getsImediatos = Metricas.contador("get.imediato");
+    private static final LongAdder getsEstacionados = Metricas.contador("get.espera");
+    private static final LongAdder getsCoalescidos = Metricas.contador("get.coalescidos");
+    private static final LongAdder getsAny = Metricas.contador("leitura.any");
+    private static final LongAdder leiturasLinearesImediatas = Metricas.contador("leitura.linearImediata");
+    private static final LongAdder leiturasLinearesEspera = Metricas.contador("leitura.linearEspera");
+    private static final LongAdder mgetsImediatos = Metricas.contador("mget.imediato");
+    private static final LongAdder mgetsEstacionados = Metricas.contador("mget.espera");
+    private static final LongAdder leiturasDonoAnterior = Metricas.contador("leitura.donoAnterior");
+    private static final Histograma latenciaScan = Metricas.histograma("scan.latenciaUs");
+    private static final LongAdder scansEstacionados = Metricas.contador("scan.espera");
+    // Esperas de GET e MGET: duracao ate a resposta final e quantas terminaram no prazo
+    private static final Histograma duracaoEspera = Metricas.histograma("espera.duracaoUs");
+    private static final LongAdder esperasTimeout = Metricas.contador("espera.timeout");
+    private static final Histograma tamanhoLote = Metricas.histograma("replicacao.loteEscritas");
+    private static final LongAdder falhasReplicacao = Metricas.contador("replicacao.falhas");
+    private static final LongAdder semQuorum = Metricas.contador("replicacao.semQuorum");
+    private static final Map<InetSocketAddress, Histograma> rttReplicacao = new ConcurrentHashMap<>();
+    private static final LongAdder removidasTtl = Metricas.contador("expiracao.removidas");
+    private static final LongAdder removidasDespejo = Metricas.contador("despejo.removidas");
+
+    // Atraso da replicacao, em ms de escritas (diferenca de marcas): no lider, a maior marca
+    // confirmada por seguidor (REPLICATION_OK/HEARTBEAT_OK); no seguidor, a marca do lider
+    // no ultimo HEARTBEAT
+    private static final Map<InetSocketAddress, AtomicLong> marcasSeguidores = new ConcurrentHashMap<>();
+    private static volatile long marcaLider;
 
 public static void main(String[] args) {
     Scanner scanner = new Scanner(System.in);
@@ -68,7 +283,7 @@ public static void main(String[] args) {
     if (souLider) {
         ipLider = ip;
         portaLider = porta;
-        for (int i = 1; i <= 2; i++) {
+        for (int i = 1; i <= NUM_SEGUIDORES; i++) {
             String ipSeguidor;
             int portaSeguidor;
             if (mesmaMaquina) {
@@ -96,55 +311,337 @@ public static void main(String[] args) {
         }
     }
 
-    // Aceita conexoes simultaneas (thread por cliente) — 5b
-    try (ServerSocket serverSocket = new ServerSocket(porta)) {
-        System.out.println("Servidor escutando na porta " + porta + "...");
-        while (true) {
-            Socket clienteSocket = serverSocket.accept();
-            new Thread(new ClienteHandler(clienteSocket)).start();
+    meuEndereco = new InetSocketAddress(ip, porta);
+    liderDoGrupo = new InetSocketAddress(ipLider, portaLider);
+    registrarMedidores();
+    Metricas.registrarJmx("KVStore:type=Metricas,porta=" + porta);
+    if (souLider) {
+        List<InetSocketAddress> membros = new ArrayList<>();
+        membros.add(meuEndereco);
+        membros.addAll(servidoresSeguidores);
+        membrosGrupo = membros;
+        seguidoresAtivos.addAll(servidoresSeguidores);
+    }
+
+    // Topologia de particionamento (opcional): este servidor precisa estar nela
+    String grupos = System.getProperty("kv.grupos");
+    if (grupos != null) {
+        anel = new AnelHash(grupos);
+        AnelHash.Grupo meuGrupo = anel.grupoDoMembro(meuEndereco);
+        if (meuGrupo == null) {
+            System.err.println("Este servidor (" + meuEndereco + ") nao esta em kv.grupos: " + grupos);
+            return;
+        }
+        membrosGrupo = meuGrupo.getMembros();
+        System.out.println("Particionado em " + anel.getGrupos().size() + " grupos: " + anel.getDescricao());
+    }
+
+    // Recupera o banco do disco (snapshot + WAL) antes de aceitar conexoes
+    if (Boolean.parseBoolean(System.getProperty("kv.persistencia", "true"))) {
+        try {
+            File dir = new File(System.getProperty("kv.dados.dir", "dados-" + porta));
+            persistencia = new Persistencia(dir, LogEscrita.politica(System.getProperty("kv.wal.fsync", "grupo")),
+                    Long.getLong("kv.wal.intervaloMs", 100));
+            marcaAplicada.set(persistencia.recuperar(banco));
+            persistencia.iniciarSnapshots(banco, Long.getLong("kv.snapshot.intervaloMs", 60000));
+        } catch (IOException e) {
+            System.err.println("Erro ao recuperar dados do disco: " + e.getMessage());
+            return;
+        }
+    }
+
+    // O historico de replicacao comeca vazio: seguidores abaixo desta marca sincronizam pela arvore
+    logReplicacao.iniciar(marcaAplicada.get());
+    marcaReplicada.set(marcaAplicada.get());
+
+    // Chaves que ficaram de uma migracao interrompida voltam a ser movidas
+    if (souLider && anel != null) {
+        iniciarMigracao();
+    }
+
+    // Expiracao de TTL e despejo por memoria (o tique so age no lider)
+    if (souLider) {
+        reconstruirExpiracoes();
+    }
+    relogioExpiracao.scheduleWithFixedDelay(Servidor::expirarEDespejar, INTERVALO_EXPIRACAO_MS,
+            INTERVALO_EXPIRACAO_MS, TimeUnit.MILLISECONDS);
+
+    // Seguidor (re)iniciando: busca no lider o que perdeu enquanto estava fora
+    if (!souLider) {
+        synchronized (sincronia) {
+            iniciarSincronizacao();
+        }
+    }
+
+    // Heartbeats (lider) e deteccao de lider morto (seguidores)
+    if (FAILOVER) {
+        reiniciarPrazoEleicao();
+        relogioEleicao.scheduleWithFixedDelay(Servidor::pulsar, INTERVALO_HEARTBEAT_MS,
+                INTERVALO_HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Aceita conexoes simultaneas — 5b
+    try {
+        if (modo.equals("nio")) {
+            // Selector unico + poucos trabalhadores, sem thread por conexao
+            int numTrabalhadores = Integer.getInteger("kv.nio.trabalhadores", Runtime.getRuntime().availableProcessors());
+            ServidorNio servidorNio = new ServidorNio(porta, Executors.newFixedThreadPool(numTrabalhadores),
+                    canal -> new ClienteHandler(canal)::processar);
+            System.out.println("Servidor escutando na porta " + porta + " (nio, " + numTrabalhadores + " trabalhadores)...");
+            servidorNio.executar();
+        } else {
+            // Thread por cliente (plataforma ou virtual)
+            try (ServerSocket serverSocket = new ServerSocket(porta, 1024)) {
+                System.out.println("Servidor escutando na porta " + porta + " (" + modo + ")...");
+                while (true) {
+                    Socket clienteSocket = serverSocket.accept();
+                    if (modo.equals("virtual")) {
+                        trabalhadores.execute(new ClienteHandler(clienteSocket));
+                    } else {
+                        new Thread(new ClienteHandler(clienteSocket)).start();
+                    }
+                }
+            }
         }
     } catch (IOException e) {
         System.err.println("Erro ao iniciar servidor: " + e.getMessage());
     }
 }
 
+    /*
+     * Executor das tarefas que bloqueiam: threads virtuais no modo "virtual"
+     * (exige Java 21+, senao cai para threads de plataforma), cache de threads nos demais
+     */
+    private static ExecutorService criarExecutor() {
+        if (modo.equals("virtual")) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Threads virtuais indisponiveis nesta JVM (requer Java 21+), usando threads de plataforma.");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /*
+     * Agendador de uma thread (daemon); tarefas canceladas saem da fila na hora
+     */
+    private static ScheduledThreadPoolExecutor criarAgendador(String nome) {
+        ScheduledThreadPoolExecutor agendador = new ScheduledThreadPoolExecutor(1, tarefa -> {
+            Thread thread = new Thread(tarefa, nome);
+            thread.setDaemon(true);
+            return thread;
+        });
+        agendador.setRemoveOnCancelPolicy(true);
+        return agendador;
+    }
+
+    /*
+     * Envia um REPLICATION (lote) a todos os seguidores ao mesmo tempo (5c2)
+     * Completa com true assim que o quorum de ACKs chega, ou com false
+     * quando falhas suficientes tornam o quorum impossivel.
+     * Com failover o quorum e sempre a maioria do grupo, como no lease: um lider
+     * isolado (sem seguidores ativos) falha as escritas em vez de confirma-las
+     * sozinho, e elas nao se perdem quando a maioria eleger outro lider.
+     */
+    private static CompletableFuture<Boolean> replicar(Mensagem replicacao) {
+        // As escritas ja estao no WAL do lider (anexarAoWal); um fsync para o lote todo.
+        // Se falhar, o lote segue assim mesmo para os seguidores (o lider ja o aplicou e
+        // as replicas nao podem divergir), mas nenhuma escrita dele e confirmada.
+        boolean duravel = true;
+        if (persistencia != null) {
+            try {
+                persistencia.sincronizar();
+            } catch (IOException e) {
+                System.out.println("Falha no fsync do WAL: " + e.getMessage());
+                duravel = false;
+            }
+        }
+        // Posicao do lote no historico; o REPLICATION leva a marca do lote anterior (hwm)
+        // para o seguidor conferir que nao perdeu nenhum
+        long anterior = marcaReplicada.get();
+        long posicao = anterior;
+        for (Mensagem item : replicacao.getItens()) {
+            posicao = Math.max(posicao, item.getTimestamp());
+        }
+        marcaReplicada.set(posicao);
+        logReplicacao.registrar(replicacao.getItens(), posicao);
+        assinaturas.avisar();
+        replicacao.setHwm(anterior);
+
+        // Mandato do lider que enviou: seguidores recusam lotes de um lider deposto
+        replicacao.setMandato(mandatoAtual());
+        // Relogio do lider, como no HEARTBEAT: o seguidor acerta o desvio para o TTL
+        replicacao.setTimestamp(System.currentTimeMillis());
+        List<InetSocketAddress> destinos = new ArrayList<>();
+        for (InetSocketAddress seguidor : servidoresSeguidores) {
+            if (!FAILOVER || seguidoresAtivos.contains(seguidor)) {
+                destinos.add(seguidor);
+            }
+        }
+        int total = destinos.size();
+        int maioria = FAILOVER ? membrosGrupo.size() / 2 : 0;
+        int quorum = Math.max(maioria, QUORUM_REPLICACAO < 0 ? total : Math.min(QUORUM_REPLICACAO, total));
+        CompletableFuture<Boolean> resultado = new CompletableFuture<>();
+        if (quorum > total) {
+            // Seguidores ativos insuficientes: os que ha recebem o lote, mas nada e confirmado
+            semQuorum.increment();
+            resultado.complete(false);
+        } else if (quorum == 0) {
+            // Grupo de um servidor (ou kv.replicacao.quorum=0 sem failover)
+            resultado.complete(true);
+        }
+        tamanhoLote.registrar(replicacao.getItens().size());
+        int[] contagem = new int[2]; // [acks, falhas]
+        for (InetSocketAddress seguidor : destinos) {
+            LogAssincrono.registrar(() -> "Enviando REPLICATION (" + replicacao.getItens().size() + " escritas) para " + seguidor);
+            enviarReplicacao(seguidor, replicacao).thenAccept(ok -> {
+                synchronized (contagem) {
+                    if (ok) {
+                        LogAssincrono.registrar(() -> "Recebido REPLICATION_OK de " + seguidor);
+                        if (++contagem[0] == quorum) {
+                            resultado.complete(true);
+                        }
+                    } else if (++contagem[1] == total - quorum + 1) {
+                        resultado.complete(false);
+                    }
+                }
+            });
+        }
+        // Antes das confirmacoes aos clientes (callbacks de quem recebe este futuro)
+        long confirmada = posicao;
+        boolean loteDuravel = duravel;
+        return resultado.thenApply(ok -> {
+            if (ok) {
+                marcaConfirmada.accumulateAndGet(confirmada, Math::max);
+                avisarLeiturasLineares();
+            }
+            return ok && loteDuravel;
+        });
+    }
+
+    /*
+     * Escrita local do WAL ate o banco (ver Persistencia.iniciarEscrita): o snapshot
+     * nao gira o WAL entre as duas etapas. Toda escrita que passa pelo WAL fica entre
+     * iniciarEscrita e terminarEscrita (num finally).
+     */
+    private static void iniciarEscrita() {
+        if (persistencia != null) {
+            persistencia.iniciarEscrita();
+        }
+    }
+
+    private static void terminarEscrita() {
+        if (persistencia != null) {
+            persistencia.terminarEscrita();
+        }
+    }
+
+    /*
+     * Escritas do lider vao para o WAL antes do banco (chamado em ordemEscritas):
+     * false se o WAL falhou, e entao a escrita nao pode ser aplicada nem replicada
+     */
+    private static boolean anexarAoWal(Map<String, DadoKV> lote) {
+        if (persistencia == null) {
+            return true;
+        }
+        try {
+            persistencia.anexar(lote);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Falha ao gravar WAL: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /*
+     * Converte escritas (key, value, timestamp) em lote para o banco/WAL
+     * Mesma chave repetida no lote: fica a escrita mais nova
+     */
+    private static Map<String, DadoKV> montarLote(List<Mensagem> escritas) {
+        Map<String, DadoKV> lote = new HashMap<>();
+        for (Mensagem escrita : escritas) {
+            // Item REMOCAO vira valor null (remove a versao de mesmo timestamp ou mais velha)
+            String valor = "REMOCAO".equals(escrita.getTipo()) ? null : escrita.getValue();
+            lote.merge(escrita.getKey(), new DadoKV(valor, escrita.getTimestamp(), escrita.getExpira()),
+                    (atual, nova) -> Armazenamento.maisNovo(nova, atual) ? nova : atual);
+        }
+        return lote;
+    }
+
+    /*
+     * Envia mensagem REPLICATION para seguidor via TCP; o futuro indica se veio o ACK (5c2)
+     */
+    private static CompletableFuture<Boolean> enviarReplicacao(InetSocketAddress destino, Mensagem replicacao) {
+        long inicio = System.nanoTime();
+        CompletableFuture<Mensagem> resposta;
+        if (ATRASO_REPLICACAO_MS > 0) {
+            // Simula delay de replicacao, para testar WAIT_FOR_RESPONSE no GET dos seguidores
+            LogAssincrono.registrar(() -> "Simulando delay de replicacao para o seguidor " + destino +
+                    " (" + ATRASO_REPLICACAO_MS + " ms)...");
+            Executor atrasado = CompletableFuture.delayedExecutor(ATRASO_REPLICACAO_MS, TimeUnit.MILLISECONDS);
+            resposta = CompletableFuture.supplyAsync(() -> null, atrasado)
+                    .thenCompose(x -> poolReplicacao.enviar(destino, replicacao));
+        } else {
+            resposta = poolReplicacao.enviar(destino, replicacao);
+        }
+        return resposta
+            .orTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .handle((ack, erro) -> {
+                if (erro != null) {
+                    falhasReplicacao.increment();
+                    System.out.println("Falha ao replicar para " + destino + ": " + erro.getMessage());
+                    return false;
+                }
+                if (ack.getMandato() > replicacao.getMandato()) {
+                    // Seguidor ja esta num mandato maior: este lider foi deposto
+                    deixarLideranca(ack.getMandato(), null);
+                }
+                if (!"REPLICATION_OK".equals(ack.getTipo())) {
+                    falhasReplicacao.increment();
+                    return false;
+                }
+                rttReplicacao.computeIfAbsent(destino, d -> Metricas.histograma("replicacao.rttUs." + texto(d)))
+                        .registrarDesde(inicio);
+                confirmouMarca(destino, ack.getHwm());
+                return true;
+            });
+    }
+
     /*
      * Classe de handler para cada conexao, permite concorrencia (thread)
      * Responsavel pelas operacoes 5c (PUT), 5d (REPLICATION), 5f (GET)
+     * A conexao e persistente: le mensagens ate o outro lado fechar e
+     * responde cada uma com o mesmo id (respostas podem sair fora de ordem).
+     * Nos modos threads/virtual roda o laco de leitura do socket (run);
+     * no modo NIO recebe as mensagens ja lidas pelo ServidorNio (processar).
      */
     private static class ClienteHandler implements Runnable {
         private Socket socket;
+        private Canal canal;
         public ClienteHandler(Socket socket) {
             this.socket = socket;
         }
 
-        public void run() {
-            // Obtem IP e porta do cliente para prints exatos do enunciado
-            String ipCliente = socket.getInetAddress().getHostAddress();
-            int portaCliente = socket.getPort();
+        public ClienteHandler(Canal canal) {
+            this.canal = canal;
+        }
 
+        public void run() {
             try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
+                InputStream in = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16)
             ) {
-                String jsonRecebido = in.readLine();
-                Mensagem msg = gson.fromJson(jsonRecebido, Mensagem.class);
-
-                // Switch para tratar PUT, GET, REPLICATION (5c, 5f, 5d)
-                switch (msg.getTipo()) {
-                    case "PUT":
-                        tratarPUT(msg, out, ipCliente, portaCliente);
-                        break;
-                    case "GET":
-                        tratarGET(msg, out, ipCliente, portaCliente);
-                        break;
-                    case "REPLICATION":
-                        tratarREPLICATION(msg, out);
-                        break;
-                    default:
-                        System.out.println("Tipo de mensagem nao reconhecido: " + msg.getTipo());
+                socket.setTcpNoDelay(true);
+                // JSON (clientes antigos) ou binario, conforme o primeiro byte
+                Protocolo protocolo = Protocolo.negociar(in, out);
+                canal = new CanalSocket(socket, out, protocolo);
+                Remontagem remontagem = new Remontagem();
+                Mensagem msg;
+                while ((msg = protocolo.ler(in, remontagem)) != null) {
+                    processar(msg);
                 }
-            } catch (IOException e) {
+            } catch (IOException | RuntimeException e) {
                 System.err.println("Erro ao tratar cliente: " + e.getMessage());
             } finally {
                 try {
@@ -153,179 +650,2161 @@ public static void main(String[] args) {
             }
         }
 
+        /*
+         * Trata uma mensagem recebida; chamado em ordem de chegada para cada conexao
+         */
+        public void processar(Mensagem msg) {
+            // Obtem IP e porta do cliente para prints exatos do enunciado
+            String ipCliente = canal.getIpRemoto();
+            int portaCliente = canal.getPortaRemota();
+
+            // Chave de outro grupo (kv.grupos): vai para o lider do grupo dono
+            if (anel != null && encaminharParaDono(msg)) {
+                return;
+            }
+
+            LongAdder contador = requisicoes.get(msg.getTipo());
+            if (contador != null) {
+                contador.increment();
+                registrarChaves(msg);
+            }
+
+            // Switch para tratar PUT, GET, REPLICATION (5c, 5f, 5d) e operacoes de varias chaves
+            switch (msg.getTipo()) {
+                case "PUT":
+                    tratarPUT(msg, ipCliente, portaCliente);
+                    break;
+                case "GET":
+                    tratarGET(msg, ipCliente, portaCliente);
+                    break;
+                case "CAS":
+                    tratarCAS(msg, ipCliente, portaCliente);
+                    break;
+                case "MPUT":
+                    tratarMPUT(msg, ipCliente, portaCliente);
+                    break;
+                case "MGET":
+                    tratarMGET(msg);
+                    break;
+                case "SCAN":
+                    tratarSCAN(msg);
+                    break;
+                case "REPLICATION":
+                    // Tratada na propria thread leitora para manter a ordem do canal
+                    tratarREPLICATION(msg);
+                    break;
+                case "TOPOLOGIA":
+                    tratarTOPOLOGIA(msg);
+                    break;
+                case "MIGRACAO":
+                    if (souLider) {
+                        tratarMIGRACAO(msg);
+                    } else {
+                        encaminharAoLider(msg, "MIGRACAO_FAIL");
+                    }
+                    break;
+                case "GET_MIGRANDO":
+                    // Dono anterior durante a migracao: so os dados locais, sem encaminhar nem esperar
+                    List<String> migrando = new ArrayList<>();
+                    for (Mensagem item : msg.getItens()) {
+                        migrando.add(item.getKey());
+                    }
+                    responder(msg, respostaMGET("MGET_OK", migrando, banco.obterVarios(migrando)));
+                    break;
+                case "MIGRACAO_FIM":
+                    concluirMigracao(msg.getKey(), msg.getValue());
+                    responder(msg, new Mensagem("MIGRACAO_OK", null, null, 0, null, 0));
+                    break;
+                case "HEARTBEAT":
+                    tratarHEARTBEAT(msg);
+                    break;
+                case "VOTO":
+                    tratarVOTO(msg);
+                    break;
+                case "SYNC":
+                case "ARVORE":
+                case "BALDES":
+                    if (souLider) {
+                        tratarSincronizacao(msg);
+                    } else {
+                        encaminharAoLider(msg, "SYNC_FAIL");
+                    }
+                    break;
+                case "WATCH":
+                    // Servido por qualquer membro do grupo: todos aplicam o mesmo historico
+                    assinaturas.assinar(canal, msg);
+                    break;
+                case "UNWATCH":
+                    responder(msg, new Mensagem(assinaturas.cancelar(msg.getKey()) ? "UNWATCH_OK" : "UNWATCH_FAIL",
+                            msg.getKey(), null, 0, null, 0));
+                    break;
+                case "STATS":
+                    responder(msg, new Mensagem("STATS_OK", null, Metricas.relatorio() + ChavesQuentes.relatorio(), 0, null, 0));
+                    break;
+                default:
+                    System.out.println("Tipo de mensagem nao reconhecido: " + msg.getTipo());
+            }
+        }
+
+        // Acessos de clientes por chave, para a deteccao de chaves quentes
+        private void registrarChaves(Mensagem msg) {
+            switch (msg.getTipo()) {
+                case "PUT":
+                case "GET":
+                case "CAS":
+                    ChavesQuentes.registrar(msg.getKey());
+                    break;
+                case "MPUT":
+                case "MGET":
+                    if (msg.getItens() != null) {
+                        for (Mensagem item : msg.getItens()) {
+                            ChavesQuentes.registrar(item.getKey());
+                        }
+                    }
+                    break;
+                default:
+            }
+        }
+
+        /*
+         * Envia resposta com o id da requisicao e a marca de replicacao deste servidor
+         */
+        private void responder(Mensagem requisicao, Mensagem resposta) {
+            resposta.setId(requisicao.getId());
+            resposta.setHwm(marcaAplicada.get());
+            canal.enviar(resposta);
+        }
+
         /*
          * SECAO 5c: PUT
          * - Se nao for lider, encaminha PUT para lider (TCP, 5c)
          * - Se for lider:
-         *   1. Atualiza tabela local (banco), value+timestamp (protegido com synchronized)
-         *   2. Replica nos seguidores (REPLICATION, TCP, 5c2, 5d)
-         *   3. Quando recebe todos os REPLICATION_OK, envia PUT_OK ao cliente (5e)
+         *   1. Anexa a escrita ao WAL e so entao atualiza a tabela local (banco),
+         *      value+timestamp (atomico por chave); WAL com erro responde PUT_FAIL
+         *   2. Replica nos seguidores em paralelo (REPLICATION, TCP, 5c2, 5d)
+         *   3. Quando recebe o quorum de REPLICATION_OK, envia PUT_OK ao cliente (5e)
+         * Nenhum passo bloqueia a thread: a resposta sai quando a replicacao completa.
          */
-        private void tratarPUT(Mensagem msg, PrintWriter out, String ipCliente, int portaCliente) {
+        private void tratarPUT(Mensagem msg, String ipCliente, int portaCliente) {
+            if (msg.getValue() == null || msg.getTtl() < 0) {
+                // Valor null e reservado para remocoes nos lotes de replicacao; ttl negativo e invalido
+                responder(msg, new Mensagem("PUT_FAIL", msg.getKey(), null, 0, null, 0));
+                return;
+            }
             if (souLider) {
+                long inicio = System.nanoTime();
                 // Print exato do enunciado — lider
-                System.out.println("Cliente " + ipCliente + ":" + portaCliente +
+                LogAssincrono.registrar(() -> "Cliente " + ipCliente + ":" + portaCliente +
                         " PUT key:" + msg.getKey() + " value:" + msg.getValue() + ".");
 
                 // Gera timestamp e atualiza hash local (protegido para concorrencia)
-                long novoTimestamp = System.currentTimeMillis();
-                synchronized (banco) {
-                    banco.put(msg.getKey(), new DadoKV(msg.getValue(), novoTimestamp));
+                long novoTimestamp;
+                CompletableFuture<Boolean> replicado;
+                iniciarEscrita();
+                try {
+                    synchronized (ordemEscritas) {
+                        novoTimestamp = relogio.proximo(marcaAplicada.get());
+                        long expira = expiracao(msg, novoTimestamp);
+                        DadoKV dado = new DadoKV(msg.getValue(), novoTimestamp, expira);
+                        if (!anexarAoWal(Collections.singletonMap(msg.getKey(), dado))) {
+                            replicado = CompletableFuture.completedFuture(false);
+                        } else {
+                            banco.gravarSeMaisNovo(msg.getKey(), dado);
+                            agendarExpiracao(msg.getKey(), novoTimestamp, expira);
+                            marcaAplicada.set(novoTimestamp);
+                            replicado = replicar(msg, novoTimestamp, expira);
+                        }
+                    }
+                } finally {
+                    terminarEscrita();
                 }
+                confirmar(msg, replicado, novoTimestamp, ipCliente, portaCliente, latenciaPut, inicio);
+            } else {
+                // Print para seguidor (nao-lider)
+                LogAssincrono.registrar(() -> "Encaminhando PUT key:" + msg.getKey() + " value:" + msg.getValue());
+                encaminharAoLider(msg, "PUT_FAIL");
+            }
+        }
 
-                // Replicacao para seguidores via TCP (5c2)
-                Mensagem replicacao = new Mensagem("REPLICATION", msg.getKey(), msg.getValue(), novoTimestamp, null, 0);
-                int acks = 0;
-                for (InetSocketAddress seguidor : servidoresSeguidores) {
-                    System.out.println("Enviando REPLICATION para " + seguidor);
-
-                    // Simula delay de replicacao, para testar WAIT_FOR_RESPONSE no GET dos seguidores
-                    try {
-                        System.out.println("Simulando delay de replicacao para o seguidor " + seguidor + " (10 segundos)...");
-                        Thread.sleep(10000); // 10 segundos
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
+        /*
+         * PUT condicional (CAS): grava so se o timestamp atual da chave for o
+         * informado em msg.timestamp (0 = chave ainda nao existe).
+         * Sucesso responde PUT_OK com o novo timestamp; conflito responde CAS_FAIL
+         * com o valor/timestamp atuais, para o cliente tentar de novo sem outro GET.
+         * Chave vencida (TTL) conta como ausente: o CAS esperado 0 grava por cima dela.
+         */
+        private void tratarCAS(Mensagem msg, String ipCliente, int portaCliente) {
+            if (msg.getValue() == null || msg.getTtl() < 0) {
+                responder(msg, new Mensagem("PUT_FAIL", msg.getKey(), null, 0, null, 0));
+                return;
+            }
+            if (!souLider) {
+                LogAssincrono.registrar(() -> "Encaminhando CAS key:" + msg.getKey() + " value:" + msg.getValue());
+                encaminharAoLider(msg, "PUT_FAIL");
+                return;
+            }
+            long inicio = System.nanoTime();
+            LogAssincrono.registrar(() -> "Cliente " + ipCliente + ":" + portaCliente + " CAS key:" + msg.getKey() +
+                    " value:" + msg.getValue() + " ts esperado:" + msg.getTimestamp() + ".");
 
-                    if (enviarReplicacao(seguidor, replicacao)) {
-                        acks++;
-                        System.out.println("Recebido REPLICATION_OK de " + seguidor);
+            // O novo timestamp e maior que a marca, e portanto que a versao esperada:
+            // dois CAS seguidos nunca veem a mesma versao
+            long novoTimestamp;
+            CompletableFuture<Boolean> replicado;
+            iniciarEscrita();
+            try {
+                synchronized (ordemEscritas) {
+                    novoTimestamp = relogio.proximo(marcaAplicada.get());
+                    long expira = expiracao(msg, novoTimestamp);
+                    // Toda escrita do lider passa por ordemEscritas: a versao lida aqui e a comparada
+                    DadoKV atual = banco.obter(msg.getKey());
+                    long tsAtual = atual == null ? 0 : atual.timestamp;
+                    long tsVisivel = vivo(atual) == null ? 0 : tsAtual;
+                    DadoKV dado = new DadoKV(msg.getValue(), novoTimestamp, expira);
+                    if (tsVisivel != msg.getTimestamp()) {
+                        replicado = null;
+                    } else if (!anexarAoWal(Collections.singletonMap(msg.getKey(), dado))) {
+                        // A versao esperada confere, mas a escrita nao ficou no WAL: PUT_FAIL, nao CAS_FAIL
+                        replicado = CompletableFuture.completedFuture(false);
+                    } else if (!banco.compararEGravar(msg.getKey(), tsAtual, dado)) {
+                        replicado = null;
+                    } else {
+                        agendarExpiracao(msg.getKey(), novoTimestamp, expira);
+                        marcaAplicada.set(novoTimestamp);
+                        replicado = replicar(msg, novoTimestamp, expira);
                     }
                 }
-                if (acks == servidoresSeguidores.size()) {
+            } finally {
+                terminarEscrita();
+            }
+            if (replicado == null) {
+                responder(msg, respostaGet("CAS_FAIL", msg.getKey(), banco.obter(msg.getKey())));
+                latenciaCas.registrarDesde(inicio);
+                return;
+            }
+            confirmar(msg, replicado, novoTimestamp, ipCliente, portaCliente, latenciaCas, inicio);
+        }
+
+        /*
+         * Entrega ao group commit a escrita ja aplicada no lider (chamado em ordemEscritas)
+         */
+        private CompletableFuture<Boolean> replicar(Mensagem msg, long novoTimestamp, long expira) {
+            // Replicacao para seguidores via TCP (5c2), agrupada com outros PUTs concorrentes
+            Mensagem escrita = new Mensagem("REPLICATION", msg.getKey(), msg.getValue(), novoTimestamp, null, 0);
+            escrita.setExpira(expira);
+            return replicador.submeter(escrita);
+        }
+
+        /*
+         * Responde PUT_OK quando a replicacao da escrita confirmar (PUT_FAIL se falhar)
+         * e registra em latencia o tempo desde inicio (nanoTime do recebimento)
+         */
+        private void confirmar(Mensagem msg, CompletableFuture<Boolean> replicado, long novoTimestamp,
+                               String ipCliente, int portaCliente, Histograma latencia, long inicio) {
+            replicado.thenAccept(confirmado -> {
+                if (confirmado) {
                     // Envia PUT_OK apos replicacao (5e)
                     Mensagem resposta = new Mensagem("PUT_OK", msg.getKey(), msg.getValue(), novoTimestamp, null, 0);
-                    out.println(gson.toJson(resposta));
-                    System.out.println("Enviando PUT_OK ao Cliente " + ipCliente + ":" + portaCliente +
+                    resposta.setLider(enderecoLider());
+                    responder(msg, resposta);
+                    latencia.registrarDesde(inicio);
+                    LogAssincrono.registrar(() -> "Enviando PUT_OK ao Cliente " + ipCliente + ":" + portaCliente +
                             " da key:" + msg.getKey() + " ts:" + novoTimestamp + ".");
-                    notificarPendentes(msg.getKey(), msg.getValue(), novoTimestamp);
+                    notificarPendentes(msg.getKey(), novoTimestamp);
                 } else {
+                    escritasFalhas.increment();
                     System.out.println("Erro na replicacao. PUT nao confirmado.");
+                    responder(msg, new Mensagem("PUT_FAIL", msg.getKey(), null, 0, null, 0));
                 }
-            } else {
-                // Print para seguidor (nao-lider)
-                System.out.println("Encaminhando PUT key:" + msg.getKey() + " value:" + msg.getValue());
-                // Encaminha para o lider via TCP
-                try (
-                    Socket socketLider = new Socket(ipLider, portaLider);
-                    PrintWriter outLider = new PrintWriter(socketLider.getOutputStream(), true);
-                    BufferedReader inLider = new BufferedReader(new InputStreamReader(socketLider.getInputStream()))
-                ) {
-                    outLider.println(gson.toJson(msg));
-                    String respostaLider = inLider.readLine();
-                    out.println(respostaLider); // Responde ao cliente
-                } catch (IOException e) {
-                    System.out.println("Falha ao encaminhar PUT ao lider: " + e.getMessage());
-                    out.println("{\"tipo\":\"PUT_FAIL\"}");
-                }
-            }
+            });
         }
 
         /*
-         * SECAO 5f: GET
-         * - Responde GET seguindo politica de timestamps
-         *   1. Se nao existe, retorna NULL
-         *   2. Se timestamp local >= do cliente, retorna valor/timestamp
-         *   3. Se timestamp local < do cliente, retorna WAIT_FOR_RESPONSE, corta conexao e coloca cliente em pendentes
+         * MPUT: varias chaves (itens com key/value) gravadas com um unico timestamp.
+         * O lider aplica o conjunto atomicamente e o replica como uma unidade
+         * (um so lote de REPLICATION), entao nenhum servidor expoe metade do MPUT.
+         * O ttl da mensagem vale para todas as chaves.
          */
-        private void tratarGET(Mensagem msg, PrintWriter out, String ipCliente, int portaCliente) {
-            String key = msg.getKey();
-            long tsCliente = msg.getTimestamp();
+        private void tratarMPUT(Mensagem msg, String ipCliente, int portaCliente) {
+            if (msg.getItens() == null || msg.getItens().isEmpty() || msg.getTtl() < 0 ||
+                    msg.getItens().stream().anyMatch(item -> item.getValue() == null)) {
+                responder(msg, new Mensagem("PUT_FAIL", null, null, 0, null, 0));
+                return;
+            }
+            if (!souLider) {
+                LogAssincrono.registrar(() -> "Encaminhando MPUT (" + msg.getItens().size() + " chaves)");
+                encaminharAoLider(msg, "PUT_FAIL");
+                return;
+            }
+            long inicio = System.nanoTime();
+            LogAssincrono.registrar(() -> "Cliente " + ipCliente + ":" + portaCliente + " MPUT (" + msg.getItens().size() + " chaves).");
 
-            DadoKV dado;
-            synchronized (banco) {
-                dado = banco.get(key);
+            long novoTimestamp;
+            List<Mensagem> escritas = new ArrayList<>(msg.getItens().size());
+            CompletableFuture<Boolean> replicado;
+            iniciarEscrita();
+            try {
+                synchronized (ordemEscritas) {
+                    novoTimestamp = relogio.proximo(marcaAplicada.get());
+                    long expira = expiracao(msg, novoTimestamp);
+                    for (Mensagem item : msg.getItens()) {
+                        Mensagem escrita = new Mensagem("REPLICATION", item.getKey(), item.getValue(), novoTimestamp, null, 0);
+                        escrita.setExpira(expira);
+                        escritas.add(escrita);
+                    }
+                    Map<String, DadoKV> lote = montarLote(escritas);
+                    if (!anexarAoWal(lote)) {
+                        replicado = CompletableFuture.completedFuture(false);
+                    } else {
+                        for (Mensagem escrita : escritas) {
+                            agendarExpiracao(escrita.getKey(), novoTimestamp, expira);
+                        }
+                        banco.gravarLote(lote);
+                        marcaAplicada.set(novoTimestamp);
+                        replicado = replicador.submeter(escritas);
+                    }
+                }
+            } finally {
+                terminarEscrita();
             }
 
-            if (dado == null) {
-                if (tsCliente == 0) {
-                    // Nunca viu a chave
-                    out.println(gson.toJson(new Mensagem("GET_OK", key, "NULL", 0, null, 0)));
+            replicado.thenAccept(confirmado -> {
+                if (confirmado) {
+                    Mensagem resposta = new Mensagem("MPUT_OK", null, null, novoTimestamp, null, 0);
+                    resposta.setLider(enderecoLider());
+                    responder(msg, resposta);
+                    latenciaMput.registrarDesde(inicio);
+                    LogAssincrono.registrar(() -> "Enviando MPUT_OK ao Cliente " + ipCliente + ":" + portaCliente +
+                            " ts:" + novoTimestamp + ".");
+                    for (Mensagem escrita : escritas) {
+                        notificarPendentes(escrita.getKey(), novoTimestamp);
+                    }
                 } else {
-                    // Cliente já viu valor, mas servidor ainda não replicou
-                    // Responde WAIT_FOR_RESPONSE imediatamente
-                    synchronized (getsPendentes) {
-                        getsPendentes.computeIfAbsent(key, k -> new ArrayList<>()).add(
-                            new Mensagem(msg.getTipo(), key, null, tsCliente, msg.getIpCliente(), msg.getPortaCliente())
-                        );
+                    escritasFalhas.increment();
+                    System.out.println("Erro na replicacao. MPUT nao confirmado.");
+                    responder(msg, new Mensagem("PUT_FAIL", null, null, 0, null, 0));
+                }
+            });
+        }
+
+        /*
+         * Encaminha a escrita ao lider via conexao persistente, sem bloquear esta conexao,
+         * e devolve ao cliente a resposta do lider (ou tipoFalha)
+         */
+        private void encaminharAoLider(Mensagem msg, String tipoFalha) {
+            encaminhar(Collections.singletonList(liderDoGrupo), 0, msg, tipoFalha);
+        }
+
+        /*
+         * Repassa a requisicao a outro servidor e devolve ao cliente as respostas
+         * dele (inclusive parciais, como WAIT_FOR_RESPONSE), ou tipoFalha.
+         * Se o destino nao responder, tenta o proximo da lista.
+         */
+        private void encaminhar(List<InetSocketAddress> destinos, int indice, Mensagem msg, String tipoFalha) {
+            InetSocketAddress destino = destinos.get(indice);
+            long inicio = System.nanoTime();
+            pool.enviar(destino, msg, parcial -> responder(msg, parcial))
+                .orTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((respostaLider, erro) -> {
+                    if (erro != null && indice + 1 < destinos.size()) {
+                        encaminhar(destinos, indice + 1, msg, tipoFalha);
+                    } else if (erro != null) {
+                        System.out.println("Falha ao encaminhar " + msg.getTipo() + " para " + destino + ": " + erro.getMessage());
+                        responder(msg, new Mensagem(tipoFalha, msg.getKey(), null, 0, null, 0));
+                    } else {
+                        responder(msg, respostaLider); // Responde ao cliente
+                        latenciaEncaminhada.registrarDesde(inicio);
                     }
-                    out.println(gson.toJson(new Mensagem("WAIT_FOR_RESPONSE", key, null, 0, null, 0)));
+                });
+        }
+
+        /*
+         * Particionamento: se as chaves da requisicao pertencem a outro grupo, encaminha
+         * ao lider dele e devolve true. MGET/MPUT precisam ter todas as chaves no mesmo grupo.
+         */
+        private boolean encaminharParaDono(Mensagem msg) {
+            String tipoFalha;
+            switch (msg.getTipo()) {
+                case "PUT":
+                case "CAS":
+                case "MPUT":
+                    tipoFalha = "PUT_FAIL";
+                    break;
+                case "GET":
+                    tipoFalha = "GET_TIMEOUT";
+                    break;
+                case "MGET":
+                    tipoFalha = "MGET_FAIL";
+                    break;
+                default:
+                    return false;
+            }
+            AnelHash atual = anel;
+            AnelHash.Grupo dono = null;
+            List<Mensagem> itens = msg.getItens() != null ? msg.getItens() : Collections.singletonList(msg);
+            for (Mensagem item : itens) {
+                AnelHash.Grupo grupo = atual.grupoDe(item.getKey());
+                if (dono != null && grupo != dono) {
+                    responder(msg, new Mensagem(tipoFalha, null, "chaves de grupos diferentes", 0, null, 0));
+                    return true;
                 }
-                return;
+                dono = grupo;
+            }
+            if (dono == null || dono.getMembros().contains(meuEndereco)) {
+                return false;
             }
+            AnelHash.Grupo grupoDono = dono;
+            LogAssincrono.registrar(() -> "Encaminhando " + msg.getTipo() + " para o grupo " + grupoDono);
+            encaminhar(dono.getMembros(), 0, msg, tipoFalha);
+            return true;
+        }
 
-            if (dado.timestamp >= tsCliente) {
-                // Servidor já tem valor igual ou mais novo, responde GET_OK
-                out.println(gson.toJson(new Mensagem("GET_OK", key, dado.valor, dado.timestamp, null, 0)));
-            } else {
-                // Valor local antigo, responde WAIT_FOR_RESPONSE imediatamente
-                synchronized (getsPendentes) {
-                    getsPendentes.computeIfAbsent(key, k -> new ArrayList<>()).add(
-                        new Mensagem(msg.getTipo(), key, null, tsCliente, msg.getIpCliente(), msg.getPortaCliente())
-                    );
+        /*
+         * TOPOLOGIA: nova divisao das chaves entre grupos (value = texto de kv.grupos).
+         * O lider passa a encaminhar as chaves que mudaram de dono e as migra em segundo plano.
+         * key = topologia anterior, opcional: sem ela vale a que este servidor tinha. A resposta
+         * traz a anterior (AdminTopologia a repassa aos servidores que subiram ja com a nova).
+         */
+        private void tratarTOPOLOGIA(Mensagem msg) {
+            AnelHash novo;
+            AnelHash anterior;
+            try {
+                novo = new AnelHash(msg.getValue());
+                anterior = msg.getKey() != null ? new AnelHash(msg.getKey()) : anel;
+            } catch (RuntimeException e) {
+                responder(msg, new Mensagem("TOPOLOGIA_FAIL", null, e.getMessage(), 0, null, 0));
+                return;
+            }
+            if (novo.grupoDoMembro(meuEndereco) == null) {
+                responder(msg, new Mensagem("TOPOLOGIA_FAIL", null, "servidor " + meuEndereco + " ausente", 0, null, 0));
+                return;
+            }
+            if (anterior != null && anterior.getDescricao().equals(novo.getDescricao())) {
+                anterior = null;
+            }
+            synchronized (migracoesConcluidas) {
+                if (anel == null || !anel.getDescricao().equals(novo.getDescricao())) {
+                    migracoesConcluidas.clear();
                 }
-                out.println(gson.toJson(new Mensagem("WAIT_FOR_RESPONSE", key, null, dado.timestamp, null, 0)));
+                if (anterior != null) {
+                    anelAnterior = anterior;
+                }
+                anel = novo;
+                verificarMigracaoConcluida();
+            }
+            System.out.println("Nova topologia (" + novo.getGrupos().size() + " grupos): " + novo.getDescricao());
+            responder(msg, new Mensagem("TOPOLOGIA_OK", null, anterior != null ? anterior.getDescricao() : null, 0, null, 0));
+            if (souLider) {
+                iniciarMigracao();
             }
         }
 
         /*
-         * SECAO 5d: REPLICATION — replica valor recebido do lider (TCP)
-         * Atualiza hash local, responde com REPLICATION_OK
+         * MIGRACAO (lider de destino): chaves que passaram a ser deste grupo, com os
+         * timestamps originais. Aplicadas pela regra de timestamp (uma escrita nova feita
+         * aqui durante a migracao vence) e replicadas aos seguidores antes do MIGRACAO_OK.
          */
-        private void tratarREPLICATION(Mensagem msg, PrintWriter out) {
-            synchronized (banco) {
-                banco.put(msg.getKey(), new DadoKV(msg.getValue(), msg.getTimestamp()));
+        private void tratarMIGRACAO(Mensagem msg) {
+            List<Mensagem> escritas = new ArrayList<>(msg.getItens().size());
+            long maiorTimestamp = 0;
+            for (Mensagem item : msg.getItens()) {
+                Mensagem escrita = new Mensagem("REPLICATION", item.getKey(), item.getValue(), item.getTimestamp(), null, 0);
+                escrita.setExpira(item.getExpira());
+                escritas.add(escrita);
+                maiorTimestamp = Math.max(maiorTimestamp, item.getTimestamp());
             }
-            System.out.println("REPLICATION key:" + msg.getKey() + " value:" +
-                    msg.getValue() + " ts:" + msg.getTimestamp() + ".");
-            Mensagem ack = new Mensagem("REPLICATION_OK", msg.getKey(), null, msg.getTimestamp(), null, 0);
-            out.println(gson.toJson(ack));
-            notificarPendentes(msg.getKey(), msg.getValue(), msg.getTimestamp());
+            CompletableFuture<Boolean> replicado;
+            iniciarEscrita();
+            try {
+                synchronized (ordemEscritas) {
+                    Map<String, DadoKV> lote = montarLote(escritas);
+                    if (!anexarAoWal(lote)) {
+                        replicado = CompletableFuture.completedFuture(false);
+                    } else {
+                        for (Mensagem escrita : escritas) {
+                            agendarExpiracao(escrita.getKey(), escrita.getTimestamp(), escrita.getExpira());
+                        }
+                        banco.gravarLote(lote);
+                        marcaAplicada.accumulateAndGet(maiorTimestamp, Math::max);
+                        replicado = replicador.submeter(escritas);
+                    }
+                }
+            } finally {
+                terminarEscrita();
+            }
+            replicado.thenAccept(confirmado -> {
+                responder(msg, new Mensagem(confirmado ? "MIGRACAO_OK" : "MIGRACAO_FAIL", null, null, 0, null, 0));
+                if (confirmado) {
+                    System.out.println("Recebidas " + escritas.size() + " chaves migradas de " + canal.getIpRemoto());
+                    for (Mensagem escrita : escritas) {
+                        notificarPendentes(escrita.getKey(), escrita.getTimestamp());
+                    }
+                }
+            });
         }
 
         /*
-         * Envia mensagem REPLICATION para seguidor via TCP e espera ACK (5c2)
+         * SECAO 5f: GET
+         * - Responde GET seguindo politica de timestamps
+         *   1. Se nao existe, retorna NULL
+         *   2. Se timestamp local >= do cliente, retorna valor/timestamp
+         *   3. Se timestamp local < do cliente, retorna WAIT_FOR_RESPONSE (resposta parcial)
+         *      e estaciona o GET: o GET_OK sai depois, na mesma conexao e com o mesmo id,
+         *      ou GET_TIMEOUT se a replicacao nao chegar em kv.get.esperaMaxMs
+         * Consistencia ANY pula a regra (responde na hora); LINEARIZABLE vai ao lider (lerLinear)
          */
-        private boolean enviarReplicacao(InetSocketAddress destino, Mensagem replicacao) {
-            try (Socket socket = new Socket(destino.getAddress(), destino.getPort());
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+        private void tratarGET(Mensagem msg, String ipCliente, int portaCliente) {
+            String key = msg.getKey();
+            long tsCliente = msg.getTimestamp();
+
+            if (msg.getConsistencia() == Consistencia.LINEARIZABLE) {
+                lerLinear(msg, "GET_TIMEOUT", System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ESPERA_GET_MS), false);
+                return;
+            }
 
-                out.println(gson.toJson(replicacao));
-                String respostaJson = in.readLine();
-                Mensagem resposta = gson.fromJson(respostaJson, Mensagem.class);
+            DadoKV dado = banco.obter(key);
+            if (dado == null && lerDoDonoAnterior(Collections.singletonList(key), lidos -> responderGET(msg, lidos.get(key)))) {
+                return;
+            }
+            responderGET(msg, dado);
+        }
 
-                return "REPLICATION_OK".equals(resposta.getTipo());
-            } catch (IOException e) {
-                System.out.println("Falha ao replicar para " + destino + ": " + e.getMessage());
-                return false;
+        // Regra de timestamp do GET sobre o dado lido (local, ou tambem do dono anterior)
+        private void responderGET(Mensagem msg, DadoKV dado) {
+            String key = msg.getKey();
+            long tsCliente = msg.getTimestamp();
+            if (msg.getConsistencia() == Consistencia.ANY || atualizado(dado, tsCliente)) {
+                // Nunca viu a chave, ou servidor já tem valor igual ou mais novo (ou o cliente
+                // aceita qualquer versao, ANY): responde GET_OK
+                responder(msg, respostaGet("GET_OK", key, dado));
+                getsImediatos.increment();
+                if (msg.getConsistencia() == Consistencia.ANY) {
+                    getsAny.increment();
+                }
+            } else {
+                getsEstacionados.increment();
+                // Valor local antigo (ou ainda nao replicado), responde WAIT_FOR_RESPONSE imediatamente
+                responder(msg, new Mensagem("WAIT_FOR_RESPONSE", key, null, dado == null ? 0 : dado.timestamp, null, 0));
+                estacionarGet(msg, key, tsCliente);
             }
         }
 
         /*
-         * (GET assincrono) — envia GET_OK para clientes pendentes assim que possivel (5f)
+         * MGET: varias chaves (itens com key e timestamp do cliente) numa so ida e volta.
+         * Aplica a regra do GET em cada chave sobre uma leitura consistente; se alguma
+         * estiver atrasada, responde WAIT_FOR_RESPONSE e o MGET_OK sai quando todas
+         * alcancarem o timestamp pedido (ou MGET_TIMEOUT com os valores locais).
          */
-        private void notificarPendentes(String key, String value, long timestamp) {
-            List<Mensagem> pendentes;
-            synchronized (getsPendentes) {
-                pendentes = getsPendentes.remove(key);
-            }
-
-            if (pendentes != null) {
-                for (Mensagem pendente : pendentes) {
-                    try (
-                        Socket socket = new Socket(pendente.getIpCliente(), pendente.getPortaCliente());
-                        PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
-                    ) {
-                        Mensagem resposta = new Mensagem("GET_OK", key, value, timestamp, null, 0);
-                        out.println(gson.toJson(resposta));
-                        System.out.println("Enviado GET_OK assincrono para " +
-                                pendente.getIpCliente() + ":" + pendente.getPortaCliente() + " key:" + key);
-                    } catch (IOException e) {
-                        System.out.println("Erro ao enviar resposta assincrona para cliente: " + e.getMessage());
-                    }
+        private void tratarMGET(Mensagem msg) {
+            if (msg.getConsistencia() == Consistencia.LINEARIZABLE) {
+                lerLinear(msg, "MGET_TIMEOUT", System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ESPERA_GET_MS), false);
+                return;
+            }
+            List<Mensagem> itens = msg.getItens() != null ? msg.getItens() : Collections.emptyList();
+            Map<String, Long> pedidos = new LinkedHashMap<>();
+            for (Mensagem item : itens) {
+                pedidos.merge(item.getKey(), item.getTimestamp(), Math::max);
+            }
+            Map<String, DadoKV> dados = banco.obterVarios(pedidos.keySet());
+            List<String> ausentes = new ArrayList<>();
+            for (String key : pedidos.keySet()) {
+                if (dados.get(key) == null) {
+                    ausentes.add(key);
                 }
             }
+            if (!ausentes.isEmpty() && lerDoDonoAnterior(ausentes, lidos -> {
+                Map<String, DadoKV> todos = new HashMap<>(dados);
+                todos.putAll(lidos);
+                responderMGET(msg, pedidos, todos);
+            })) {
+                return;
+            }
+            responderMGET(msg, pedidos, dados);
+        }
+
+        // Regra do GET em cada chave do MGET (pedidos: key -> timestamp do cliente)
+        private void responderMGET(Mensagem msg, Map<String, Long> pedidos, Map<String, DadoKV> dados) {
+            Map<String, Long> atrasadas = new HashMap<>();
+            for (Map.Entry<String, Long> pedido : pedidos.entrySet()) {
+                if (msg.getConsistencia() != Consistencia.ANY && !atualizado(dados.get(pedido.getKey()), pedido.getValue())) {
+                    atrasadas.put(pedido.getKey(), pedido.getValue());
+                }
+            }
+            if (atrasadas.isEmpty()) {
+                responder(msg, respostaMGET("MGET_OK", pedidos.keySet(), dados));
+                mgetsImediatos.increment();
+                return;
+            }
+            mgetsEstacionados.increment();
+            responder(msg, new Mensagem("WAIT_FOR_RESPONSE", null, null, 0, null, 0));
+            estacionar(msg, atrasadas, false, atendido ->
+                    respostaMGET(atendido ? "MGET_OK" : "MGET_TIMEOUT", pedidos.keySet(), banco.obterVarios(pedidos.keySet())));
+        }
+
+        /*
+         * Migracao em andamento (anelAnterior): das chaves ausentes aqui, as que eram de
+         * outro grupo podem ainda nao ter chegado. Pergunta ao dono anterior (GET_MIGRANDO,
+         * que ele responde so com os dados locais, sem encaminhar) e continua com a versao
+         * mais nova entre a de la e a daqui, relida no fim (a MIGRACAO pode ter chegado no
+         * meio). Falha na consulta continua so com os dados locais.
+         * false se nao ha a quem perguntar: quem chamou segue na hora.
+         */
+        private boolean lerDoDonoAnterior(Collection<String> keys, Consumer<Map<String, DadoKV>> continuar) {
+            AnelHash anterior = anelAnterior;
+            if (anterior == null) {
+                return false;
+            }
+            Map<AnelHash.Grupo, List<Mensagem>> porGrupo = new HashMap<>();
+            for (String key : keys) {
+                AnelHash.Grupo grupo = anterior.grupoDe(key);
+                if (!grupo.getMembros().contains(meuEndereco)) {
+                    porGrupo.computeIfAbsent(grupo, g -> new ArrayList<>()).add(new Mensagem(null, key, null, 0, null, 0));
+                }
+            }
+            if (porGrupo.isEmpty()) {
+                return false;
+            }
+            leiturasDonoAnterior.increment();
+            Map<String, DadoKV> remotos = new ConcurrentHashMap<>();
+            List<CompletableFuture<Mensagem>> consultas = new ArrayList<>(porGrupo.size());
+            for (Map.Entry<AnelHash.Grupo, List<Mensagem>> grupo : porGrupo.entrySet()) {
+                Mensagem consulta = new Mensagem("GET_MIGRANDO", null, null, 0, null, 0);
+                consulta.setItens(grupo.getValue());
+                // Qualquer membro serve: o dono anterior so apaga a chave depois do MIGRACAO_OK
+                consultas.add(pool.enviar(grupo.getKey().getLider(), consulta)
+                        .orTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                        .whenComplete((resposta, erro) -> {
+                            if (resposta == null || resposta.getItens() == null) {
+                                return;
+                            }
+                            for (Mensagem item : resposta.getItens()) {
+                                if (!"NULL".equals(item.getValue())) {
+                                    remotos.put(item.getKey(), new DadoKV(item.getValue(), item.getTimestamp(), item.getExpira()));
+                                }
+                            }
+                        }));
+            }
+            CompletableFuture.allOf(consultas.toArray(new CompletableFuture<?>[0])).whenComplete((ok, erro) -> {
+                Map<String, DadoKV> lidos = new HashMap<>(remotos);
+                banco.obterVarios(keys).forEach((key, local) -> {
+                    if (local != null) {
+                        lidos.merge(key, local, (remoto, aqui) -> aqui.timestamp >= remoto.timestamp ? aqui : remoto);
+                    }
+                });
+                continuar.accept(lidos);
+            });
+            return true;
+        }
+
+        /*
+         * GET/MGET LINEARIZABLE: o seguidor encaminha ao lider. O lider responde na hora
+         * se tem lease (nenhum outro lider pode ter sido eleito) e as versoes lidas ja
+         * foram confirmadas pelo quorum (marcaConfirmada): escrita so aplicada no lider
+         * ainda pode nao sobreviver a uma troca de lider. Senao WAIT_FOR_RESPONSE, e a
+         * leitura e refeita a cada aviso (avisarLeiturasLineares) ate limite (nanoTime);
+         * esgotado, ou perdida a lideranca, responde tipoTimeout sem valores.
+         */
+        private void lerLinear(Mensagem msg, String tipoTimeout, long limite, boolean esperando) {
+            if (!souLider) {
+                if (esperando) {
+                    responder(msg, new Mensagem(tipoTimeout, msg.getKey(), null, 0, null, 0));
+                } else {
+                    encaminharAoLider(msg, tipoTimeout);
+                }
+                return;
+            }
+            long avisos = avisosLineares.get();
+            if (leaseValido()) {
+                Mensagem resposta = leituraConfirmada(msg);
+                if (resposta != null) {
+                    responder(msg, resposta);
+                    (esperando ? leiturasLinearesEspera : leiturasLinearesImediatas).increment();
+                    return;
+                }
+            }
+            if (System.nanoTime() - limite >= 0) {
+                esperasTimeout.increment();
+                responder(msg, new Mensagem(tipoTimeout, msg.getKey(), null, 0, null, 0));
+                return;
+            }
+            if (!esperando) {
+                responder(msg, new Mensagem("WAIT_FOR_RESPONSE", msg.getKey(), null, 0, null, 0));
+            }
+            leiturasLineares.add(() -> lerLinear(msg, tipoTimeout, limite, true));
+            // Aviso entre a leitura e a entrada na fila: tenta de novo ja
+            if (avisosLineares.get() != avisos) {
+                prazosGet.execute(Servidor::tentarLeiturasLineares);
+            }
+        }
+
+        // GET_OK/MGET_OK se nenhuma versao lida passa da marca confirmada; senao null
+        private Mensagem leituraConfirmada(Mensagem msg) {
+            long confirmada = marcaConfirmada.get();
+            if ("GET".equals(msg.getTipo())) {
+                DadoKV dado = banco.obter(msg.getKey());
+                return dado != null && dado.timestamp > confirmada ? null : respostaGet("GET_OK", msg.getKey(), dado);
+            }
+            Set<String> keys = new LinkedHashSet<>();
+            for (Mensagem item : msg.getItens() != null ? msg.getItens() : Collections.<Mensagem>emptyList()) {
+                keys.add(item.getKey());
+            }
+            Map<String, DadoKV> dados = banco.obterVarios(keys);
+            for (DadoKV dado : dados.values()) {
+                if (dado != null && dado.timestamp > confirmada) {
+                    return null;
+                }
+            }
+            return respostaMGET("MGET_OK", keys, dados);
+        }
+
+        /*
+         * SCAN: chaves de [key, value) em ordem (null = sem limite naquele lado), ate
+         * limite chaves vivas. Os itens saem em blocos SCAN_PARCIAL e o SCAN_OK final
+         * traz o resto e, em key, o token de continuacao: a proxima chave (inclusiva)
+         * para o SCAN seguinte, ou null se a faixa acabou.
+         * Com particionamento, so as chaves deste grupo (o ClienteKV consulta cada grupo
+         * e junta). No seguidor, so responde depois de aplicar o timestamp do cliente:
+         * enquanto isso, WAIT_FOR_RESPONSE e o SCAN fica em esperasMarca.
+         */
+        private void tratarSCAN(Mensagem msg) {
+            long tsCliente = msg.getTimestamp();
+            if (souLider || marcaAplicada.get() >= tsCliente) {
+                long inicio = System.nanoTime();
+                responder(msg, varrer(canal, msg));
+                latenciaScan.registrarDesde(inicio);
+                return;
+            }
+            scansEstacionados.increment();
+            responder(msg, new Mensagem("WAIT_FOR_RESPONSE", null, null, 0, null, 0));
+            Espera espera = new Espera(canal, msg.getId(), 1, false, atendido ->
+                    atendido ? varrer(canal, msg) : new Mensagem("SCAN_TIMEOUT", null, null, 0, null, 0));
+            esperasMarca.add(new EsperaMarca(tsCliente, espera));
+            espera.prazo = prazosGet.schedule(() -> expirar(espera), ESPERA_GET_MS, TimeUnit.MILLISECONDS);
+            if (espera.concluido.get()) {
+                espera.prazo.cancel(false);
+            }
+            // A marca pode ter subido entre a comparacao e o registro
+            liberarEsperasMarca();
+        }
+
+        /*
+         * GET atrasado (single-flight): com a chave quente, muitos GETs esperam a mesma
+         * versao ao mesmo tempo. Se ja existe espera de GET para a mesma key e timestamp,
+         * este GET so se junta a ela: uma entrada em pendentes, uma leitura do banco e uma
+         * resposta montada na notificacao, enviada a cada requisicao com o seu id.
+         * Quem se junta herda o prazo da primeira. Dois GETs identicos chegando juntos
+         * podem ainda criar duas esperas (nao coalescidos, mas corretos).
+         */
+        private void estacionarGet(Mensagem msg, String key, long tsCliente) {
+            boolean[] juntou = {false};
+            getsPendentes.computeIfPresent(key, (k, lista) -> {
+                for (GetPendente pendente : lista) {
+                    if (pendente.tsCliente == tsCliente && pendente.espera.compartilhada &&
+                            pendente.espera.juntar(canal, msg.getId())) {
+                        juntou[0] = true;
+                        break;
+                    }
+                }
+                return lista;
+            });
+            if (juntou[0]) {
+                getsCoalescidos.increment();
+                return;
+            }
+            estacionar(msg, Collections.singletonMap(key, tsCliente), true, atendido ->
+                    respostaGet(atendido ? "GET_OK" : "GET_TIMEOUT", key, banco.obter(key)));
+        }
+
+        /*
+         * Coloca a requisicao em pendentes (uma entrada por chave atrasada) e confere
+         * o banco de novo: se a replicacao chegou entre a leitura e o registro,
+         * notifica na hora (sem perder o aviso)
+         */
+        private void estacionar(Mensagem msg, Map<String, Long> atrasadas, boolean compartilhada,
+                                Function<Boolean, Mensagem> resposta) {
+            Espera espera = new Espera(canal, msg.getId(), atrasadas.size(), compartilhada, resposta);
+            for (Map.Entry<String, Long> atrasada : atrasadas.entrySet()) {
+                GetPendente pendente = new GetPendente(atrasada.getKey(), atrasada.getValue(), espera);
+                espera.pendentes.add(pendente);
+                getsPendentes.compute(atrasada.getKey(), (k, lista) -> {
+                    List<GetPendente> novaLista = lista != null ? lista : new ArrayList<>();
+                    novaLista.add(pendente);
+                    return novaLista;
+                });
+            }
+            espera.prazo = prazosGet.schedule(() -> expirar(espera), ESPERA_GET_MS, TimeUnit.MILLISECONDS);
+            if (espera.concluido.get()) {
+                // Atendido antes do prazo ser agendado
+                espera.prazo.cancel(false);
+            }
+            for (Map.Entry<String, Long> atrasada : atrasadas.entrySet()) {
+                DadoKV dado = banco.obter(atrasada.getKey());
+                if (dado != null && dado.timestamp >= atrasada.getValue()) {
+                    notificarPendentes(atrasada.getKey(), dado.timestamp);
+                }
+            }
+        }
+
+        /*
+         * Catch-up de um seguidor (lider):
+         * - SYNC (timestamp = marca do seguidor, ou value = seq para continuar):
+         *   SYNC_OK com os lotes do historico desde a marca, em pedacos de kv.sync.lote
+         *   escritas (value = seq do proximo pedaco, null no ultimo), ou SYNC_ARVORE
+         *   se o historico ja nao cobre a marca
+         * - ARVORE (value = hashes dos nos do seguidor): ARVORE_OK com as folhas dos nos
+         *   diferentes ("no:folha,folha,...;...") e timestamp = marca do lider antes da leitura
+         * - BALDES (value = folhas diferentes, key = fatia "i/n" opcional): BALDES_OK com as
+         *   chaves dessas folhas (so as da fatia i de n, ver ArvoreMerkle.fatia), ou
+         *   BALDES_DIVIDIR se passam de kv.sync.lote escritas ou kv.sync.loteBytes
+         */
+        private void tratarSincronizacao(Mensagem msg) {
+            Mensagem resposta;
+            switch (msg.getTipo()) {
+                case "SYNC": {
+                    LogReplicacao.Trecho trecho = msg.getValue() == null
+                            ? logReplicacao.desde(msg.getTimestamp(), LOTE_SYNC, LOTE_SYNC_BYTES)
+                            : logReplicacao.continuar(Long.parseLong(msg.getValue()), LOTE_SYNC, LOTE_SYNC_BYTES);
+                    if (trecho == null) {
+                        resposta = new Mensagem("SYNC_ARVORE", null, null, 0, null, 0);
+                    } else {
+                        resposta = new Mensagem("SYNC_OK", null,
+                                trecho.proximaSeq < 0 ? null : String.valueOf(trecho.proximaSeq), 0, null, 0);
+                        resposta.setItens(trecho.itens);
+                    }
+                    break;
+                }
+                case "ARVORE": {
+                    long marca = marcaReplicada.get();
+                    ArvoreMerkle arvore = ArvoreMerkle.de(banco);
+                    long[] nosSeguidor = ArvoreMerkle.hashes(msg.getValue());
+                    StringBuilder diferentes = new StringBuilder();
+                    for (int no = 0; no < ArvoreMerkle.NOS; no++) {
+                        if (arvore.no(no) != nosSeguidor[no]) {
+                            diferentes.append(diferentes.length() > 0 ? ";" : "").append(no).append(':')
+                                    .append(ArvoreMerkle.texto(arvore.folhasDoNo(no)));
+                        }
+                    }
+                    resposta = new Mensagem("ARVORE_OK", null, diferentes.length() > 0 ? diferentes.toString() : null,
+                            marca, null, 0);
+                    break;
+                }
+                default: {
+                    Set<Integer> baldes = new HashSet<>();
+                    for (String balde : msg.getValue().split(",")) {
+                        baldes.add(Integer.parseInt(balde));
+                    }
+                    int[] fatia = {0, 1};
+                    if (msg.getKey() != null) {
+                        String[] partes = msg.getKey().split("/");
+                        fatia[0] = Integer.parseInt(partes[0]);
+                        fatia[1] = Integer.parseInt(partes[1]);
+                    }
+                    List<Mensagem> itens = new ArrayList<>();
+                    long[] bytes = {0};
+                    banco.paraCada((key, dado) -> {
+                        if (baldes.contains(ArvoreMerkle.balde(key)) && ArvoreMerkle.fatia(key, fatia[1]) == fatia[0]) {
+                            Mensagem item = new Mensagem(null, key, dado.valor, dado.timestamp, null, 0);
+                            item.setExpira(dado.expira);
+                            itens.add(item);
+                            bytes[0] += LogReplicacao.bytes(item);
+                        }
+                    });
+                    // Uma chave sozinha vai mesmo grande (nao ha como dividir mais)
+                    if (itens.size() > 1 && fatia[1] < MAX_FATIAS && (itens.size() > LOTE_SYNC || bytes[0] > LOTE_SYNC_BYTES)) {
+                        resposta = new Mensagem("BALDES_DIVIDIR", null, null, 0, null, 0);
+                    } else {
+                        resposta = new Mensagem("BALDES_OK", null, null, 0, null, 0);
+                        resposta.setItens(itens);
+                    }
+                }
+            }
+            responder(msg, resposta);
+        }
+
+        /*
+         * HEARTBEAT do lider (mandato, membros do grupo em value, marca em hwm,
+         * relogio do lider em timestamp, para a expiracao de TTL no seguidor).
+         * Mandato igual ou maior: segue esse lider e adia a propria candidatura;
+         * um lider que recebe HEARTBEAT de mandato maior deixa a lideranca.
+         * Mandato menor (lider deposto): responde com o mandato atual para ele saber.
+         */
+        private void tratarHEARTBEAT(Mensagem msg) {
+            synchronized (eleicao) {
+                if (msg.getMandato() >= mandato && msg.getLider() != null) {
+                    if (msg.getMandato() > mandato) {
+                        mandato = msg.getMandato();
+                        votoEm = null;
+                    }
+                    InetSocketAddress lider = AnelHash.endereco(msg.getLider());
+                    if (!lider.equals(meuEndereco)) {
+                        seguir(lider);
+                        if (msg.getValue() != null && anel == null) {
+                            membrosGrupo = membros(msg.getValue());
+                        }
+                        if (msg.getTimestamp() != 0) {
+                            desvioRelogioLider = msg.getTimestamp() - System.currentTimeMillis();
+                        }
+                        marcaLider = msg.getHwm();
+                        ultimoSinalLider = System.nanoTime();
+                    }
+                }
+                Mensagem resposta = new Mensagem("HEARTBEAT_OK", null, null, 0, null, 0);
+                resposta.setMandato(mandato);
+                resposta.setLider(enderecoLider());
+                responder(msg, resposta);
+            }
+        }
+
+        /*
+         * Pedido de voto de um candidato (mandato, marca aplicada em hwm, endereco em lider).
+         * Nega enquanto houver lider vivo (evita que um seguidor isolado derrube um
+         * lider saudavel) e para candidatos com menos dados que este servidor: assim
+         * o eleito e sempre um dos seguidores com o maior timestamp aplicado.
+         * Um voto por mandato.
+         */
+        private void tratarVOTO(Mensagem msg) {
+            boolean concedido = false;
+            synchronized (eleicao) {
+                boolean liderVivo = souLider ||
+                        System.nanoTime() - ultimoSinalLider < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_ELEICAO_MS);
+                if (!liderVivo && msg.getMandato() > mandato) {
+                    mandato = msg.getMandato();
+                    votoEm = null;
+                }
+                InetSocketAddress candidato = AnelHash.endereco(msg.getLider());
+                if (!liderVivo && msg.getMandato() == mandato &&
+                        (votoEm == null || votoEm.equals(candidato)) && msg.getHwm() >= marcaAplicada.get()) {
+                    votoEm = candidato;
+                    concedido = true;
+                    // Votou: espera o candidato antes de se candidatar tambem
+                    reiniciarPrazoEleicao();
+                }
+                Mensagem resposta = new Mensagem(concedido ? "VOTO_OK" : "VOTO_NEGADO", null, null, 0, null, 0);
+                resposta.setMandato(mandato);
+                responder(msg, resposta);
+            }
+            System.out.println((concedido ? "Voto concedido a " : "Voto negado a ") + msg.getLider() +
+                    " (mandato " + msg.getMandato() + ")");
+        }
+
+        /*
+         * SECAO 5d: REPLICATION — replica valor recebido do lider (TCP)
+         * Um REPLICATION pode trazer um lote de escritas (itens): o lote e aplicado
+         * atomicamente no hash local, com um unico REPLICATION_OK
+         */
+        private void tratarREPLICATION(Mensagem msg) {
+            synchronized (eleicao) {
+                if (msg.getMandato() < mandato) {
+                    // Lote de um lider deposto (ex.: voltou de uma particao): recusa
+                    Mensagem recusa = new Mensagem("REPLICATION_FAIL", msg.getKey(), null, msg.getTimestamp(), null, 0);
+                    recusa.setMandato(mandato);
+                    responder(msg, recusa);
+                    return;
+                }
+                ultimoSinalLider = System.nanoTime();
+            }
+            if (msg.getItens() != null && msg.getTimestamp() != 0) {
+                desvioRelogioLider = msg.getTimestamp() - System.currentTimeMillis();
+            }
+            List<Mensagem> escritas = msg.getItens() != null ? msg.getItens() : Collections.singletonList(msg);
+            Map<String, DadoKV> lote = montarLote(escritas);
+            anotarLapides(lote);
+            iniciarEscrita();
+            try {
+                if (persistencia != null) {
+                    try {
+                        persistencia.registrar(lote);
+                    } catch (IOException e) {
+                        // Sem ACK: o lider nao conta este seguidor no quorum
+                        System.out.println("Falha ao gravar WAL: " + e.getMessage());
+                        responder(msg, new Mensagem("REPLICATION_FAIL", msg.getKey(), null, msg.getTimestamp(), null, 0));
+                        return;
+                    }
+                }
+                // Escritas com timestamp mais velho que o local sao ignoradas pelo armazenamento
+                banco.gravarLote(lote);
+            } finally {
+                terminarEscrita();
+            }
+            long maiorTimestamp = 0;
+            for (DadoKV dado : lote.values()) {
+                maiorTimestamp = Math.max(maiorTimestamp, dado.timestamp);
+            }
+            long posicao = Math.max(msg.getHwm(), maiorTimestamp);
+            marcaReplicada.accumulateAndGet(posicao, Math::max);
+            synchronized (sincronia) {
+                if (!sincronizando && msg.getHwm() > marcaAplicada.get()) {
+                    // Algum lote anterior nao chegou aqui (seguidor caiu, ficou fora do quorum,
+                    // WAL falhou...): aplica este, mas a marca so sobe depois do catch-up
+                    System.out.println("Lacuna na replicacao: marca local " + marcaAplicada.get() +
+                            ", lote anterior do lider " + msg.getHwm());
+                    logReplicacao.iniciar(msg.getHwm() + 1);
+                    assinaturas.avisar();
+                    iniciarSincronizacao();
+                }
+                if (sincronizando) {
+                    marcaDuranteSync = Math.max(marcaDuranteSync, maiorTimestamp);
+                } else {
+                    marcaAplicada.accumulateAndGet(maiorTimestamp, Math::max);
+                }
+            }
+            logReplicacao.registrar(escritas, posicao);
+            assinaturas.avisar();
+            for (Mensagem escrita : escritas) {
+                LogAssincrono.registrar(() -> ("REMOCAO".equals(escrita.getTipo()) ? "REPLICATION REMOCAO key:" : "REPLICATION key:") +
+                        escrita.getKey() + " value:" + escrita.getValue() + " ts:" + escrita.getTimestamp() + ".");
+            }
+            Mensagem ack = new Mensagem("REPLICATION_OK", msg.getKey(), null, msg.getTimestamp(), null, 0);
+            responder(msg, ack);
+            // Remocoes tambem: um GET esperando a versao removida responde NULL
+            for (Mensagem escrita : escritas) {
+                notificarPendentes(escrita.getKey(), escrita.getTimestamp());
+            }
+            liberarEsperasMarca();
+        }
+    }
+
+    /*
+     * Rebalanceamento (lider): move para o grupo dono as chaves do banco que nao
+     * pertencem mais a este grupo, em lotes de MIGRACAO. Cada lote so sai do banco
+     * (e dos seguidores, via REMOCAO replicada) depois do MIGRACAO_OK do destino.
+     * Repete a varredura ate nao sobrar chave de outro grupo; falha de rede
+     * interrompe e a proxima TOPOLOGIA (ou reinicio) retoma.
+     */
+    private static void iniciarMigracao() {
+        Thread thread = new Thread(Servidor::migrar, "migracao");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void migrar() {
+        synchronized (migracao) {
+            while (true) {
+                AnelHash atual = anel;
+                Map<AnelHash.Grupo, List<Mensagem>> saindo = new HashMap<>();
+                banco.paraCada((key, dado) -> {
+                    AnelHash.Grupo dono = atual.grupoDe(key);
+                    if (!dono.getMembros().contains(meuEndereco)) {
+                        Mensagem item = new Mensagem(null, key, dado.valor, dado.timestamp, null, 0);
+                        item.setExpira(dado.expira);
+                        saindo.computeIfAbsent(dono, g -> new ArrayList<>()).add(item);
+                    }
+                });
+                if (saindo.isEmpty()) {
+                    anunciarMigracaoConcluida(atual);
+                    return;
+                }
+                for (Map.Entry<AnelHash.Grupo, List<Mensagem>> destino : saindo.entrySet()) {
+                    List<Mensagem> chaves = destino.getValue();
+                    for (int inicio = 0; inicio < chaves.size(); inicio += LOTE_MIGRACAO) {
+                        List<Mensagem> parte = chaves.subList(inicio, Math.min(inicio + LOTE_MIGRACAO, chaves.size()));
+                        Mensagem lote = new Mensagem("MIGRACAO", null, null, 0, null, 0);
+                        lote.setItens(parte);
+                        // Lider inicial primeiro; um seguidor repassa ao lider atual do grupo
+                        String erro = null;
+                        for (InetSocketAddress membro : destino.getKey().getMembros()) {
+                            try {
+                                Mensagem resposta = pool.enviarEsperar(membro, lote, TIMEOUT_MS);
+                                erro = "MIGRACAO_OK".equals(resposta.getTipo()) ? null : resposta.getTipo();
+                                break;
+                            } catch (IOException e) {
+                                erro = e.getMessage();
+                            }
+                        }
+                        if (erro != null) {
+                            System.out.println("Migracao para o grupo " + destino.getKey() + " interrompida: " + erro);
+                            return;
+                        }
+                        removerMigradas(parte);
+                    }
+                    System.out.println("Migradas " + chaves.size() + " chaves para o grupo " + destino.getKey());
+                }
+            }
+        }
+    }
+
+    /*
+     * Avisa todos os servidores da topologia (e a si mesmo) que este grupo nao tem mais
+     * chaves de outro dono: quem ja recebeu o aviso de todos os grupos da topologia
+     * anterior para de consultar o dono anterior. Aviso perdido so mantem a consulta
+     * (custo de uma ida e volta nas chaves ausentes) ate a proxima topologia ou migracao.
+     */
+    private static void anunciarMigracaoConcluida(AnelHash atual) {
+        String grupo = atual.grupoDoMembro(meuEndereco).toString();
+        concluirMigracao(grupo, atual.getDescricao());
+        Mensagem aviso = new Mensagem("MIGRACAO_FIM", grupo, atual.getDescricao(), 0, null, 0);
+        for (AnelHash.Grupo destino : atual.getGrupos()) {
+            for (InetSocketAddress membro : destino.getMembros()) {
+                if (!membro.equals(meuEndereco)) {
+                    pool.enviar(membro, aviso).orTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    // MIGRACAO_FIM de um grupo (topologia = descricao de quando ele terminou)
+    private static void concluirMigracao(String grupo, String topologia) {
+        synchronized (migracoesConcluidas) {
+            AnelHash atual = anel;
+            if (atual != null && atual.getDescricao().equals(topologia)) {
+                migracoesConcluidas.add(grupo);
+                verificarMigracaoConcluida();
+            }
+        }
+    }
+
+    // Com o lock migracoesConcluidas
+    private static void verificarMigracaoConcluida() {
+        AnelHash anterior = anelAnterior;
+        if (anterior == null) {
+            return;
+        }
+        for (AnelHash.Grupo grupo : anterior.getGrupos()) {
+            if (!migracoesConcluidas.contains(grupo.toString())) {
+                return;
+            }
+        }
+        anelAnterior = null;
+        System.out.println("Migracao para a topologia atual concluida em todos os grupos");
+    }
+
+    /*
+     * Tira do banco e dos seguidores as versoes ja entregues ao novo dono
+     * (uma escrita mais nova feita aqui nesse meio tempo fica para a proxima varredura)
+     */
+    private static void removerMigradas(List<Mensagem> migradas) {
+        List<Mensagem> remocoes = new ArrayList<>(migradas.size());
+        for (Mensagem migrada : migradas) {
+            remocoes.add(new Mensagem("REMOCAO", migrada.getKey(), null, migrada.getTimestamp(), null, 0));
+        }
+        iniciarEscrita();
+        try {
+            synchronized (ordemEscritas) {
+                Map<String, DadoKV> lote = montarLote(remocoes);
+                // Sem WAL as chaves ficam aqui; a proxima varredura da migracao tenta de novo
+                if (anexarAoWal(lote)) {
+                    banco.gravarLote(lote);
+                    replicador.submeter(remocoes);
+                }
+            }
+        } finally {
+            terminarEscrita();
+        }
+    }
+
+    /*
+     * Anota como lapides as remocoes de um REPLICATION recebido durante o catch-up,
+     * antes de irem para o WAL e o banco (ver aplicarSincronizadas)
+     */
+    private static void anotarLapides(Map<String, DadoKV> lote) {
+        for (Map.Entry<String, DadoKV> escrita : lote.entrySet()) {
+            if (escrita.getValue().valor == null) {
+                synchronized (lockLapides) {
+                    if (lapides == null) {
+                        return;
+                    }
+                    lapides.merge(escrita.getKey(), escrita.getValue().timestamp, Math::max);
+                }
+            }
+        }
+    }
+
+    /*
+     * Dispara o catch-up do seguidor em segundo plano, se ainda nao estiver rodando
+     * (chamado com o lock sincronia)
+     */
+    private static void iniciarSincronizacao() {
+        if (sincronizando) {
+            return;
+        }
+        sincronizando = true;
+        marcaDuranteSync = 0;
+        synchronized (lockLapides) {
+            lapides = new HashMap<>();
+        }
+        Thread thread = new Thread(Servidor::sincronizar, "sincronizacao");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Catch-up do seguidor: pede ao lider os lotes desde a propria marca (SYNC).
+     * Se o historico do lider ja nao cobre essa marca, compara as arvores de hashes
+     * (ARVORE) e so busca as chaves das folhas diferentes (BALDES); depois continua
+     * pelo historico a partir da marca do lider no momento da comparacao.
+     * No fim a marca sobe e os GETs estacionados nas chaves recebidas sao respondidos.
+     */
+    private static void sincronizar() {
+        long marca = marcaAplicada.get();
+        long alcancada = marca;
+        int recebidas = 0;
+        boolean completo = false;
+        try {
+            String seq = null;
+            while (!souLider) {
+                Mensagem pedido = new Mensagem("SYNC", null, seq, marca, null, 0);
+                Mensagem resposta = pool.enviarEsperar(liderDoGrupo, pedido, TIMEOUT_MS);
+                if ("SYNC_ARVORE".equals(resposta.getTipo())) {
+                    marca = sincronizarArvore();
+                    alcancada = Math.max(alcancada, marca);
+                    seq = null;
+                    continue;
+                }
+                if (!"SYNC_OK".equals(resposta.getTipo())) {
+                    throw new IOException(resposta.getTipo());
+                }
+                alcancada = Math.max(alcancada, aplicarSincronizadas(montarLote(resposta.getItens())));
+                recebidas += resposta.getItens().size();
+                seq = resposta.getValue();
+                if (seq == null) {
+                    completo = true;
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Sincronizacao com o lider interrompida: " + e.getMessage());
+        } finally {
+            synchronized (sincronia) {
+                if (completo) {
+                    // A proxima lacuna (se houver) dispara outra sincronizacao
+                    marcaAplicada.accumulateAndGet(Math.max(alcancada, marcaDuranteSync), Math::max);
+                }
+                sincronizando = false;
+                synchronized (lockLapides) {
+                    lapides = null;
+                }
+            }
+        }
+        if (completo) {
+            System.out.println("Sincronizado com o lider: " + recebidas + " escritas do historico, marca " +
+                    marcaAplicada.get());
+            liberarEsperasMarca();
+        }
+    }
+
+    /*
+     * Compara a arvore local com a do lider e troca o conteudo das folhas diferentes
+     * pelo do lider: chaves do lider entram pela regra de timestamp; chaves locais
+     * que o lider nao tem sao removidas se nao forem mais novas que a marca dele.
+     * Devolve a marca do lider no momento da comparacao.
+     */
+    private static long sincronizarArvore() throws IOException {
+        ArvoreMerkle minha = ArvoreMerkle.de(banco);
+        Mensagem pedido = new Mensagem("ARVORE", null, ArvoreMerkle.texto(minha.nos()), 0, null, 0);
+        Mensagem resposta = pool.enviarEsperar(liderDoGrupo, pedido, TIMEOUT_MS);
+        if (!"ARVORE_OK".equals(resposta.getTipo())) {
+            throw new IOException(resposta.getTipo());
+        }
+        long marcaLider = resposta.getTimestamp();
+        if (resposta.getValue() == null) {
+            System.out.println("Arvore igual a do lider (marca " + marcaLider + ")");
+            return marcaLider;
+        }
+
+        // Folhas diferentes, agrupadas por no (um BALDES por no)
+        List<List<Integer>> porNo = new ArrayList<>();
+        Set<Integer> diferentes = new HashSet<>();
+        for (String no : resposta.getValue().split(";")) {
+            int separador = no.indexOf(':');
+            int indice = Integer.parseInt(no.substring(0, separador));
+            long[] folhasLider = ArvoreMerkle.hashes(no.substring(separador + 1));
+            List<Integer> baldes = new ArrayList<>();
+            for (int i = 0; i < folhasLider.length; i++) {
+                int balde = indice * ArvoreMerkle.FOLHAS_POR_NO + i;
+                if (folhasLider[i] != minha.folha(balde)) {
+                    baldes.add(balde);
+                }
+            }
+            if (!baldes.isEmpty()) {
+                porNo.add(baldes);
+                diferentes.addAll(baldes);
+            }
+        }
+        Map<Integer, List<String>> locais = new HashMap<>();
+        banco.paraCada((key, dado) -> {
+            int balde = ArvoreMerkle.balde(key);
+            if (diferentes.contains(balde)) {
+                locais.computeIfAbsent(balde, b -> new ArrayList<>()).add(key);
+            }
+        });
+
+        int transferidas = 0;
+        int pedidos = 0;
+        for (List<Integer> baldes : porNo) {
+            StringBuilder texto = new StringBuilder();
+            for (int balde : baldes) {
+                texto.append(texto.length() > 0 ? "," : "").append(balde);
+            }
+            // Fatias {i, n} ainda a pedir; BALDES_DIVIDIR troca a fatia pelas suas duas metades
+            Deque<int[]> fatias = new ArrayDeque<>();
+            fatias.add(new int[] {0, 1});
+            Set<String> doLider = new HashSet<>();
+            while (!fatias.isEmpty()) {
+                int[] fatia = fatias.poll();
+                Mensagem conteudo = pool.enviarEsperar(liderDoGrupo, new Mensagem("BALDES",
+                        fatia[1] == 1 ? null : fatia[0] + "/" + fatia[1], texto.toString(), 0, null, 0), TIMEOUT_MS);
+                pedidos++;
+                if ("BALDES_DIVIDIR".equals(conteudo.getTipo())) {
+                    fatias.add(new int[] {fatia[0], fatia[1] * 2});
+                    fatias.add(new int[] {fatia[0] + fatia[1], fatia[1] * 2});
+                    continue;
+                }
+                if (!"BALDES_OK".equals(conteudo.getTipo())) {
+                    throw new IOException(conteudo.getTipo());
+                }
+                Map<String, DadoKV> lote = new HashMap<>();
+                for (Mensagem item : conteudo.getItens()) {
+                    lote.put(item.getKey(), new DadoKV(item.getValue(), item.getTimestamp(), item.getExpira()));
+                    doLider.add(item.getKey());
+                }
+                aplicarSincronizadas(lote);
+                transferidas += conteudo.getItens().size();
+            }
+            Map<String, DadoKV> remocoes = new HashMap<>();
+            for (int balde : baldes) {
+                for (String key : locais.getOrDefault(balde, Collections.emptyList())) {
+                    if (!doLider.contains(key)) {
+                        remocoes.put(key, new DadoKV(null, marcaLider));
+                    }
+                }
+            }
+            if (!remocoes.isEmpty()) {
+                aplicarSincronizadas(remocoes);
+            }
+        }
+        System.out.println("Arvore comparada com o lider: " + diferentes.size() + " folhas diferentes, " +
+                transferidas + " chaves recebidas em " + pedidos + " pedidos BALDES");
+        return marcaLider;
+    }
+
+    /*
+     * Grava (WAL + banco) o que veio do lider; devolve o maior timestamp gravado.
+     * Versoes cobertas por uma lapide (removidas ao vivo durante o catch-up) ficam de fora.
+     */
+    private static long aplicarSincronizadas(Map<String, DadoKV> lote) throws IOException {
+        synchronized (lockLapides) {
+            if (lapides != null && !lapides.isEmpty()) {
+                lote.entrySet().removeIf(escrita -> {
+                    Long removida = lapides.get(escrita.getKey());
+                    return removida != null && escrita.getValue().timestamp <= removida;
+                });
+            }
+            // Sob o lock: uma remocao ao vivo anotada depois vai para o WAL depois desta copia
+            iniciarEscrita();
+            try {
+                if (persistencia != null) {
+                    persistencia.registrar(lote);
+                }
+                banco.gravarLote(lote);
+            } finally {
+                terminarEscrita();
+            }
+        }
+        long maiorTimestamp = 0;
+        for (Map.Entry<String, DadoKV> escrita : lote.entrySet()) {
+            if (escrita.getValue().valor != null) {
+                maiorTimestamp = Math.max(maiorTimestamp, escrita.getValue().timestamp);
+                notificarPendentes(escrita.getKey(), escrita.getValue().timestamp);
+            }
+        }
+        return maiorTimestamp;
+    }
+
+    /*
+     * Medidores lidos so no STATS/JMX: profundidade dos GETs estacionados,
+     * porcentagem de GETs que esperaram, banco, fila de expiracao e papel no grupo
+     */
+    private static void registrarMedidores() {
+        Metricas.medidor("get.pendentes", () -> {
+            long pendentes = 0;
+            for (List<GetPendente> lista : getsPendentes.values()) {
+                pendentes += lista.size();
+            }
+            return pendentes;
+        });
+        Metricas.medidor("get.chavesPendentes", getsPendentes::size);
+        Metricas.medidor("get.esperaPct", () -> {
+            long espera = getsEstacionados.sum();
+            long total = espera + getsImediatos.sum();
+            return total == 0 ? 0 : espera * 100 / total;
+        });
+        Metricas.medidor("banco.chaves", banco::tamanho);
+        Metricas.medidor("banco.bytesEstimados", banco::bytesEstimados);
+        Metricas.medidor("expiracao.fila", expiracoes::size);
+        Metricas.medidor("replicacao.marcaAplicada", marcaAplicada::get);
+        Metricas.medidor("replicacao.atrasoMs", () -> souLider ? 0 : atrasoMs(marcaLider, marcaAplicada.get()));
+        Metricas.medidor("grupo.lider", () -> souLider ? 1 : 0);
+        Metricas.medidor("grupo.mandato", Servidor::mandatoAtual);
+        Metricas.medidor("lease.restanteMs", () -> souLider ? Math.max(0, (fimLease - System.nanoTime()) / 1000000) : 0);
+    }
+
+    // Distancia em ms (parte fisica do timestamp) entre duas marcas
+    private static long atrasoMs(long marca, long alcancada) {
+        return Math.max(0, RelogioHibrido.fisico(marca) - RelogioHibrido.fisico(alcancada));
+    }
+
+    /*
+     * Marca (hwm) confirmada por um seguidor no REPLICATION_OK ou HEARTBEAT_OK;
+     * o primeiro aviso de cada seguidor cria o medidor do atraso dele
+     */
+    private static void confirmouMarca(InetSocketAddress seguidor, long marca) {
+        marcasSeguidores.computeIfAbsent(seguidor, s -> {
+            AtomicLong confirmada = new AtomicLong();
+            Metricas.medidor("replicacao.atrasoMs." + texto(s),
+                    () -> souLider ? atrasoMs(marcaAplicada.get(), confirmada.get()) : 0);
+            return confirmada;
+        }).accumulateAndGet(marca, Math::max);
+    }
+
+    /*
+     * Tique do relogio de eleicao: o lider manda heartbeats; o seguidor sem
+     * sinal do lider alem do prazo se candidata
+     */
+    private static void pulsar() {
+        try {
+            if (souLider) {
+                enviarHeartbeats();
+                // Leituras LINEARIZABLE sem lease tambem esgotam o prazo sem resposta de seguidores
+                avisarLeiturasLineares();
+            } else if (System.nanoTime() - ultimoSinalLider > prazoEleicaoNanos && membrosGrupo.size() > 1) {
+                iniciarEleicao();
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Erro no heartbeat: " + e.getMessage());
+        }
+    }
+
+    /*
+     * HEARTBEAT para todos os seguidores. Quem nao responde sai dos seguidores
+     * ativos (deixa de contar no quorum) e volta quando responder de novo.
+     */
+    private static void enviarHeartbeats() {
+        Mensagem heartbeat = new Mensagem("HEARTBEAT", null, null, 0, null, 0);
+        StringBuilder membros = new StringBuilder();
+        for (InetSocketAddress membro : membrosGrupo) {
+            membros.append(membros.length() > 0 ? "," : "").append(texto(membro));
+        }
+        heartbeat.setValue(membros.toString());
+        heartbeat.setMandato(mandatoAtual());
+        heartbeat.setLider(texto(meuEndereco));
+        heartbeat.setHwm(marcaAplicada.get());
+        heartbeat.setTimestamp(System.currentTimeMillis());
+        long envio = System.nanoTime();
+        for (InetSocketAddress seguidor : servidoresSeguidores) {
+            // Conectar a um seguidor morto pode demorar: fora da thread do relogio
+            trabalhadores.execute(() -> pool.enviar(seguidor, heartbeat)
+                .orTimeout(TIMEOUT_ELEICAO_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((resposta, erro) -> {
+                    if (erro != null) {
+                        if (seguidoresAtivos.remove(seguidor)) {
+                            System.out.println("Seguidor " + seguidor + " sem resposta; fora do quorum");
+                        }
+                    } else if (resposta.getMandato() > heartbeat.getMandato()) {
+                        deixarLideranca(resposta.getMandato(), resposta.getLider());
+                    } else {
+                        confirmouMarca(seguidor, resposta.getHwm());
+                        if (resposta.getMandato() == heartbeat.getMandato()) {
+                            renovarLease(seguidor, envio, heartbeat.getMandato());
+                        }
+                        if (souLider && seguidoresAtivos.add(seguidor)) {
+                            System.out.println("Seguidor " + seguidor + " ativo");
+                        }
+                    }
+                }));
+        }
+    }
+
+    /*
+     * Candidatura: novo mandato, voto proprio e VOTO para os demais membros.
+     * Maioria do grupo (contando o proprio voto) torna este servidor lider.
+     */
+    private static void iniciarEleicao() {
+        long termo;
+        synchronized (eleicao) {
+            mandato++;
+            termo = mandato;
+            votoEm = meuEndereco;
+            ultimoSinalLider = System.nanoTime();
+            reiniciarPrazoEleicao();
+        }
+        List<InetSocketAddress> membros = membrosGrupo;
+        int maioria = membros.size() / 2 + 1;
+        System.out.println("Lider sem sinal: candidato no mandato " + termo + " (marca " + marcaAplicada.get() + ")");
+
+        Mensagem voto = new Mensagem("VOTO", null, null, 0, null, 0);
+        voto.setMandato(termo);
+        voto.setHwm(marcaAplicada.get());
+        voto.setLider(texto(meuEndereco));
+        Set<InetSocketAddress> eleitores = ConcurrentHashMap.newKeySet();
+        eleitores.add(meuEndereco);
+        for (InetSocketAddress membro : membros) {
+            if (membro.equals(meuEndereco)) {
+                continue;
+            }
+            trabalhadores.execute(() -> pool.enviar(membro, voto)
+                .orTimeout(TIMEOUT_ELEICAO_MS, TimeUnit.MILLISECONDS)
+                .thenAccept(resposta -> {
+                    if ("VOTO_OK".equals(resposta.getTipo())) {
+                        eleitores.add(membro);
+                        if (eleitores.size() >= maioria) {
+                            assumirLideranca(termo, membros, eleitores);
+                        }
+                    } else if (resposta.getMandato() > termo) {
+                        synchronized (eleicao) {
+                            if (resposta.getMandato() > mandato) {
+                                mandato = resposta.getMandato();
+                                votoEm = null;
+                            }
+                        }
+                    }
+                }));
+        }
+        if (eleitores.size() >= maioria) {
+            assumirLideranca(termo, membros, eleitores);
+        }
+    }
+
+    /*
+     * Eleito: passa a aceitar escritas e replicar para os outros membros.
+     * Os que votaram ja estao vivos (entram no quorum); os demais entram
+     * quando responderem ao heartbeat. Os timestamps continuam depois da
+     * marca aplicada, entao nenhuma escrita nova perde para uma antiga.
+     */
+    private static void assumirLideranca(long termo, List<InetSocketAddress> membros, Set<InetSocketAddress> eleitores) {
+        synchronized (eleicao) {
+            if (souLider || mandato != termo) {
+                return;
+            }
+            List<InetSocketAddress> seguidores = new ArrayList<>(membros);
+            seguidores.remove(meuEndereco);
+            seguidoresAtivos.clear();
+            for (InetSocketAddress eleitor : eleitores) {
+                if (!eleitor.equals(meuEndereco)) {
+                    seguidoresAtivos.add(eleitor);
+                }
+            }
+            servidoresSeguidores = Collections.unmodifiableList(seguidores);
+            marcaReplicada.accumulateAndGet(marcaAplicada.get(), Math::max);
+            // O que o eleito ja aplicou conta como confirmado; o lease vem dos heartbeats
+            marcaConfirmada.accumulateAndGet(marcaAplicada.get(), Math::max);
+            heartbeatsConfirmados.clear();
+            fimLease = System.nanoTime();
+            liderDoGrupo = meuEndereco;
+            souLider = true;
+        }
+        System.out.println("Eleito lider do grupo no mandato " + termo + " com " + eleitores.size() +
+                " votos (marca " + marcaAplicada.get() + ")");
+        enviarHeartbeats();
+        reconstruirExpiracoes();
+        liberarEsperasMarca();
+        if (anel != null) {
+            iniciarMigracao();
+        }
+    }
+
+    /*
+     * Existe mandato maior: este servidor deixa de ser lider (ou de seguir o antigo)
+     */
+    private static void deixarLideranca(long novoMandato, String novoLider) {
+        synchronized (eleicao) {
+            if (novoMandato > mandato) {
+                mandato = novoMandato;
+                votoEm = null;
+            }
+            if (novoLider != null && !novoLider.equals(texto(meuEndereco))) {
+                seguir(AnelHash.endereco(novoLider));
+            } else if (souLider) {
+                // Lider novo ainda desconhecido: encaminha a outro membro ate o HEARTBEAT dele chegar
+                for (InetSocketAddress membro : membrosGrupo) {
+                    if (!membro.equals(meuEndereco)) {
+                        seguir(membro);
+                        break;
+                    }
+                }
+            }
+            ultimoSinalLider = System.nanoTime();
+        }
+    }
+
+    // Passa a seguir o lider dado (chamado em eleicao)
+    private static void seguir(InetSocketAddress lider) {
+        if (souLider) {
+            System.out.println("Deixando a lideranca no mandato " + mandato);
+            souLider = false;
+            servidoresSeguidores = Collections.emptyList();
+            seguidoresAtivos.clear();
+            expiracoes.clear();
+            heartbeatsConfirmados.clear();
+            fimLease = System.nanoTime();
+            avisarLeiturasLineares();
+        } else if (!lider.equals(liderDoGrupo)) {
+            System.out.println("Novo lider " + lider + " no mandato " + mandato);
+        }
+        liderDoGrupo = lider;
+    }
+
+    /*
+     * HEARTBEAT enviado em envio (nanoTime) confirmado por seguidor no mandato termo:
+     * o lease vai ate o envio mais recente que a maioria do grupo (com o lider) ja
+     * confirmou, mais LEASE_NANOS
+     */
+    private static void renovarLease(InetSocketAddress seguidor, long envio, long termo) {
+        synchronized (eleicao) {
+            if (!souLider || mandato != termo) {
+                return;
+            }
+            heartbeatsConfirmados.merge(seguidor, envio, (atual, novo) -> novo - atual > 0 ? novo : atual);
+            int necessarios = membrosGrupo.size() / 2;
+            if (necessarios == 0 || heartbeatsConfirmados.size() < necessarios) {
+                return;
+            }
+            List<Long> envios = new ArrayList<>(heartbeatsConfirmados.values());
+            envios.sort((a, b) -> Long.signum(b - a));
+            long fim = envios.get(necessarios - 1) + LEASE_NANOS;
+            if (fim - fimLease > 0) {
+                fimLease = fim;
+            }
+        }
+        avisarLeiturasLineares();
+    }
+
+    // Lider com lease valido; sem eleicoes (kv.failover=false, grupo de um) o lider e sempre o mesmo
+    private static boolean leaseValido() {
+        return souLider && (!FAILOVER || membrosGrupo.size() <= 1 || fimLease - System.nanoTime() > 0);
+    }
+
+    /*
+     * Lease renovado, marca confirmada subiu ou lideranca perdida: tenta de novo as
+     * leituras LINEARIZABLE em espera, na thread dos prazos
+     */
+    private static void avisarLeiturasLineares() {
+        avisosLineares.incrementAndGet();
+        if (!leiturasLineares.isEmpty()) {
+            prazosGet.execute(Servidor::tentarLeiturasLineares);
+        }
+    }
+
+    // So as que ja estavam na fila: quem volta para a fila espera o proximo aviso
+    private static void tentarLeiturasLineares() {
+        for (int n = leiturasLineares.size(); n > 0; n--) {
+            Runnable leitura = leiturasLineares.poll();
+            if (leitura == null) {
+                return;
+            }
+            leitura.run();
+        }
+    }
+
+    private static long mandatoAtual() {
+        synchronized (eleicao) {
+            return mandato;
+        }
+    }
+
+    // Prazo sorteado entre timeout e 2x timeout, para os seguidores nao se candidatarem juntos
+    private static void reiniciarPrazoEleicao() {
+        prazoEleicaoNanos = TimeUnit.MILLISECONDS.toNanos(
+                TIMEOUT_ELEICAO_MS + ThreadLocalRandom.current().nextLong(TIMEOUT_ELEICAO_MS + 1));
+    }
+
+    // "ip:porta,ip:porta" -> enderecos
+    private static List<InetSocketAddress> membros(String texto) {
+        List<InetSocketAddress> membros = new ArrayList<>();
+        for (String membro : texto.split(",")) {
+            membros.add(AnelHash.endereco(membro.trim()));
+        }
+        return Collections.unmodifiableList(membros);
+    }
+
+    // Endereco do lider ("ip:porta"), enviado nas confirmacoes de escrita
+    private static String enderecoLider() {
+        return texto(liderDoGrupo);
+    }
+
+    private static String texto(InetSocketAddress endereco) {
+        return endereco.getHostString() + ":" + endereco.getPort();
+    }
+
+    // Instante de expiracao (ms) de uma escrita do lider com timestamp ts (0 = sem TTL)
+    private static long expiracao(Mensagem msg, long ts) {
+        return msg.getTtl() > 0 ? RelogioHibrido.fisico(ts) + msg.getTtl() : 0;
+    }
+
+    // Agora no relogio do lider; no seguidor, adiantado pela margem de TTL
+    private static long agoraLider() {
+        long agora = System.currentTimeMillis();
+        return souLider ? agora : agora + desvioRelogioLider + MARGEM_TTL_MS;
+    }
+
+    // O dado, ou null se ja venceu (leituras tratam a chave vencida como ausente)
+    private static DadoKV vivo(DadoKV dado) {
+        return dado != null && dado.expirado(agoraLider()) ? null : dado;
+    }
+
+    // Lider: poe a escrita na fila de expiracoes (chamado em ordemEscritas)
+    private static void agendarExpiracao(String key, long timestamp, long expira) {
+        if (expira != 0) {
+            expiracoes.add(new Expiracao(key, timestamp, expira));
+        }
+    }
+
+    // Novo lider (ou lider reiniciando): a fila sai do banco, que tem o expira de cada chave
+    private static void reconstruirExpiracoes() {
+        expiracoes.clear();
+        banco.paraCada((key, dado) -> {
+            if (dado.expira != 0) {
+                expiracoes.add(new Expiracao(key, dado.timestamp, dado.expira));
+            }
+        });
+        if (!expiracoes.isEmpty()) {
+            System.out.println(expiracoes.size() + " chaves com TTL na fila de expiracao");
+        }
+    }
+
+    /*
+     * Tique do lider: remove as chaves vencidas e, acima de kv.memoria.maxMb,
+     * despeja chaves por amostragem. Tudo sai como REMOCAO replicada: seguidores
+     * apagam o mesmo que o lider. A remocao e uma escrita como as outras: sob
+     * ordemEscritas, so se a versao escolhida ainda for a atual (uma escrita mais
+     * nova nesse meio tempo fica), e com timestamp novo, que sobe a marca dos
+     * seguidores (um GET com o ts da versao removida responde NULL sem esperar).
+     * O despejo usa os acessos vistos pelo lider (os seguidores so repetem as remocoes).
+     */
+    private static void expirarEDespejar() {
+        if (!souLider) {
+            return;
+        }
+        try {
+            long agora = System.currentTimeMillis();
+            // key -> timestamp da versao a remover
+            Map<String, Long> remocoes = new LinkedHashMap<>();
+            Expiracao proxima;
+            while (remocoes.size() < LOTE_EXPIRACAO && (proxima = expiracoes.peek()) != null && proxima.expira <= agora) {
+                expiracoes.poll();
+                remocoes.put(proxima.key, proxima.timestamp);
+            }
+            int vencidas = remocoes.size();
+            if (LIMITE_MEMORIA > 0) {
+                long excesso = banco.bytesEstimados() - LIMITE_MEMORIA;
+                List<Map.Entry<String, DadoKV>> amostra = new ArrayList<>(AMOSTRAS_DESPEJO);
+                for (int rodada = 0; excesso > 0 && rodada < LOTE_EXPIRACAO && remocoes.size() < LOTE_EXPIRACAO; rodada++) {
+                    amostra.clear();
+                    banco.amostrar(AMOSTRAS_DESPEJO, (key, dado) -> amostra.add(new AbstractMap.SimpleEntry<>(key, dado)));
+                    Map.Entry<String, DadoKV> vitima = null;
+                    long maior = -1;
+                    for (Map.Entry<String, DadoKV> candidata : amostra) {
+                        DadoKV dado = candidata.getValue();
+                        // Vencida ainda nao removida e a melhor candidata
+                        long prioridade = dado.expirado(agora) ? Long.MAX_VALUE : PoliticaDespejo.ATUAL.prioridade(dado.acesso);
+                        if (prioridade > maior && !remocoes.containsKey(candidata.getKey())) {
+                            vitima = candidata;
+                            maior = prioridade;
+                        }
+                    }
+                    if (vitima != null) {
+                        remocoes.put(vitima.getKey(), vitima.getValue().timestamp);
+                        excesso -= Armazenamento.bytesEstimados(vitima.getKey(), vitima.getValue());
+                    }
+                }
+            }
+            if (remocoes.isEmpty()) {
+                return;
+            }
+            List<Mensagem> lote = new ArrayList<>(remocoes.size());
+            iniciarEscrita();
+            try {
+                synchronized (ordemEscritas) {
+                    long novoTimestamp = relogio.proximo(marcaAplicada.get());
+                    Map<String, DadoKV> atuais = banco.obterVarios(remocoes.keySet());
+                    for (Map.Entry<String, Long> remocao : remocoes.entrySet()) {
+                        DadoKV atual = atuais.get(remocao.getKey());
+                        // Sobrescrita depois de escolhida: a versao nova fica (se tiver TTL, tem a propria entrada na fila)
+                        if (atual != null && atual.timestamp == remocao.getValue()) {
+                            lote.add(new Mensagem("REMOCAO", remocao.getKey(), null, novoTimestamp, null, 0));
+                        }
+                    }
+                    // Sem WAL nada e removido; a proxima passada tenta de novo
+                    Map<String, DadoKV> remocoesBanco = montarLote(lote);
+                    if (lote.isEmpty() || !anexarAoWal(remocoesBanco)) {
+                        return;
+                    }
+                    banco.gravarLote(remocoesBanco);
+                    marcaAplicada.set(novoTimestamp);
+                    replicador.submeter(lote);
+                }
+            } finally {
+                terminarEscrita();
+            }
+            // Divisao aproximada quando alguma versao escolhida foi sobrescrita antes da remocao
+            removidasTtl.add(Math.min(vencidas, lote.size()));
+            removidasDespejo.add(Math.max(0, lote.size() - vencidas));
+            System.out.println("Removidas " + lote.size() + " chaves (" + vencidas + " vencidas pelo TTL, demais despejadas" +
+                    " por memoria); " + (banco.bytesEstimados() >> 10) + " KB estimados");
+        } catch (RuntimeException e) {
+            System.err.println("Erro na expiracao: " + e.getMessage());
+        }
+    }
+
+    // Armazenamento de kv.armazenamento; com kv.indice.ordenado=true, por baixo do indice
+    // ordenado do SCAN. Desligado por padrao: custa um no de skip list por chave e divide
+    // a vazao de escrita do banco; sem ele o SCAN responde SCAN_FAIL
+    private static Armazenamento criarBanco() {
+        Armazenamento base = Armazenamento.criar(System.getProperty("kv.armazenamento", "concorrente"));
+        return Boolean.parseBoolean(System.getProperty("kv.indice.ordenado", "false")) ? new ArmazenamentoOrdenado(base) : base;
+    }
+
+    /*
+     * Regra de timestamp do GET (5f): chave nunca vista pelo cliente (ts 0)
+     * ou valor local igual/mais novo que o do cliente. Chave ausente no lider, ou
+     * num seguidor com a marca ja alem do ts do cliente: foi removida (TTL, despejo)
+     * depois da versao que o cliente conhece, e a ausencia e a resposta atual.
+     * Visivel no pacote (com respostaGet) para a suite JMH (bench/CenariosJmh).
+     */
+    static boolean atualizado(DadoKV dado, long tsCliente) {
+        if (dado == null) {
+            return tsCliente == 0 || souLider || marcaAplicada.get() > tsCliente;
+        }
+        return dado.timestamp >= tsCliente;
+    }
+
+    // Resposta de leitura de uma chave ("NULL" e timestamp 0 se nao existe; vencida por TTL:
+    // "NULL" com o timestamp da versao, para o cliente nao voltar a ler uma versao anterior)
+    static Mensagem respostaGet(String tipo, String key, DadoKV dado) {
+        if (dado == null) {
+            return new Mensagem(tipo, key, "NULL", 0, null, 0);
+        }
+        if (vivo(dado) == null) {
+            return new Mensagem(tipo, key, "NULL", dado.timestamp, null, 0);
+        }
+        Mensagem resposta = new Mensagem(tipo, key, dado.valor, dado.timestamp, null, 0);
+        resposta.setExpira(dado.expira);
+        return resposta;
+    }
+
+    /*
+     * Executa um SCAN no banco: envia ao canal os blocos SCAN_PARCIAL (com o id do
+     * pedido) e devolve o SCAN_OK final, ainda sem id. Chaves vencidas por TTL sao puladas.
+     */
+    private static Mensagem varrer(Canal canal, Mensagem pedido) {
+        if (indice == null) {
+            return new Mensagem("SCAN_FAIL", null, "SCAN exige o indice ordenado (kv.indice.ordenado=true)", 0, null, 0);
+        }
+        int limite = pedido.getLimite() <= 0 ? MAX_SCAN : Math.min(pedido.getLimite(), MAX_SCAN);
+        List<List<Mensagem>> bloco = new ArrayList<>(Collections.singletonList(new ArrayList<>()));
+        int[] lidas = {0};
+        String[] continuacao = {null};
+        indice.varrer(pedido.getKey(), pedido.getValue(), (key, dado) -> {
+            if (vivo(dado) == null) {
+                return true;
+            }
+            if (lidas[0] == limite) {
+                continuacao[0] = key;
+                return false;
+            }
+            Mensagem item = new Mensagem(null, key, dado.valor, dado.timestamp, null, 0);
+            item.setExpira(dado.expira);
+            bloco.get(0).add(item);
+            lidas[0]++;
+            if (bloco.get(0).size() == LOTE_SCAN) {
+                Mensagem parcial = new Mensagem("SCAN_PARCIAL", null, null, 0, null, 0);
+                parcial.setItens(bloco.get(0));
+                parcial.setId(pedido.getId());
+                parcial.setHwm(marcaAplicada.get());
+                canal.enviar(parcial);
+                bloco.set(0, new ArrayList<>());
+            }
+            return true;
+        });
+        Mensagem resposta = new Mensagem("SCAN_OK", continuacao[0], null, 0, null, 0);
+        resposta.setItens(bloco.get(0));
+        return resposta;
+    }
+
+    /*
+     * Conclui os SCANs em espera cuja marca ja foi aplicada (ou todos, se virou lider).
+     * Chamado depois que a marca sobe; a varredura roda na thread dos prazos, fora
+     * da thread que aplica a replicacao.
+     */
+    private static void liberarEsperasMarca() {
+        if (esperasMarca.isEmpty()) {
+            return;
+        }
+        long marca = marcaAplicada.get();
+        boolean lider = souLider;
+        for (Iterator<EsperaMarca> it = esperasMarca.iterator(); it.hasNext(); ) {
+            EsperaMarca espera = it.next();
+            if (espera.espera.concluido.get()) {
+                it.remove();
+            } else if (lider || espera.marca <= marca) {
+                it.remove();
+                prazosGet.execute(() -> espera.espera.concluir(true));
+            }
+        }
+    }
+
+    // Resposta do MGET: um item GET_OK por chave, na ordem pedida
+    private static Mensagem respostaMGET(String tipo, Collection<String> keys, Map<String, DadoKV> dados) {
+        List<Mensagem> itens = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            itens.add(respostaGet("GET_OK", key, dados.get(key)));
+        }
+        Mensagem resposta = new Mensagem(tipo, null, null, 0, null, 0);
+        resposta.setItens(itens);
+        return resposta;
+    }
+
+    /*
+     * (GET assincrono) — responde os GETs/MGETs pendentes assim que possivel (5f)
+     * So sao atendidos os pedidos cujo timestamp do cliente ja foi alcancado
+     */
+    private static void notificarPendentes(String key, long timestamp) {
+        List<GetPendente> atendidos = new ArrayList<>();
+        getsPendentes.computeIfPresent(key, (k, lista) -> {
+            lista.removeIf(pendente -> {
+                if (pendente.tsCliente <= timestamp) {
+                    atendidos.add(pendente);
+                    return true;
+                }
+                return false;
+            });
+            return lista.isEmpty() ? null : lista;
+        });
+
+        for (GetPendente pendente : atendidos) {
+            // MGET so responde quando a ultima chave atrasada for atendida
+            Espera espera = pendente.espera;
+            if (espera.faltando.decrementAndGet() == 0) {
+                Mensagem resposta = espera.concluir(true);
+                if (resposta != null) {
+                    LogAssincrono.registrar(() -> "Enviado " + resposta.getTipo() + " assincrono para " +
+                            espera.destinos() + " key:" + key);
+                }
+            }
+        }
+    }
+
+    /*
+     * Prazo de um GET/MGET em espera esgotado: tira de pendentes e responde
+     * GET_TIMEOUT/MGET_TIMEOUT com os valores locais (o cliente decide se tenta
+     * de novo, por exemplo no lider)
+     */
+    private static void expirar(Espera espera) {
+        for (GetPendente pendente : espera.pendentes) {
+            getsPendentes.computeIfPresent(pendente.key, (k, lista) -> {
+                lista.remove(pendente);
+                return lista.isEmpty() ? null : lista;
+            });
+        }
+        Mensagem resposta = espera.concluir(false);
+        if (resposta != null) {
+            LogAssincrono.registrar(() -> "Enviado " + resposta.getTipo() + " para " + espera.destinos() +
+                    " (" + espera.pendentes.size() + " chaves em espera)");
+        }
+    }
+
+    /*
+     * Requisicao estacionada (GET, MGET ou SCAN): conexao e id da requisicao original
+     * (mais os GETs identicos que se juntaram a ela), quantas chaves ainda faltam e
+     * tarefa de prazo. Respondida uma unica vez: resposta(true) quando todas as chaves
+     * alcancam o timestamp, resposta(false) no prazo.
+     */
+    private static class Espera {
+        // Requisicoes respondidas por esta espera (canal, id); alterada sob o monitor da Espera
+        private final List<Canal> canais = new ArrayList<>(1);
+        private final List<Long> ids = new ArrayList<>(1);
+        // GET de uma chave: outros GETs identicos podem se juntar (estacionarGet)
+        final boolean compartilhada;
+        final Function<Boolean, Mensagem> resposta;
+        final List<GetPendente> pendentes = new ArrayList<>();
+        final AtomicInteger faltando;
+        final AtomicBoolean concluido = new AtomicBoolean();
+        final long inicio = System.nanoTime();
+        volatile ScheduledFuture<?> prazo;
+
+        Espera(Canal canal, long id, int chaves, boolean compartilhada, Function<Boolean, Mensagem> resposta) {
+            canais.add(canal);
+            ids.add(id);
+            this.faltando = new AtomicInteger(chaves);
+            this.compartilhada = compartilhada;
+            this.resposta = resposta;
+        }
+
+        /*
+         * Mais uma requisicao respondida por esta espera; false se ja foi concluida
+         * (o monitor garante que concluir ve todas as que entraram antes dela)
+         */
+        synchronized boolean juntar(Canal canal, long id) {
+            if (concluido.get()) {
+                return false;
+            }
+            canais.add(canal);
+            ids.add(id);
+            return true;
+        }
+
+        synchronized String destinos() {
+            Canal primeiro = canais.get(0);
+            return primeiro.getIpRemoto() + ":" + primeiro.getPortaRemota() +
+                    (canais.size() > 1 ? " e mais " + (canais.size() - 1) : "");
+        }
+
+        /*
+         * Envia a resposta final se ninguem respondeu antes e a devolve; null se ja
+         * concluido ou se as conexoes dos clientes cairam nesse meio tempo.
+         * A resposta e montada uma vez e enviada a cada requisicao com o seu id
+         * (enviar codifica a mensagem na hora, entao trocar o id entre envios e seguro).
+         */
+        Mensagem concluir(boolean atendido) {
+            if (!concluido.compareAndSet(false, true)) {
+                return null;
+            }
+            ScheduledFuture<?> tarefa = prazo;
+            if (tarefa != null) {
+                tarefa.cancel(false);
+            }
+            duracaoEspera.registrarDesde(inicio);
+            if (!atendido) {
+                esperasTimeout.increment();
+            }
+            List<Canal> destinos;
+            List<Long> idsDestinos;
+            synchronized (this) {
+                destinos = new ArrayList<>(canais);
+                idsDestinos = new ArrayList<>(ids);
+            }
+            Mensagem mensagem = null;
+            for (int i = 0; i < destinos.size(); i++) {
+                Canal canal = destinos.get(i);
+                if (!canal.isAberto()) {
+                    continue;
+                }
+                if (mensagem == null) {
+                    mensagem = resposta.apply(atendido);
+                }
+                mensagem.setId(idsDestinos.get(i));
+                mensagem.setHwm(marcaAplicada.get());
+                canal.enviar(mensagem);
+            }
+            return mensagem;
+        }
+    }
+
+    /*
+     * Entrada da fila de expiracoes do lider: versao (key, timestamp) e quando vence
+     */
+    private static class Expiracao implements Comparable<Expiracao> {
+        final String key;
+        final long timestamp;
+        final long expira;
+
+        Expiracao(String key, long timestamp, long expira) {
+            this.key = key;
+            this.timestamp = timestamp;
+            this.expira = expira;
+        }
+
+        public int compareTo(Expiracao outra) {
+            return Long.compare(expira, outra.expira);
+        }
+    }
+
+    /*
+     * SCAN estacionado no seguidor ate a marca aplicada alcancar o timestamp do cliente
+     */
+    private static class EsperaMarca {
+        final long marca;
+        final Espera espera;
+
+        EsperaMarca(long marca, Espera espera) {
+            this.marca = marca;
+            this.espera = espera;
+        }
+    }
+
+    /*
+     * Uma chave atrasada de uma requisicao estacionada (entrada de getsPendentes)
+     */
+    private static class GetPendente {
+        final String key;
+        final long tsCliente;
+        final Espera espera;
+
+        GetPendente(String key, long tsCliente, Espera espera) {
+            this.key = key;
+            this.tsCliente = tsCliente;
+            this.espera = espera;
+        }
+    }
+
+    /*
+     * Canal sobre socket bloqueante (modos threads e virtual)
+     * Escritas de threads diferentes sao serializadas no stream de saida.
+     * O envio em fluxo (WATCH) vai para uma fila do canal, escrita por uma thread de
+     * escritoresFluxo: um cliente lento segura so essa thread, nunca o despacho do WATCH.
+     */
+    private static class CanalSocket implements Canal {
+        private static final ExecutorService escritoresFluxo = Executors.newCachedThreadPool(tarefa -> {
+            Thread thread = new Thread(tarefa, "canal-fluxo");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final Protocolo protocolo;
+        // Fila do envio em fluxo; escrevendo = uma tarefa de escritoresFluxo esvaziando (uma por vez)
+        private final Queue<Mensagem> fluxo = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean escrevendo = new AtomicBoolean();
+
+        CanalSocket(Socket socket, OutputStream out, Protocolo protocolo) {
+            this.socket = socket;
+            this.out = out;
+            this.protocolo = protocolo;
+        }
+
+        public void enviar(Mensagem msg) {
+            try {
+                protocolo.enviar(out, msg, msg.getId());
+            } catch (IOException e) {
+                // Conexao caiu: a thread leitora encerra o handler
+                try {
+                    socket.close();
+                } catch (IOException ignorada) {}
+            }
+        }
+
+        public void enviarEmFluxo(Mensagem msg) {
+            fluxo.add(msg);
+            if (escrevendo.compareAndSet(false, true)) {
+                escritoresFluxo.execute(this::escreverFluxo);
+            }
+        }
+
+        private void escreverFluxo() {
+            do {
+                Mensagem msg;
+                while ((msg = fluxo.poll()) != null) {
+                    enviar(msg);
+                }
+                escrevendo.set(false);
+                // Mensagem enfileirada entre o ultimo poll e o set(false)
+            } while (!fluxo.isEmpty() && escrevendo.compareAndSet(false, true));
+        }
+
+        public boolean isCongestionado() {
+            return escrevendo.get();
+        }
+
+        public String getIpRemoto() {
+            return socket.getInetAddress().getHostAddress();
+        }
+
+        public int getPortaRemota() {
+            return socket.getPort();
+        }
+
+        public boolean isAberto() {
+            return !socket.isClosed();
         }
     }
 }
@@ -0,0 +1,291 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Consumer;
+
+/*
+ * Nucleo de rede nao bloqueante: uma thread com Selector aceita e le todas
+ * as conexoes; as mensagens sao tratadas num pool pequeno de trabalhadores.
+ * As mensagens de uma mesma conexao sao tratadas em serie e na ordem de
+ * chegada (REPLICATION depende disso), conexoes diferentes em paralelo.
+ */
+public class ServidorNio {
+    private static final int TAMANHO_BUFFER = 64 * 1024;
+
+    private final int porta;
+    private final ExecutorService trabalhadores;
+    private final Function<Canal, Consumer<Mensagem>> fabricaTratador;
+    private Selector selector;
+
+    public ServidorNio(int porta, ExecutorService trabalhadores, Function<Canal, Consumer<Mensagem>> fabricaTratador) {
+        this.porta = porta;
+        this.trabalhadores = trabalhadores;
+        this.fabricaTratador = fabricaTratador;
+    }
+
+    /*
+     * Laco do Selector (bloqueia a thread chamadora)
+     */
+    public void executar() throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel servidor = ServerSocketChannel.open()) {
+            servidor.bind(new InetSocketAddress(porta), 1024);
+            servidor.configureBlocking(false);
+            servidor.register(selector, SelectionKey.OP_ACCEPT);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(TAMANHO_BUFFER);
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> chaves = selector.selectedKeys().iterator();
+                while (chaves.hasNext()) {
+                    SelectionKey chave = chaves.next();
+                    chaves.remove();
+                    if (!chave.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (chave.isAcceptable()) {
+                            aceitar(servidor);
+                        } else {
+                            CanalNio canal = (CanalNio) chave.attachment();
+                            if (chave.isReadable()) {
+                                canal.ler(buffer);
+                            }
+                            if (chave.isValid() && chave.isWritable()) {
+                                canal.escreverPendentes();
+                            }
+                        }
+                    } catch (IOException | CancelledKeyException | IllegalArgumentException e) {
+                        // IllegalArgumentException: quadro acima de kv.mensagem.maxBytes
+                        Object anexo = chave.attachment();
+                        if (anexo instanceof CanalNio) {
+                            ((CanalNio) anexo).fechar();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void aceitar(ServerSocketChannel servidor) throws IOException {
+        SocketChannel socket;
+        while ((socket = servidor.accept()) != null) {
+            socket.configureBlocking(false);
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            CanalNio canal = new CanalNio(socket);
+            canal.chave = socket.register(selector, SelectionKey.OP_READ, canal);
+            canal.tratador = fabricaTratador.apply(canal);
+        }
+    }
+
+    /*
+     * Estado de uma conexao NIO: bytes recebidos ainda sem quadro completo,
+     * fila de saida e fila de quadros recebidos ainda nao tratados.
+     * O protocolo (JSON ou binario) e decidido pelo primeiro byte recebido.
+     */
+    private class CanalNio implements Canal, Runnable {
+        private final SocketChannel socket;
+        private final String ipRemoto;
+        private final int portaRemota;
+        private SelectionKey chave;
+        private Consumer<Mensagem> tratador;
+
+        private Protocolo protocolo;
+        private byte[] entrada = new byte[512];
+        private int inicioEntrada;
+        private int fimEntrada;
+        private final Queue<byte[]> recebidas = new ConcurrentLinkedQueue<>();
+        // Partes de mensagens grandes; so o trabalhador agendado (um por vez) mexe
+        private final Remontagem remontagem = new Remontagem();
+        private final AtomicBoolean agendado = new AtomicBoolean();
+        // Mensagens a enviar, em ordem (FIFO: as partes de uma mensagem grande nao se
+        // intercalam com as seguintes); cada uma gera o proximo quadro so quando o anterior
+        // saiu inteiro (emEscrita, sob o monitor do canal): de uma mensagem em partes so a
+        // parte atual fica em memoria, e o socket cheio segura a montagem das seguintes
+        private final Queue<Protocolo.Quadros> saida = new ConcurrentLinkedQueue<>();
+        private ByteBuffer emEscrita;
+        private volatile boolean aberto = true;
+
+        CanalNio(SocketChannel socket) throws IOException {
+            this.socket = socket;
+            InetSocketAddress remoto = (InetSocketAddress) socket.getRemoteAddress();
+            this.ipRemoto = remoto.getAddress().getHostAddress();
+            this.portaRemota = remoto.getPort();
+        }
+
+        /*
+         * Thread do Selector: separa quadros completos e agenda o tratamento
+         */
+        void ler(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int lidos = socket.read(buffer);
+            if (lidos < 0) {
+                fechar();
+                return;
+            }
+            buffer.flip();
+            acumular(buffer);
+
+            if (protocolo == null) {
+                if (fimEntrada - inicioEntrada < 1) {
+                    return;
+                }
+                if (entrada[inicioEntrada] != Protocolo.PREFACIO) {
+                    protocolo = Protocolo.JSON;
+                } else if (fimEntrada - inicioEntrada < 2) {
+                    return;
+                } else if (entrada[inicioEntrada + 1] != Protocolo.VERSAO) {
+                    fechar();
+                    return;
+                } else {
+                    protocolo = Protocolo.BINARIO;
+                    inicioEntrada += 2;
+                    enfileirar(Protocolo.Quadros.de(ByteBuffer.wrap(new byte[] { Protocolo.PREFACIO, Protocolo.VERSAO })));
+                }
+            }
+
+            int tamanho;
+            while ((tamanho = protocolo.tamanhoQuadro(entrada, inicioEntrada, fimEntrada - inicioEntrada)) > 0) {
+                recebidas.add(Arrays.copyOfRange(entrada, inicioEntrada, inicioEntrada + tamanho));
+                inicioEntrada += tamanho;
+            }
+            if (inicioEntrada == fimEntrada) {
+                inicioEntrada = fimEntrada = 0;
+            }
+            if (!recebidas.isEmpty() && agendado.compareAndSet(false, true)) {
+                trabalhadores.execute(this);
+            }
+        }
+
+        private void acumular(ByteBuffer buffer) {
+            int chegando = buffer.remaining();
+            if (fimEntrada + chegando > entrada.length) {
+                // Compacta e, se preciso, cresce
+                int pendentes = fimEntrada - inicioEntrada;
+                byte[] destino = pendentes + chegando > entrada.length
+                        ? new byte[Math.max(entrada.length * 2, pendentes + chegando)] : entrada;
+                System.arraycopy(entrada, inicioEntrada, destino, 0, pendentes);
+                entrada = destino;
+                inicioEntrada = 0;
+                fimEntrada = pendentes;
+            }
+            buffer.get(entrada, fimEntrada, chegando);
+            fimEntrada += chegando;
+        }
+
+        /*
+         * Trabalhador: trata as mensagens pendentes desta conexao, em ordem
+         */
+        public void run() {
+            byte[] quadro;
+            while ((quadro = recebidas.poll()) != null) {
+                Mensagem msg;
+                try {
+                    msg = protocolo.decodificar(quadro, 0, quadro.length, remontagem);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Erro ao tratar cliente: " + e.getMessage());
+                    fechar();
+                    recebidas.clear();
+                    break;
+                }
+                if (msg == null) {
+                    // Parte intermediaria de uma mensagem grande
+                    continue;
+                }
+                try {
+                    tratador.accept(msg);
+                } catch (RuntimeException e) {
+                    System.err.println("Erro ao tratar cliente: " + e.getMessage());
+                }
+            }
+            agendado.set(false);
+            // Mensagem chegou entre o ultimo poll e o set(false)
+            if (!recebidas.isEmpty() && agendado.compareAndSet(false, true)) {
+                trabalhadores.execute(this);
+            }
+        }
+
+        public void enviar(Mensagem msg) {
+            if (!aberto) {
+                return;
+            }
+            enfileirar(protocolo.quadros(msg, msg.getId()));
+        }
+
+        private void enfileirar(Protocolo.Quadros quadros) {
+            try {
+                synchronized (this) {
+                    // Com a fila vazia tenta escrever direto; o que sobrar fica para o Selector
+                    boolean vazia = saida.isEmpty();
+                    saida.add(quadros);
+                    if (vazia && escreverFila()) {
+                        return;
+                    }
+                    chave.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                selector.wakeup();
+            } catch (IOException | CancelledKeyException e) {
+                fechar();
+            }
+        }
+
+        /*
+         * Thread do Selector: esvazia a fila de saida ate o socket encher
+         */
+        synchronized void escreverPendentes() throws IOException {
+            if (escreverFila()) {
+                chave.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        // Escreve quadro a quadro ate o socket encher (sob o monitor); true se a fila esvaziou
+        private boolean escreverFila() throws IOException {
+            Protocolo.Quadros quadros;
+            while ((quadros = saida.peek()) != null) {
+                if (emEscrita == null && (emEscrita = quadros.proximo()) == null) {
+                    saida.poll();
+                    continue;
+                }
+                socket.write(emEscrita);
+                if (emEscrita.hasRemaining()) {
+                    return false;
+                }
+                emEscrita = null;
+            }
+            return true;
+        }
+
+        void fechar() {
+            aberto = false;
+            if (chave != null) {
+                chave.cancel();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+
+        public String getIpRemoto() {
+            return ipRemoto;
+        }
+
+        public int getPortaRemota() {
+            return portaRemota;
+        }
+
+        public boolean isAberto() {
+            return aberto;
+        }
+
+        public boolean isCongestionado() {
+            return !saida.isEmpty();
+        }
+    }
+}